@@ -30,6 +30,7 @@ import java.lang.reflect.Field;
 import java.nio.file.Path;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
@@ -402,6 +403,17 @@ public abstract class Pl3xMap {
             return new ForkJoinPool(factory.threads, factory, null, false);
         }
 
+        /**
+         * Check if the fork join pool running the current task has idle threads and nothing else queued,
+         * so splitting the task up would put those threads to work instead of delaying other tasks.
+         *
+         * @return true if the current task can be split up between idle threads
+         */
+        public static boolean hasSpareThreads() {
+            ForkJoinPool pool = ForkJoinTask.getPool();
+            return pool != null && pool.getQueuedSubmissionCount() == 0 && pool.getActiveThreadCount() < pool.getParallelism();
+        }
+
         @Override
         public @NotNull ForkJoinWorkerThread newThread(@NotNull ForkJoinPool pool) {
             ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
@@ -84,7 +84,7 @@ public class RadiusRenderCommand extends Pl3xMapCommand {
             regions.forEach(region -> Logger.debug("Adding region: " + region));
         }
 
-        Pl3xMap.api().getRegionProcessor().addRegions(world, regions);
+        Pl3xMap.api().getRegionProcessor().addRegions(world, regions, true);
 
         sender.sendMessage(Lang.COMMAND_RADIUSRENDER_STARTING);
     }
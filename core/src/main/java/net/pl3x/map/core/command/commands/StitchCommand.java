@@ -41,9 +41,8 @@ import net.pl3x.map.core.command.Sender;
 import net.pl3x.map.core.command.argument.RendererArgument;
 import net.pl3x.map.core.command.argument.WorldArgument;
 import net.pl3x.map.core.command.argument.ZoomArgument;
-import net.pl3x.map.core.configuration.Config;
 import net.pl3x.map.core.configuration.Lang;
-import net.pl3x.map.core.image.io.IO;
+import net.pl3x.map.core.image.io.TileFormat;
 import net.pl3x.map.core.markers.Point;
 import net.pl3x.map.core.renderer.Renderer;
 import net.pl3x.map.core.world.World;
@@ -82,7 +81,8 @@ public class StitchCommand extends Pl3xMapCommand {
             return;
         }
 
-        Map<Point, Path> pngFiles = getTiles(dir, sender);
+        TileFormat format = world.getTileFormat(zoom);
+        Map<Point, Path> pngFiles = getTiles(dir, format.getExtension(), sender);
         if (pngFiles == null) return;
 
         int minX = Integer.MAX_VALUE;
@@ -110,7 +110,7 @@ public class StitchCommand extends Pl3xMapCommand {
                 Placeholder.unparsed("size-z", String.valueOf(sizeZ))
         );
 
-        String filename = stitchImage(sizeX, sizeZ, pngFiles, minX, minZ, world, renderer, zoom);
+        String filename = stitchImage(sizeX, sizeZ, pngFiles, minX, minZ, world, renderer, zoom, format);
 
         sender.sendMessage(Lang.COMMAND_STITCH_FINISHED,
                 Placeholder.unparsed("count", String.valueOf(pngFiles.size())),
@@ -121,11 +121,13 @@ public class StitchCommand extends Pl3xMapCommand {
     }
 
     @Nullable
-    private static Map<Point, Path> getTiles(Path dir, Sender sender) {
+    private static Map<Point, Path> getTiles(Path dir, String extension, Sender sender) {
         Map<Point, Path> pngFiles = new HashMap<>();
+        String suffix = "." + extension;
         try (Stream<Path> stream = Files.list(dir)) {
-            stream.filter(World.PNG_MATCHER::matches).forEach(path -> {
-                String[] split = path.getFileName().toString().split(".png")[0].split("_");
+            stream.filter(path -> path.getFileName().toString().endsWith(suffix)).forEach(path -> {
+                String name = path.getFileName().toString();
+                String[] split = name.substring(0, name.length() - suffix.length()).split("_");
                 if (split.length != 2) {
                     return;
                 }
@@ -152,16 +154,15 @@ public class StitchCommand extends Pl3xMapCommand {
     }
 
     @NotNull
-    private static String stitchImage(int sizeX, int sizeZ, Map<Point, Path> pngFiles, int minX, int minZ, World world, Renderer.Builder renderer, int zoom) {
+    private static String stitchImage(int sizeX, int sizeZ, Map<Point, Path> pngFiles, int minX, int minZ, World world, Renderer.Builder renderer, int zoom, TileFormat format) {
         Path dir;
-        IO.Type io = IO.get(Config.WEB_TILE_FORMAT);
 
         BufferedImage stitched = new BufferedImage((sizeX + 1) << 9, (sizeZ + 1) << 9, BufferedImage.TYPE_INT_ARGB);
         Graphics2D g2d = stitched.createGraphics();
 
         for (Map.Entry<Point, Path> entry : pngFiles.entrySet()) {
             try {
-                BufferedImage tile = io.read(entry.getValue());
+                BufferedImage tile = format.read(entry.getValue());
                 if (tile == null) {
                     continue;
                 }
@@ -181,8 +182,8 @@ public class StitchCommand extends Pl3xMapCommand {
             } catch (IOException ignore) {
             }
         }
-        String filename = renderer.getKey() + "_" + zoom + "." + io.getKey();
-        io.write(dir.resolve(filename), stitched);
+        String filename = renderer.getKey() + "_" + zoom + "." + format.getExtension();
+        format.write(dir.resolve(filename), stitched);
         return filename;
     }
 }
@@ -28,6 +28,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import net.pl3x.map.core.Pl3xMap;
+import net.pl3x.map.core.util.ColorTable;
 import net.pl3x.map.core.util.Colors;
 import net.pl3x.map.core.util.FileUtil;
 import org.jetbrains.annotations.NotNull;
@@ -1276,6 +1277,8 @@ public class ColorsConfig extends AbstractConfig {
         FileUtil.extractDir("/web/", FileUtil.getWebDir(), !Config.WEB_DIR_READONLY);
 
         CONFIG.reload(Pl3xMap.api().getMainDir().resolve("colors.yml"), ColorsConfig.class);
+
+        ColorTable.clear();
     }
 
     @Override
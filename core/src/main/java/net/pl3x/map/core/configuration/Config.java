@@ -63,7 +63,11 @@ public final class Config extends AbstractConfig {
     @Key("settings.web-directory.tile-format")
     @Comment("""
             The image format for tile images.
-            Built in types: bmp, gif, jpg, jpeg, png""")
+            Built in types: bmp, gif, jpg, jpeg, png, png8, webp
+            png8 reduces every tile to 256 colors, which makes
+            tiles a lot smaller. Tiles with more colors than
+            that (mostly zoomed out tiles) lose a bit of detail.
+            webp is lossless and usually smaller than png.""")
     public static String WEB_TILE_FORMAT = "png";
     @Key("settings.web-directory.tile-quality")
     @Comment("""
@@ -72,6 +76,31 @@ public final class Config extends AbstractConfig {
             1.0 is high quality, no compression, large file size
             Note: Not all image formats honor this setting.""")
     public static double WEB_TILE_QUALITY = 0.0D;
+    @Key("settings.web-directory.tile-canvas.enabled")
+    @Comment("""
+            Keep a copy of the raw pixels of every tile next to the tile images.
+            Updates patch the copy instead of decoding the tile image, and
+            the tile image is only encoded again once the tile stops changing.
+            Uses more disk space, but saves a lot of cpu on busy servers.""")
+    public static boolean WEB_TILE_CANVAS = false;
+    @Key("settings.web-directory.tile-canvas.quiet-period")
+    @Comment("""
+            How long (in seconds) a tile has to go without changes
+            before its tile image is encoded again.""")
+    public static int WEB_TILE_CANVAS_QUIET_PERIOD = 10;
+    @Key("settings.web-directory.tile-optimizer.enabled")
+    @Comment("""
+            Re-encode tiles that stopped changing with the best compression,
+            whenever there is nothing to render. This lets tile-quality
+            favor speed for fresh renders, while older tiles still end up
+            as small as possible. Only formats where the quality is just a
+            compression level (png, png8) are re-encoded.""")
+    public static boolean WEB_TILE_OPTIMIZER = false;
+    @Key("settings.web-directory.tile-optimizer.min-age")
+    @Comment("""
+            How long (in seconds) a tile has to go without changes
+            before it is re-encoded with the best compression.""")
+    public static int WEB_TILE_OPTIMIZER_MIN_AGE = 3600;
 
     @Key("settings.map.zoom.snap")
     @Comment("""
@@ -117,6 +146,18 @@ public final class Config extends AbstractConfig {
             It is generally advised against enabling this,
             for security reasons. But you do you, boo boo.""")
     public static boolean HTTPD_FOLLOW_SYMLINKS = false;
+    @Key("settings.internal-webserver.render-on-demand.enabled")
+    @Comment("""
+            Render regions right away when their tiles are requested
+            from the map, if the region exists but was never rendered.
+            Only tiles up to zoom level 2 out (16 regions) are rendered
+            this way.""")
+    public static boolean HTTPD_RENDER_ON_DEMAND = false;
+    @Key("settings.internal-webserver.render-on-demand.wait")
+    @Comment("""
+            How many seconds a request for such a tile waits for it to
+            be rendered, before answering with an empty placeholder.""")
+    public static int HTTPD_RENDER_ON_DEMAND_WAIT = 10;
 
     @Key("settings.performance.render-threads")
     @Comment("""
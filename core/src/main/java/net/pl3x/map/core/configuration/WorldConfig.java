@@ -158,6 +158,16 @@ public final class WorldConfig extends AbstractConfig {
             tile images so you can zoom in further without
             the extra cost of rendering more tiles.""")
     public int ZOOM_MAX_IN = 2;
+    @Key("zoom.tile-formats")
+    @Comment("""
+            Image format of the tiles of each zoom level, overriding
+            the global tile-format and tile-quality. Keys are a zoom
+            level or an inclusive range of them (eg. 0 or 1-3), values
+            are a format with an optional quality (eg. png or jpg:0.8).
+            Zoomed out tiles are averaged down and compress a lot
+            better as lossy, while zoom level 0 is best kept lossless.
+            Zoom levels not listed use the global tile-format.""")
+    public Map<@NotNull String, @NotNull String> ZOOM_TILE_FORMATS = new LinkedHashMap<>();
 
     @Key("render.visible-areas")
     @Comment("""
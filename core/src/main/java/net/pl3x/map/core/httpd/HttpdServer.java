@@ -26,23 +26,50 @@ package net.pl3x.map.core.httpd;
 import io.undertow.Undertow;
 import io.undertow.UndertowLogger;
 import io.undertow.UndertowOptions;
+import io.undertow.server.HttpServerExchange;
 import io.undertow.server.handlers.resource.PathResourceManager;
 import io.undertow.server.handlers.resource.ResourceHandler;
 import io.undertow.server.handlers.resource.ResourceManager;
 import io.undertow.util.ETag;
 import io.undertow.util.Headers;
+import io.undertow.util.SameThreadExecutor;
+import io.undertow.util.StatusCodes;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.pl3x.map.core.Pl3xMap;
 import net.pl3x.map.core.configuration.Config;
 import net.pl3x.map.core.configuration.Lang;
 import net.pl3x.map.core.log.LogFilter;
 import net.pl3x.map.core.log.Logger;
+import net.pl3x.map.core.markers.Point;
 import net.pl3x.map.core.util.FileUtil;
+import net.pl3x.map.core.util.Mathf;
+import net.pl3x.map.core.world.World;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class HttpdServer {
+    // /tiles/<world>/<zoom>/<renderer>/<x>_<z>.<ext>
+    private static final Pattern TILE_PATH = Pattern.compile("^/tiles/([^/]+)/(\\d+)/([^/]+)/(-?\\d+)_(-?\\d+)\\.[^/]+$");
+
+    // highest zoom level rendered on demand, so one request never queues more than 16 regions
+    private static final int MAX_ON_DEMAND_ZOOM = 2;
+
+    // how often a tile rendered on demand is checked for
+    private static final Executor POLL_EXECUTOR = CompletableFuture.delayedExecutor(250L, TimeUnit.MILLISECONDS);
+
     private Undertow server;
+    private ResourceHandler resourceHandler;
 
     public void startServer() {
         if (!Config.HTTPD_ENABLED) {
@@ -65,9 +92,12 @@ public class HttpdServer {
                         }
                     })
                     .build();
-            ResourceHandler resourceHandler = new ResourceHandler(resourceManager, exchange -> {
+            ResourceHandler resourceHandler = this.resourceHandler = new ResourceHandler(resourceManager, exchange -> {
                 String url = exchange.getRelativePath();
-                if (url.startsWith("/tiles") && (url.endsWith(".png") || url.endsWith(".gz"))) {
+                if (url.startsWith("/tiles") && (url.endsWith(".gz") || TILE_PATH.matcher(url).matches())) {
+                    if (Config.HTTPD_RENDER_ON_DEMAND && renderOnDemand(exchange, url)) {
+                        return;
+                    }
                     exchange.setStatusCode(200);
                     return;
                 }
@@ -84,6 +114,7 @@ public class HttpdServer {
                     .setHandler(exchange -> {
                         if (exchange.getRelativePath().startsWith("/tiles")) {
                             exchange.getResponseHeaders().put(Headers.CACHE_CONTROL, "max-age=0, must-revalidate, no-cache");
+                            addView(exchange.getRelativePath());
                         }
                         if (exchange.getRelativePath().endsWith(".gz")) {
                             exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
@@ -105,6 +136,146 @@ public class HttpdServer {
         }
     }
 
+    /**
+     * Let the renderer know which part of the map is being looked at, so it gets rendered first.
+     *
+     * @param path requested path
+     */
+    private void addView(@NotNull String path) {
+        Matcher matcher = TILE_PATH.matcher(path);
+        if (!matcher.matches()) {
+            return;
+        }
+        World world = getWorld(matcher.group(1));
+        if (world == null) {
+            return;
+        }
+        try {
+            int zoom = Integer.parseInt(matcher.group(2));
+            int tileX = Integer.parseInt(matcher.group(4));
+            int tileZ = Integer.parseInt(matcher.group(5));
+            if (zoom <= world.getConfig().ZOOM_MAX_OUT) {
+                Pl3xMap.api().getRegionProcessor().getPriority().addView(world, zoom, tileX, tileZ);
+            }
+        } catch (NumberFormatException ignore) {
+        }
+    }
+
+    /**
+     * Render the regions of a missing tile that were never rendered, ahead of everything else.
+     * <p>
+     * Only tiles up to {@link #MAX_ON_DEMAND_ZOOM} are rendered on demand. Once the regions are rendered, the tile is
+     * encoded from its canvas or built from the zoom level below right away, instead of waiting for that to happen
+     * on its own. The request is held until then, or answered with an empty placeholder once the configured wait
+     * runs out. The request is not blocking any thread in the meantime.
+     *
+     * @param exchange request for the missing tile
+     * @param path     requested path
+     * @return true if the regions were queued and the request will be answered later
+     */
+    private boolean renderOnDemand(@NotNull HttpServerExchange exchange, @NotNull String path) {
+        Matcher matcher = TILE_PATH.matcher(path);
+        if (!matcher.matches()) {
+            return false;
+        }
+        World world = getWorld(matcher.group(1));
+        if (world == null) {
+            return false;
+        }
+        String key = matcher.group(3);
+        int zoom;
+        int tileX;
+        int tileZ;
+        try {
+            zoom = Integer.parseInt(matcher.group(2));
+            tileX = Integer.parseInt(matcher.group(4));
+            tileZ = Integer.parseInt(matcher.group(5));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (zoom > world.getConfig().ZOOM_MAX_OUT || zoom > MAX_ON_DEMAND_ZOOM || world.getRenderers().get(key) == null) {
+            return false;
+        }
+
+        // regions the tile is made of, that exist but were never rendered
+        List<Point> regions = new ArrayList<>();
+        int size = 1 << zoom;
+        for (int regionX = tileX * size; regionX < (tileX + 1) * size; regionX++) {
+            for (int regionZ = tileZ * size; regionZ < (tileZ + 1) * size; regionZ++) {
+                if (world.getRegionModifiedState().get(Mathf.asLong(regionX, regionZ)) <= 0 && world.hasRegionFile(regionX, regionZ)) {
+                    regions.add(Point.of(regionX, regionZ));
+                }
+            }
+        }
+        if (regions.isEmpty()) {
+            return false;
+        }
+        Pl3xMap.api().getRegionProcessor().addUrgentRegions(world, regions);
+
+        Tile tile = new Tile(world, key, zoom, tileX, tileZ, FileUtil.getWebDir().resolve(path.substring(1)), regions);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Config.HTTPD_RENDER_ON_DEMAND_WAIT);
+        exchange.dispatch(SameThreadExecutor.INSTANCE, () -> awaitRegions(exchange, tile, deadline));
+        return true;
+    }
+
+    private void awaitRegions(@NotNull HttpServerExchange exchange, @NotNull Tile tile, long deadline) {
+        CompletableFuture.runAsync(() -> {
+            if (tile.isRendered()) {
+                // the tile would only show up later on its own, write it out right away
+                CompletableFuture.runAsync(() -> {
+                    if (tile.zoom() == 0) {
+                        if (Config.WEB_TILE_CANVAS) {
+                            tile.world().getTileCanvas().encode(tile.key(), tile.x(), tile.z());
+                        }
+                    } else {
+                        tile.world().getTilePyramid().build(tile.key(), tile.zoom(), tile.x(), tile.z());
+                    }
+                }, Pl3xMap.api().getRenderExecutor()).whenComplete((result, throwable) -> {
+                    if (throwable != null) {
+                        throwable.printStackTrace();
+                    }
+                    awaitFile(exchange, tile, deadline);
+                });
+            } else if (System.currentTimeMillis() >= deadline) {
+                exchange.dispatch(ex -> ex.setStatusCode(StatusCodes.ACCEPTED));
+            } else {
+                awaitRegions(exchange, tile, deadline);
+            }
+        }, POLL_EXECUTOR);
+    }
+
+    private void awaitFile(@NotNull HttpServerExchange exchange, @NotNull Tile tile, long deadline) {
+        if (Files.exists(tile.file())) {
+            // serve the freshly rendered tile
+            exchange.dispatch(this.resourceHandler);
+        } else if (System.currentTimeMillis() >= deadline) {
+            exchange.dispatch(ex -> ex.setStatusCode(StatusCodes.ACCEPTED));
+        } else {
+            // a pyramid build that was already running might still be writing it
+            CompletableFuture.runAsync(() -> awaitFile(exchange, tile, deadline), POLL_EXECUTOR);
+        }
+    }
+
+    private @Nullable World getWorld(@NotNull String directory) {
+        for (World world : Pl3xMap.api().getWorldRegistry()) {
+            if (world.getTilesDirectory().getFileName().toString().equals(directory)) {
+                return world;
+            }
+        }
+        return null;
+    }
+
+    private record Tile(@NotNull World world, @NotNull String key, int zoom, int x, int z, @NotNull Path file, @NotNull List<@NotNull Point> regions) {
+        private boolean isRendered() {
+            for (Point region : this.regions) {
+                if (this.world.getRegionModifiedState().get(Mathf.asLong(region)) <= 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     public void stopServer() {
         if (!Config.HTTPD_ENABLED) {
             return;
@@ -0,0 +1,289 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.image;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.UnaryOperator;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import net.pl3x.map.core.configuration.Config;
+import net.pl3x.map.core.image.io.TileFormat;
+import net.pl3x.map.core.log.Logger;
+import net.pl3x.map.core.util.FileUtil;
+import net.pl3x.map.core.world.World;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Raw argb pixels of the zoom level 0 tiles of a world, stored with fast deflate compression.
+ * <p>
+ * Saving a region patches its canvas instead of decoding and re-encoding its tile image, which also keeps
+ * lossy formats from degrading with every update. The tile image is encoded from the canvas once the tile
+ * has not changed for {@link Config#WEB_TILE_CANVAS_QUIET_PERIOD} seconds.
+ * <p>
+ * Which tiles are waiting to be encoded is only kept in memory. Canvases newer than their tile image,
+ * left behind when the server stopped before they were encoded, are queued again on the first encode.
+ */
+public class TileCanvas {
+    public static final int TILE_SIZE = 512;
+
+    private final World world;
+    private final Path directory;
+    private final Map<@NotNull Tile, @NotNull Long> pendingTiles = new ConcurrentHashMap<>();
+    private volatile boolean requeued;
+
+    public TileCanvas(@NotNull World world) {
+        this.world = world;
+        this.directory = world.getTilesDirectory().resolve(".canvas");
+    }
+
+    /**
+     * Read the canvas of a tile.
+     *
+     * @param key   renderer key
+     * @param tileX tile x coordinate
+     * @param tileZ tile z coordinate
+     * @return argb pixels, or null if the tile has no canvas
+     */
+    public int @Nullable [] read(@NotNull String key, int tileX, int tileZ) {
+        Path path = getPath(key, tileX, tileZ);
+        ReadWriteLock lock = TileImage.getLock(path);
+        lock.readLock().lock();
+        try {
+            return read(path);
+        } catch (IOException e) {
+            Logger.warn("Could not read tile canvas: " + path);
+            e.printStackTrace();
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check if a tile has a canvas.
+     *
+     * @param key   renderer key
+     * @param tileX tile x coordinate
+     * @param tileZ tile z coordinate
+     * @return true if the tile has a canvas on disk
+     */
+    public boolean exists(@NotNull String key, int tileX, int tileZ) {
+        return Files.exists(getPath(key, tileX, tileZ));
+    }
+
+    /**
+     * Patch the canvas of a tile and queue its tile image to be encoded again.
+     *
+     * @param key     renderer key
+     * @param tileX   tile x coordinate
+     * @param tileZ   tile z coordinate
+     * @param patcher patches the current pixels, which are null if the tile has no canvas yet
+     * @return the patched pixels
+     * @throws IOException if the canvas could not be read or written
+     */
+    public int @NotNull [] patch(@NotNull String key, int tileX, int tileZ, @NotNull UnaryOperator<int[]> patcher) throws IOException {
+        Path path = getPath(key, tileX, tileZ);
+        ReadWriteLock lock = TileImage.getLock(path);
+        lock.writeLock().lock();
+        try {
+            int[] pixels = patcher.apply(read(path));
+            write(path, pixels);
+            this.pendingTiles.put(new Tile(key, tileX, tileZ), System.currentTimeMillis());
+            return pixels;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the canvas of a tile, after its tile image was written without it.
+     *
+     * @param key   renderer key
+     * @param tileX tile x coordinate
+     * @param tileZ tile z coordinate
+     */
+    public void delete(@NotNull String key, int tileX, int tileZ) {
+        Path path = getPath(key, tileX, tileZ);
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Encode the tile images of tiles whose canvas changed.
+     *
+     * @param all true to encode every changed tile, false to only encode tiles that stopped changing
+     */
+    public void encode(boolean all) {
+        if (!this.requeued) {
+            this.requeued = true;
+            requeue();
+        }
+        if (this.pendingTiles.isEmpty()) {
+            return;
+        }
+        long quietBefore = System.currentTimeMillis() - Config.WEB_TILE_CANVAS_QUIET_PERIOD * 1000L;
+        TileFormat format = this.world.getTileFormat(0);
+        Iterator<Map.Entry<Tile, Long>> iter = this.pendingTiles.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Tile, Long> entry = iter.next();
+            long changed = entry.getValue();
+            if (!all && changed > quietBefore) {
+                continue;
+            }
+            Tile tile = entry.getKey();
+            // only forget the tile if it did not change again in the meantime
+            this.pendingTiles.remove(tile, changed);
+            try {
+                encode(format, tile);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Encode the tile image of a single tile right away, if its canvas changed.
+     *
+     * @param key   renderer key
+     * @param tileX tile x coordinate
+     * @param tileZ tile z coordinate
+     */
+    public void encode(@NotNull String key, int tileX, int tileZ) {
+        Tile tile = new Tile(key, tileX, tileZ);
+        Long changed = this.pendingTiles.get(tile);
+        if (changed == null) {
+            return;
+        }
+        this.pendingTiles.remove(tile, changed);
+        encode(this.world.getTileFormat(0), tile);
+    }
+
+    private void requeue() {
+        if (!Files.isDirectory(this.directory)) {
+            return;
+        }
+        TileFormat format = this.world.getTileFormat(0);
+        int count = 0;
+        try (DirectoryStream<Path> keys = Files.newDirectoryStream(this.directory, Files::isDirectory)) {
+            for (Path dir : keys) {
+                String key = dir.getFileName().toString();
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.bin")) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        String[] split = name.substring(0, name.length() - 4).split("_");
+                        int tileX;
+                        int tileZ;
+                        try {
+                            tileX = Integer.parseInt(split[0]);
+                            tileZ = Integer.parseInt(split[1]);
+                        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                            continue;
+                        }
+                        long modified = Files.getLastModifiedTime(file).toMillis();
+                        Path image = TileImage.getFilePath(this.world, key, 0, tileX, tileZ, format);
+                        if (!Files.exists(image) || Files.getLastModifiedTime(image).toMillis() < modified) {
+                            this.pendingTiles.putIfAbsent(new Tile(key, tileX, tileZ), modified);
+                            count++;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Logger.warn("Could not look for tile canvases left to encode: " + this.directory);
+            e.printStackTrace();
+        }
+        if (count > 0) {
+            Logger.debug("[" + this.world.getName() + "] Queued " + count + " tile canvases left to encode");
+        }
+    }
+
+    private void encode(@NotNull TileFormat format, @NotNull Tile tile) {
+        int[] pixels = read(tile.key(), tile.x(), tile.z());
+        if (pixels == null) {
+            return;
+        }
+        Path path = TileImage.getFilePath(this.world, tile.key(), 0, tile.x(), tile.z(), format);
+        FileUtil.createDirs(path.getParent());
+        ReadWriteLock lock = TileImage.getLock(path);
+        lock.writeLock().lock();
+        try {
+            format.write(path, pixels);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        this.world.getTileOptimizer().tileWritten(tile.key(), 0, tile.x(), tile.z());
+    }
+
+    private int @Nullable [] read(@NotNull Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        byte[] bytes;
+        try (InputStream in = new InflaterInputStream(Files.newInputStream(path))) {
+            bytes = in.readAllBytes();
+        }
+        if (bytes.length != TILE_SIZE * TILE_SIZE * 4) {
+            Logger.warn("Ignoring corrupt tile canvas: " + path);
+            return null;
+        }
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(pixels);
+        return pixels;
+    }
+
+    private void write(@NotNull Path path, int[] pixels) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(pixels.length * 4);
+        bytes.asIntBuffer().put(pixels);
+        Path tmp = FileUtil.tmp(path);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (OutputStream out = new DeflaterOutputStream(Files.newOutputStream(FileUtil.mkDirs(tmp)), deflater, 0x10000)) {
+            out.write(bytes.array());
+        } finally {
+            deflater.end();
+        }
+        FileUtil.atomicMove(tmp, path);
+    }
+
+    private @NotNull Path getPath(@NotNull String key, int tileX, int tileZ) {
+        return this.directory.resolve(key).resolve(tileX + "_" + tileZ + ".bin");
+    }
+
+    private record Tile(@NotNull String key, int x, int z) {
+    }
+}
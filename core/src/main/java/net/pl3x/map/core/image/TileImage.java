@@ -25,6 +25,9 @@ package net.pl3x.map.core.image;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Map;
@@ -34,9 +37,8 @@ import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import net.pl3x.map.core.Keyed;
 import net.pl3x.map.core.configuration.Config;
-import net.pl3x.map.core.image.io.IO;
+import net.pl3x.map.core.image.io.TileFormat;
 import net.pl3x.map.core.markers.Point;
-import net.pl3x.map.core.util.Colors;
 import net.pl3x.map.core.util.FileUtil;
 import net.pl3x.map.core.world.World;
 import org.jetbrains.annotations.NotNull;
@@ -48,12 +50,18 @@ public class TileImage extends Keyed {
     public static final String DIR_PATH = "%d/%s/";
     public static final String FILE_PATH = "%d_%d.%s";
 
+    private static final VarHandle WRITTEN_BLOCKS = MethodHandles.arrayElementVarHandle(long[].class);
+
     private final World world;
     private final Point region;
 
     private final int[] pixels = new int[512 << 9];
 
-    private final IO.Type io;
+    // one bit per 16x16 block (chunk) of pixels that has been written to.
+    // parts of a region can be scanned on different threads, which share these words
+    private final long[] writtenBlocks = new long[16];
+
+    private final TileFormat format;
 
     private boolean written = false;
 
@@ -62,7 +70,7 @@ public class TileImage extends Keyed {
         this.world = world;
         this.region = region;
 
-        this.io = IO.get(Config.WEB_TILE_FORMAT);
+        this.format = world.getTileFormat(0);
     }
 
     public int getIndex(int x, int z) {
@@ -75,43 +83,123 @@ public class TileImage extends Keyed {
 
     public void setPixel(int x, int z, int color) {
         this.pixels[getIndex(x, z)] = color;
+        int block = ((z & 0x1FF) >> 4 << 5) + ((x & 0x1FF) >> 4);
+        long bit = 1L << block;
+        if ((this.writtenBlocks[block >> 6] & bit) == 0) {
+            WRITTEN_BLOCKS.getAndBitwiseOr(this.writtenBlocks, block >> 6, bit);
+        }
         this.written = true;
     }
 
+    /**
+     * Check if this tile has already been saved to disk at the lowest zoom level.
+     * <p>
+     * A tile saved to its canvas counts as saved, even if its tile image is not encoded yet.
+     *
+     * @return true if the tile exists on disk
+     */
+    public boolean exists() {
+        if (Config.WEB_TILE_CANVAS && this.world.getTileCanvas().exists(getKey(), this.region.x(), this.region.z())) {
+            return true;
+        }
+        return Files.exists(getFilePath(0));
+    }
+
+    private @NotNull Path getFilePath(int zoom) {
+        return getFilePath(this.world, getKey(), zoom, this.region.x() >> zoom, this.region.z() >> zoom, this.format);
+    }
+
+    static @NotNull Path getFilePath(@NotNull World world, @NotNull String key, int zoom, int tileX, int tileZ, @NotNull TileFormat format) {
+        return world.getTilesDirectory()
+                .resolve(String.format(DIR_PATH, zoom, key))
+                .resolve(String.format(FILE_PATH, tileX, tileZ, format.getExtension()));
+    }
+
+    static @NotNull ReadWriteLock getLock(@NotNull Path path) {
+        return FILE_LOCKS.computeIfAbsent(path, k -> new ReentrantReadWriteLock(true));
+    }
+
+    /**
+     * Save the tile at zoom level 0.
+     * <p>
+     * The zoomed out tiles are built from it later on, by the world's {@link TilePyramid}.
+     */
     public void saveToDisk() {
         if (!this.written) {
             return; // nothing written, nothing to save
         }
-        for (int zoom = 0; zoom <= this.world.getConfig().ZOOM_MAX_OUT; zoom++) {
-            Path dirPath = this.world.getTilesDirectory().resolve(String.format(DIR_PATH, zoom, getKey()));
+        if (Config.WEB_TILE_CANVAS) {
+            saveToCanvas();
+            return;
+        }
+        Path filePath = getFilePath(0);
 
-            // create directories if they don't exist
-            FileUtil.createDirs(dirPath);
+        // create directories if they don't exist
+        FileUtil.createDirs(filePath.getParent());
 
-            Path filePath = dirPath.resolve(String.format(FILE_PATH,
-                    this.region.x() >> zoom,
-                    this.region.z() >> zoom,
-                    this.io.getKey()));
+        ReadWriteLock lock = getLock(filePath);
+        lock.writeLock().lock();
 
-            ReadWriteLock lock = FILE_LOCKS.computeIfAbsent(filePath, k -> new ReentrantReadWriteLock(true));
-            lock.writeLock().lock();
+        // wrap all this to ensure we close the file lock even on fail
+        try {
+            // read existing image from disk
+            BufferedImage buffer = getBuffer(filePath);
 
-            // wrap all this to ensure we close the file lock even on fail
-            try {
-                // read existing image from disk
-                BufferedImage buffer = getBuffer(filePath);
+            // write new pixels
+            writePixels(buffer);
 
-                // write new pixels
-                writePixels(buffer, 512 >> zoom, zoom);
+            // finally, save buffer to disk
+            this.format.write(filePath, buffer);
+            this.world.getTileOptimizer().tileWritten(getKey(), 0, this.region.x(), this.region.z());
 
-                // finally, save buffer to disk
-                this.io.write(filePath, buffer);
-            } catch (Throwable t) {
-                t.printStackTrace();
-            }
+            // a canvas left over from when canvases were enabled is out of date now
+            this.world.getTileCanvas().delete(getKey(), this.region.x(), this.region.z());
 
-            lock.writeLock().unlock();
+            // the zoomed out tiles need to be built again
+            this.world.getTilePyramid().tileSaved(getKey(), this.region.x(), this.region.z(),
+                    buffer.getRGB(0, 0, 512, 512, null, 0, 512));
+        } catch (Throwable t) {
+            t.printStackTrace();
         }
+
+        lock.writeLock().unlock();
+    }
+
+    private void saveToCanvas() {
+        try {
+            int[] pixels = this.world.getTileCanvas().patch(getKey(), this.region.x(), this.region.z(), canvas -> {
+                if (canvas == null) {
+                    // no canvas yet, start from the existing tile image
+                    canvas = readTileImage();
+                }
+                writePixels(canvas);
+                return canvas;
+            });
+
+            // the zoomed out tiles need to be built again
+            this.world.getTilePyramid().tileSaved(getKey(), this.region.x(), this.region.z(), pixels);
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    private int[] readTileImage() {
+        Path filePath = getFilePath(0);
+        ReadWriteLock lock = getLock(filePath);
+        lock.readLock().lock();
+        try {
+            if (Files.exists(filePath) && Files.size(filePath) > 0) {
+                BufferedImage buffer = this.format.read(filePath);
+                if (buffer != null) {
+                    return buffer.getRGB(0, 0, 512, 512, null, 0, 512);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new int[512 << 9];
     }
 
     private @NotNull BufferedImage getBuffer(@NotNull Path path) throws IOException {
@@ -119,53 +207,55 @@ public class TileImage extends Keyed {
 
         // try to read existing image
         if (Files.exists(path) && Files.size(path) > 0) {
-            buffer = this.io.read(path);
+            buffer = this.format.read(path);
         }
 
         // if not, create a new image
         if (buffer == null) {
-            buffer = this.io.createBuffer();
+            buffer = this.format.io().createBuffer();
         }
 
         return buffer;
     }
 
-    private void writePixels(@NotNull BufferedImage buffer, int size, int zoom) {
-        int step = 1 << zoom;
-        int baseX = (this.region.x() * size) & 0x1FF;
-        int baseZ = (this.region.z() * size) & 0x1FF;
-        for (int x = 0; x < 512; x += step) {
-            for (int z = 0; z < 512; z += step) {
-                int argb = getPixel(x, z);
-                if (argb == 0) {
-                    // skipping 0 prevents overwrite existing
-                    // parts of the buffer of existing images
-                    continue;
-                }
-                if (step > 1) {
-                    // merge pixel colors instead of skipping them
-                    argb = downSample(x, z, argb, step);
+    private void writePixels(@NotNull BufferedImage buffer) {
+        // only patch the blocks that were written to, the rest of the existing image stays as is
+        for (int block = 0; block < 1024; block++) {
+            if ((this.writtenBlocks[block >> 6] & (1L << block)) == 0) {
+                continue;
+            }
+            int cellX = (block & 31) << 4;
+            int cellZ = (block >> 5) << 4;
+            for (int x = cellX; x < cellX + 16; x++) {
+                for (int z = cellZ; z < cellZ + 16; z++) {
+                    int argb = getPixel(x, z);
+                    if (argb == 0) {
+                        // skipping 0 prevents overwrite existing
+                        // parts of the buffer of existing images
+                        continue;
+                    }
+                    buffer.setRGB(x, z, this.format.io().color(argb));
                 }
-                buffer.setRGB(baseX + (x >> zoom), baseZ + (z >> zoom), this.io.color(argb));
             }
         }
     }
 
-    private int downSample(int x, int z, int rgb, int step) {
-        int a = 0, r = 0, g = 0, b = 0, c = 0;
-        for (int i = 0; i < step; i++) {
-            for (int j = 0; j < step; j++) {
-                if (i != 0 && j != 0) {
-                    rgb = getPixel(x + i, z + j);
+    private void writePixels(int[] canvas) {
+        for (int block = 0; block < 1024; block++) {
+            if ((this.writtenBlocks[block >> 6] & (1L << block)) == 0) {
+                continue;
+            }
+            int cellX = (block & 31) << 4;
+            int cellZ = (block >> 5) << 4;
+            for (int z = cellZ; z < cellZ + 16; z++) {
+                for (int x = cellX; x < cellX + 16; x++) {
+                    int argb = getPixel(x, z);
+                    if (argb != 0) {
+                        canvas[getIndex(x, z)] = argb;
+                    }
                 }
-                a += Colors.alpha(rgb);
-                r += Colors.red(rgb);
-                g += Colors.green(rgb);
-                b += Colors.blue(rgb);
-                c++;
             }
         }
-        return Colors.argb(a / c, r / c, g / c, b / c);
     }
 
     @Override
@@ -0,0 +1,311 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.image;
+
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import net.pl3x.map.core.configuration.Config;
+import net.pl3x.map.core.image.io.TileFormat;
+import net.pl3x.map.core.log.Logger;
+import net.pl3x.map.core.util.FileUtil;
+import net.pl3x.map.core.world.World;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Re-encodes the tile images of a world with the best compression once they stop changing.
+ * <p>
+ * Only tiles whose format has a lossless quality setting, and that were written at a higher quality than the best
+ * compression, are re-encoded. The optimized file only replaces the tile when it is actually smaller.
+ * The tiles to look at are reported by whatever writes them, and kept until they are optimized, across restarts.
+ * Tiles reported while too many are queued are found again later by walking the tiles directory.
+ */
+public class TileOptimizer {
+    // tiles written past this many are not queued, so a full render can not fill the heap
+    private static final int MAX_PENDING = 1 << 16;
+    // tiles are reported right after they are written, allow for a slow write when walking the tiles directory
+    private static final long WRITE_SLACK = 60000L;
+
+    private final World world;
+    private final Map<@NotNull Tile, @NotNull Long> pendingTiles = new ConcurrentHashMap<>(); // <tile, written>
+    private final File file;
+
+    // when the first tile that did not fit in the queue was written, 0 if none were left out
+    private long overflowSince;
+    // when the last tile that did not fit in the queue was written
+    private long lastOverflow;
+
+    public TileOptimizer(@NotNull World world) {
+        this.world = world;
+        this.file = world.getTilesDirectory().resolve(".rto").toFile();
+
+        if (this.file.exists()) {
+            try (DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(this.file)))) {
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    this.pendingTiles.put(new Tile(in.readUTF(), in.readInt(), in.readInt(), in.readInt()), in.readLong());
+                }
+                this.overflowSince = this.lastOverflow = in.readLong();
+            } catch (Throwable ignore) {
+            }
+        }
+    }
+
+    /**
+     * Queue a tile image that was just written to be optimized once it stops changing.
+     *
+     * @param key   renderer key
+     * @param zoom  zoom level
+     * @param tileX tile x coordinate
+     * @param tileZ tile z coordinate
+     */
+    public void tileWritten(@NotNull String key, int zoom, int tileX, int tileZ) {
+        if (!Config.WEB_TILE_OPTIMIZER) {
+            return;
+        }
+        TileFormat format = this.world.getTileFormat(zoom);
+        if (!format.io().hasLosslessQuality() || format.quality() <= 0.0D) {
+            // nothing to gain from encoding these again
+            return;
+        }
+        Tile tile = new Tile(key, zoom, tileX, tileZ);
+        long now = System.currentTimeMillis();
+        if (this.pendingTiles.size() >= MAX_PENDING && !this.pendingTiles.containsKey(tile)) {
+            // no room, the tiles directory is walked for it later
+            synchronized (this) {
+                if (this.overflowSince == 0) {
+                    this.overflowSince = now;
+                }
+                this.lastOverflow = now;
+            }
+            return;
+        }
+        this.pendingTiles.put(tile, now);
+    }
+
+    /**
+     * Re-encode every queued tile that has not changed for {@link Config#WEB_TILE_OPTIMIZER_MIN_AGE} seconds.
+     * <p>
+     * If tiles were left out of the queue, the tiles directory is walked for them once the queue is done.
+     *
+     * @param stop checked before every tile, return true to stop right away
+     * @return true if every queued tile was visited, false if the pass was cut short
+     */
+    public boolean optimize(@NotNull BooleanSupplier stop) {
+        long changedBefore = System.currentTimeMillis() - Config.WEB_TILE_OPTIMIZER_MIN_AGE * 1000L;
+        long saved = 0;
+        int count = 0;
+        try {
+            for (Map.Entry<Tile, Long> entry : this.pendingTiles.entrySet()) {
+                if (stop.getAsBoolean()) {
+                    return false;
+                }
+                long written = entry.getValue();
+                if (written > changedBefore) {
+                    continue;
+                }
+                Tile tile = entry.getKey();
+                // only forget the tile if it was not written again in the meantime
+                if (!this.pendingTiles.remove(tile, written)) {
+                    continue;
+                }
+                long bytes = optimize(tile, changedBefore);
+                if (bytes >= 0) {
+                    saved += bytes;
+                    count++;
+                }
+            }
+            if (getOverflowSince() == 0) {
+                return true;
+            }
+            // everything queued is done, look for the tiles that did not fit
+            long started = System.currentTimeMillis();
+            long since = getOverflowSince() - WRITE_SLACK;
+            boolean complete = true;
+            try (DirectoryStream<Path> zoomDirs = Files.newDirectoryStream(this.world.getTilesDirectory(), Files::isDirectory)) {
+                for (Path zoomDir : zoomDirs) {
+                    int zoom;
+                    try {
+                        zoom = Integer.parseInt(zoomDir.getFileName().toString());
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    String extension = "." + this.world.getTileFormat(zoom).getExtension();
+                    try (DirectoryStream<Path> keyDirs = Files.newDirectoryStream(zoomDir, Files::isDirectory)) {
+                        for (Path keyDir : keyDirs) {
+                            String key = keyDir.getFileName().toString();
+                            try (DirectoryStream<Path> files = Files.newDirectoryStream(keyDir, "*_*" + extension)) {
+                                for (Path path : files) {
+                                    if (stop.getAsBoolean()) {
+                                        return false;
+                                    }
+                                    Tile tile = parseTile(key, zoom, path.getFileName().toString(), extension);
+                                    if (tile == null || this.pendingTiles.containsKey(tile)) {
+                                        continue;
+                                    }
+                                    long modified = Files.getLastModifiedTime(path).toMillis();
+                                    if (modified < since) {
+                                        // written before anything was left out, so it was queued back then
+                                        continue;
+                                    }
+                                    if (modified > changedBefore) {
+                                        // still changing, walk again next time
+                                        complete = false;
+                                        continue;
+                                    }
+                                    long bytes = optimize(tile, changedBefore);
+                                    if (bytes >= 0) {
+                                        saved += bytes;
+                                        count++;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Logger.warn("Could not look for tiles to optimize in world " + this.world.getName());
+                e.printStackTrace();
+                return true;
+            }
+            synchronized (this) {
+                // only forget about the left out tiles if none were left out while walking
+                if (complete && this.lastOverflow < started) {
+                    this.overflowSince = 0;
+                }
+            }
+        } finally {
+            if (count > 0) {
+                Logger.debug("[" + this.world.getName() + "] Optimized " + count + " tiles, saved " + saved + " bytes");
+            }
+        }
+        return true;
+    }
+
+    public void save() {
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(this.file)))) {
+            Map<Tile, Long> tiles = Map.copyOf(this.pendingTiles);
+            out.writeInt(tiles.size());
+            for (Map.Entry<Tile, Long> entry : tiles.entrySet()) {
+                Tile tile = entry.getKey();
+                out.writeUTF(tile.key());
+                out.writeInt(tile.zoom());
+                out.writeInt(tile.x());
+                out.writeInt(tile.z());
+                out.writeLong(entry.getValue());
+            }
+            out.writeLong(getOverflowSince());
+            out.flush();
+        } catch (Throwable ignore) {
+        }
+    }
+
+    private synchronized long getOverflowSince() {
+        return this.overflowSince;
+    }
+
+    private @Nullable Tile parseTile(@NotNull String key, int zoom, @NotNull String name, @NotNull String extension) {
+        String[] split = name.substring(0, name.length() - extension.length()).split("_");
+        if (split.length != 2) {
+            return null;
+        }
+        try {
+            return new Tile(key, zoom, Integer.parseInt(split[0]), Integer.parseInt(split[1]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private long optimize(@NotNull Tile tile, long changedBefore) {
+        TileFormat format = this.world.getTileFormat(tile.zoom());
+        if (!format.io().hasLosslessQuality() || format.quality() <= 0.0D) {
+            return -1;
+        }
+        try {
+            return optimize(format, tile, changedBefore);
+        } catch (IOException e) {
+            Logger.warn("Could not optimize tile " + tile + " of world " + this.world.getName());
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    private long optimize(@NotNull TileFormat format, @NotNull Tile tile, long changedBefore) throws IOException {
+        Path path = TileImage.getFilePath(this.world, tile.key(), tile.zoom(), tile.x(), tile.z(), format);
+        if (!Files.exists(path)) {
+            return -1;
+        }
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        if (modified > changedBefore) {
+            // changed since it was queued, look at it again later
+            this.pendingTiles.putIfAbsent(tile, modified);
+            return -1;
+        }
+        Path optimized = path.resolveSibling("." + path.getFileName() + ".optimized");
+        ReadWriteLock lock = TileImage.getLock(path);
+        lock.writeLock().lock();
+        try {
+            if (Files.getLastModifiedTime(path).toMillis() != modified) {
+                // written to while we were waiting for the lock
+                this.pendingTiles.putIfAbsent(tile, System.currentTimeMillis());
+                return -1;
+            }
+            BufferedImage buffer = format.read(path);
+            if (buffer == null) {
+                return -1;
+            }
+            if (!format.io().write(optimized, buffer, 0.0D)) {
+                // never replace the tile with a file that was not written completely
+                Files.deleteIfExists(optimized);
+                return -1;
+            }
+            long saved = Files.size(path) - Files.size(optimized);
+            if (saved > 0) {
+                FileUtil.atomicMove(optimized, path);
+            } else {
+                Files.deleteIfExists(optimized);
+            }
+            return saved > 0 ? saved : -1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private record Tile(@NotNull String key, int zoom, int x, int z) {
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.image;
+
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import net.pl3x.map.core.Pl3xMap;
+import net.pl3x.map.core.configuration.Config;
+import net.pl3x.map.core.image.io.TileFormat;
+import net.pl3x.map.core.log.Logger;
+import net.pl3x.map.core.renderer.task.RegionProcessor;
+import net.pl3x.map.core.util.FileUtil;
+import net.pl3x.map.core.util.Pixels;
+import net.pl3x.map.core.world.World;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Builds the zoomed out tiles of a world from the tiles one zoom level below them.
+ * <p>
+ * Saving a region only writes its tile at zoom level 0 and marks the tile above it as dirty. Dirty tiles are built
+ * from their four children on the render threads, one zoom level at a time, from the bottom up. Only tiles without
+ * any region under them still waiting to be rendered are built, so every tile is built once its area settled instead
+ * of once for every region under it. Tiles built along the way are kept in memory for the next level up, as far as
+ * the memory budget allows.
+ */
+public class TilePyramid {
+    private static final int TILE_SIZE = 512;
+    private static final long TILE_BYTES = TILE_SIZE * TILE_SIZE * 4L;
+
+    private final World world;
+    private final Set<@NotNull Tile> dirtyTiles = ConcurrentHashMap.newKeySet();
+    private final Map<@NotNull Tile, int[]> cachedTiles = new ConcurrentHashMap<>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final AtomicBoolean building = new AtomicBoolean();
+    private volatile boolean buildAgain;
+    private final long budget;
+    private final File file;
+
+    public TilePyramid(@NotNull World world) {
+        this.world = world;
+        this.budget = Runtime.getRuntime().maxMemory() / 8;
+        this.file = world.getTilesDirectory().resolve(".rpd").toFile();
+
+        if (this.file.exists()) {
+            try (DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(this.file)))) {
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    this.dirtyTiles.add(new Tile(in.readUTF(), in.readInt(), in.readInt(), in.readInt()));
+                }
+            } catch (Throwable ignore) {
+            }
+        }
+    }
+
+    /**
+     * Mark the tile above a freshly saved zoom level 0 tile as dirty.
+     *
+     * @param key     renderer key
+     * @param regionX region x coordinate
+     * @param regionZ region z coordinate
+     * @param pixels  argb pixels of the saved tile
+     */
+    public void tileSaved(@NotNull String key, int regionX, int regionZ, int[] pixels) {
+        if (this.world.getConfig().ZOOM_MAX_OUT <= 0) {
+            return;
+        }
+        Tile tile = new Tile(key, 0, regionX, regionZ);
+        cache(tile, pixels);
+        this.dirtyTiles.add(tile.parent());
+    }
+
+    /**
+     * Build the dirty tiles whose area settled on the render threads, unless a build is running already.
+     * <p>
+     * A build requested while another one is running is run again right after it.
+     */
+    public void buildAsync() {
+        if (this.dirtyTiles.isEmpty()) {
+            return;
+        }
+        this.buildAgain = true;
+        if (!this.building.compareAndSet(false, true)) {
+            return;
+        }
+        CompletableFuture.runAsync(() -> {
+            try {
+                while (this.buildAgain) {
+                    this.buildAgain = false;
+                    build();
+                }
+            } catch (Throwable t) {
+                t.printStackTrace();
+            } finally {
+                this.building.set(false);
+            }
+            // requested after the last pass, but before the flag was cleared
+            if (this.buildAgain) {
+                buildAsync();
+            }
+        }, Pl3xMap.api().getRenderExecutor());
+    }
+
+    /**
+     * Build the dirty tiles whose area settled, from the lowest zoom level up.
+     */
+    public void build() {
+        int maxZoom = this.world.getConfig().ZOOM_MAX_OUT;
+        Executor executor = Pl3xMap.api().getRenderExecutor();
+        RegionProcessor processor = Pl3xMap.api().getRegionProcessor();
+
+        for (int zoom = 1; zoom <= maxZoom; zoom++) {
+            List<Tile> tiles = new ArrayList<>();
+            Iterator<Tile> iter = this.dirtyTiles.iterator();
+            while (iter.hasNext()) {
+                Tile tile = iter.next();
+                if (tile.zoom() == zoom && processor.isSettled(this.world, zoom, tile.x(), tile.z())) {
+                    tiles.add(tile);
+                    iter.remove();
+                }
+            }
+            if (!tiles.isEmpty()) {
+                Logger.debug("[" + this.world.getName() + "] Building " + tiles.size() + " tiles at zoom level " + zoom);
+                buildLevel(tiles, zoom < maxZoom, executor);
+            }
+        }
+
+        // zoom levels beyond the configured max are never built, and neither are their tiles kept for them
+        this.dirtyTiles.removeIf(tile -> tile.zoom() > maxZoom);
+        uncache(maxZoom);
+    }
+
+    private void buildLevel(@NotNull List<@NotNull Tile> tiles, boolean hasParent, @NotNull Executor executor) {
+        List<ForkJoinTask<?>> tasks = tiles.stream().<ForkJoinTask<?>>map(tile -> ForkJoinTask.adapt(() -> {
+            try {
+                buildTile(tile, hasParent);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        })).toList();
+        if (!(executor instanceof ForkJoinPool pool)) {
+            tasks.forEach(ForkJoinTask::invoke);
+        } else if (ForkJoinTask.getPool() == pool) {
+            // already on a render thread, help build the level instead of blocking the thread until it is done
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        }
+    }
+
+    /**
+     * Build a single tile right away, along with the dirty tiles below it that it is built from.
+     *
+     * @param key   renderer key
+     * @param zoom  zoom level of the tile
+     * @param tileX tile x coordinate
+     * @param tileZ tile z coordinate
+     */
+    public void build(@NotNull String key, int zoom, int tileX, int tileZ) {
+        int maxZoom = this.world.getConfig().ZOOM_MAX_OUT;
+        if (zoom > 0 && zoom <= maxZoom) {
+            build(new Tile(key, zoom, tileX, tileZ), maxZoom);
+        }
+    }
+
+    private void build(@NotNull Tile tile, int maxZoom) {
+        if (tile.zoom() > 1) {
+            for (int i = 0; i < 4; i++) {
+                Tile child = tile.child(i & 1, i >> 1);
+                if (this.dirtyTiles.contains(child)) {
+                    build(child, maxZoom);
+                }
+            }
+        }
+        if (this.dirtyTiles.remove(tile)) {
+            buildTile(tile, tile.zoom() < maxZoom);
+        }
+    }
+
+    public void save() {
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(this.file)))) {
+            List<Tile> tiles = new ArrayList<>(this.dirtyTiles);
+            out.writeInt(tiles.size());
+            for (Tile tile : tiles) {
+                out.writeUTF(tile.key());
+                out.writeInt(tile.zoom());
+                out.writeInt(tile.x());
+                out.writeInt(tile.z());
+            }
+            out.flush();
+        } catch (Throwable ignore) {
+        }
+    }
+
+    private void buildTile(@NotNull Tile tile, boolean hasParent) {
+        int[][] children = new int[4][];
+        boolean found = false;
+        boolean missing = false;
+        for (int i = 0; i < 4; i++) {
+            children[i] = getPixels(tile.child(i & 1, i >> 1));
+            found |= children[i] != null;
+            missing |= children[i] == null;
+        }
+        if (!found) {
+            return;
+        }
+
+        // a child that can not be read keeps what the tile already shows in its quarter,
+        // instead of erasing it (e.g. after the tile format of the zoom level below changed)
+        int[] pixels = missing ? readPixels(tile) : null;
+        if (pixels == null) {
+            pixels = new int[TILE_SIZE * TILE_SIZE];
+        }
+
+        int half = TILE_SIZE >> 1;
+        for (int i = 0; i < 4; i++) {
+            int[] child = children[i];
+            if (child == null) {
+                continue;
+            }
+            // average the child down into its quarter of this tile
+            int offset = (i >> 1) * half * TILE_SIZE + (i & 1) * half;
+            for (int z = 0; z < half; z++) {
+                Pixels.boxFilter(child, (z << 1) * TILE_SIZE, TILE_SIZE, pixels, offset + z * TILE_SIZE, half);
+            }
+        }
+
+        TileFormat format = this.world.getTileFormat(tile.zoom());
+        Path path = tile.getPath(this.world, format);
+        FileUtil.createDirs(path.getParent());
+        ReadWriteLock lock = TileImage.getLock(path);
+        lock.writeLock().lock();
+        try {
+            format.write(path, pixels);
+            this.world.getTileOptimizer().tileWritten(tile.key(), tile.zoom(), tile.x(), tile.z());
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+        lock.writeLock().unlock();
+
+        if (hasParent) {
+            cache(tile, pixels);
+            this.dirtyTiles.add(tile.parent());
+        }
+    }
+
+    private int @Nullable [] getPixels(@NotNull Tile tile) {
+        // every tile is the child of exactly one parent, so it is only needed once
+        int[] pixels = this.cachedTiles.remove(tile);
+        if (pixels != null) {
+            this.cachedBytes.addAndGet(-TILE_BYTES);
+            return pixels;
+        }
+        return readPixels(tile);
+    }
+
+    private int @Nullable [] readPixels(@NotNull Tile tile) {
+        int[] pixels;
+        if (tile.zoom() == 0 && Config.WEB_TILE_CANVAS) {
+            // the tile image might not be encoded yet, the canvas is always up to date
+            pixels = this.world.getTileCanvas().read(tile.key(), tile.x(), tile.z());
+            if (pixels != null) {
+                return pixels;
+            }
+        }
+
+        TileFormat format = this.world.getTileFormat(tile.zoom());
+        Path path = tile.getPath(this.world, format);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        BufferedImage buffer = null;
+        ReadWriteLock lock = TileImage.getLock(path);
+        lock.readLock().lock();
+        try {
+            if (Files.size(path) > 0) {
+                buffer = format.read(path);
+            }
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+        lock.readLock().unlock();
+
+        if (buffer == null || buffer.getWidth() != TILE_SIZE || buffer.getHeight() != TILE_SIZE) {
+            return null;
+        }
+        return buffer.getRGB(0, 0, TILE_SIZE, TILE_SIZE, null, 0, TILE_SIZE);
+    }
+
+    private void cache(@NotNull Tile tile, int[] pixels) {
+        if (this.cachedBytes.addAndGet(TILE_BYTES) > this.budget) {
+            this.cachedBytes.addAndGet(-TILE_BYTES);
+            return;
+        }
+        if (this.cachedTiles.put(tile, pixels) != null) {
+            // replaced a tile that was saved again before it was built into its parent
+            this.cachedBytes.addAndGet(-TILE_BYTES);
+        }
+    }
+
+    private void uncache(int minZoom) {
+        for (Tile tile : new ArrayList<>(this.cachedTiles.keySet())) {
+            if (tile.zoom() >= minZoom && this.cachedTiles.remove(tile) != null) {
+                this.cachedBytes.addAndGet(-TILE_BYTES);
+            }
+        }
+    }
+
+    private record Tile(@NotNull String key, int zoom, int x, int z) {
+        private @NotNull Tile parent() {
+            return new Tile(this.key, this.zoom + 1, this.x >> 1, this.z >> 1);
+        }
+
+        private @NotNull Tile child(int dx, int dz) {
+            return new Tile(this.key, this.zoom - 1, (this.x << 1) + dx, (this.z << 1) + dz);
+        }
+
+        private @NotNull Path getPath(@NotNull World world, @NotNull TileFormat format) {
+            return TileImage.getFilePath(world, this.key, this.zoom, this.x, this.z, format);
+        }
+    }
+}
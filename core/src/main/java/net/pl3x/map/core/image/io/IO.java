@@ -52,6 +52,8 @@ public abstract class IO {
         IO.register("jpg", new Jpg());
         IO.register("jpeg", get("jpg"));
         IO.register("png", new Png());
+        IO.register("png8", new Png8());
+        IO.register("webp", new Webp());
     }
 
     public static void register(@NotNull String name, @NotNull Type type) {
@@ -82,6 +84,26 @@ public abstract class IO {
             super(key);
         }
 
+        /**
+         * Get the file extension of images of this type.
+         *
+         * @return file extension, without the dot
+         */
+        public @NotNull String getExtension() {
+            return getKey();
+        }
+
+        /**
+         * Check if the quality setting of this type only trades encoding time for file size, without losing detail.
+         * <p>
+         * Tiles of these types can be re-encoded at a lower quality later on to make them smaller.
+         *
+         * @return true if lower qualities only compress better
+         */
+        public boolean hasLosslessQuality() {
+            return false;
+        }
+
         public @NotNull BufferedImage createBuffer() {
             return new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB);
         }
@@ -94,7 +116,7 @@ public abstract class IO {
             BufferedImage buffer = null;
             ImageReader reader = null;
             try (ImageInputStream in = ImageIO.createImageInputStream(Files.newInputStream(path))) {
-                reader = ImageIO.getImageReadersBySuffix(getKey()).next();
+                reader = ImageIO.getImageReadersBySuffix(getExtension()).next();
                 reader.setInput(in, false, true);
                 buffer = reader.read(0);
                 in.flush();
@@ -109,18 +131,51 @@ public abstract class IO {
             return buffer;
         }
 
-        public void write(@NotNull Path path, @NotNull BufferedImage buffer) {
+        /**
+         * Write a tile image from raw argb pixels.
+         *
+         * @param path   file to write to
+         * @param pixels 512x512 argb pixels, row by row
+         * @return true if the image was written, false if the file was left as it was
+         */
+        public boolean write(@NotNull Path path, int[] pixels) {
+            return write(path, pixels, Config.WEB_TILE_QUALITY);
+        }
+
+        /**
+         * Write a tile image from raw argb pixels.
+         *
+         * @param path    file to write to
+         * @param pixels  512x512 argb pixels, row by row
+         * @param quality image quality (0.0 - 1.0), for formats that honor it
+         * @return true if the image was written, false if the file was left as it was
+         */
+        public boolean write(@NotNull Path path, int[] pixels, double quality) {
+            int[] colors = new int[pixels.length];
+            for (int i = 0; i < pixels.length; i++) {
+                colors[i] = color(pixels[i]);
+            }
+            BufferedImage buffer = createBuffer();
+            buffer.setRGB(0, 0, 512, 512, colors, 0, 512);
+            return write(path, buffer, quality);
+        }
+
+        public boolean write(@NotNull Path path, @NotNull BufferedImage buffer) {
+            return write(path, buffer, Config.WEB_TILE_QUALITY);
+        }
+
+        public boolean write(@NotNull Path path, @NotNull BufferedImage buffer, double quality) {
             Path tmp = FileUtil.tmp(path);
             ImageWriter writer = null;
             try (ImageOutputStream out = ImageIO.createImageOutputStream(tmp.toFile())) {
-                writer = ImageIO.getImageWritersBySuffix(getKey()).next();
+                writer = ImageIO.getImageWritersBySuffix(getExtension()).next();
                 ImageWriteParam param = writer.getDefaultWriteParam();
                 if (param.canWriteCompressed()) {
                     param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
                     if (param.getCompressionType() == null) {
                         param.setCompressionType(param.getCompressionTypes()[0]);
                     }
-                    param.setCompressionQuality((float) Config.WEB_TILE_QUALITY);
+                    param.setCompressionQuality((float) quality);
                 }
                 writer.setOutput(out);
                 writer.write(null, new IIOImage(buffer, null, null), param);
@@ -128,17 +183,45 @@ public abstract class IO {
             } catch (IOException e) {
                 Logger.warn("Could not write tile image: " + tmp);
                 e.printStackTrace();
+                return discard(tmp);
             } finally {
                 if (writer != null) {
                     writer.dispose();
                 }
             }
+            return move(tmp, path);
+        }
+
+        /**
+         * Move a fully written temporary file over the tile image.
+         *
+         * @param tmp  temporary file
+         * @param path tile image
+         * @return true if the tile image was replaced
+         */
+        protected static boolean move(@NotNull Path tmp, @NotNull Path path) {
             try {
                 FileUtil.atomicMove(tmp, path);
+                return true;
             } catch (IOException e) {
                 Logger.warn("Could not write tile image: " + path);
                 e.printStackTrace();
+                return false;
+            }
+        }
+
+        /**
+         * Delete a temporary file that was not written completely, so it never replaces the tile image.
+         *
+         * @param tmp temporary file
+         * @return always false
+         */
+        protected static boolean discard(@NotNull Path tmp) {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignore) {
             }
+            return false;
         }
     }
 }
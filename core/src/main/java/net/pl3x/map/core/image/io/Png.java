@@ -23,8 +23,76 @@
  */
 package net.pl3x.map.core.image.io;
 
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import net.pl3x.map.core.log.Logger;
+import net.pl3x.map.core.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
 public class Png extends IO.Type {
     public Png() {
-        super("png");
+        this("png");
+    }
+
+    protected Png(@NotNull String key) {
+        super(key);
+    }
+
+    @Override
+    public boolean hasLosslessQuality() {
+        // quality is only the deflate level
+        return true;
+    }
+
+    @Override
+    public @Nullable BufferedImage read(@NotNull Path path) {
+        BufferedImage buffer = super.read(path);
+        if (buffer == null || buffer.getType() == BufferedImage.TYPE_INT_ARGB) {
+            return buffer;
+        }
+        // opaque and palette tiles are read back as rgb or indexed images, which can not take new translucent pixels
+        int width = buffer.getWidth();
+        int height = buffer.getHeight();
+        BufferedImage argb = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        argb.setRGB(0, 0, width, height, buffer.getRGB(0, 0, width, height, null, 0, width), 0, width);
+        return argb;
+    }
+
+    @Override
+    public boolean write(@NotNull Path path, int[] pixels, double quality) {
+        return write(path, pixels, 512, 512, quality);
+    }
+
+    @Override
+    public boolean write(@NotNull Path path, @NotNull BufferedImage buffer, double quality) {
+        int width = buffer.getWidth();
+        int height = buffer.getHeight();
+        return write(path, buffer.getRGB(0, 0, width, height, null, 0, width), width, height, quality);
+    }
+
+    private boolean write(@NotNull Path path, int[] pixels, int width, int height, double quality) {
+        Path tmp = FileUtil.tmp(path);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 0x10000)) {
+            encode(out, pixels, width, height, getLevel(quality));
+        } catch (IOException e) {
+            Logger.warn("Could not write tile image: " + tmp);
+            e.printStackTrace();
+            return discard(tmp);
+        }
+        return move(tmp, path);
+    }
+
+    protected void encode(@NotNull OutputStream out, int[] pixels, int width, int height, int level) throws IOException {
+        PngEncoder.encode(out, pixels, width, height, level);
+    }
+
+    private static int getLevel(double quality) {
+        // same mapping of quality to deflate level as the ImageIO png writer
+        return Math.max(0, Math.min(9, (int) (9 * (1.0 - quality))));
     }
 }
@@ -0,0 +1,350 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.image.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Encodes argb pixels, or palette indices, straight to PNG.
+ * <p>
+ * Every thread keeps its own encoder, so the deflater and the row buffers are reused from one image to the next.
+ * Each row is filtered with whichever PNG filter leaves the smallest sum of absolute differences, and images
+ * without any transparency are written as RGB instead of RGBA.
+ */
+public final class PngEncoder {
+    private static final ThreadLocal<@NotNull PngEncoder> ENCODERS = ThreadLocal.withInitial(PngEncoder::new);
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] IHDR = {'I', 'H', 'D', 'R'};
+    private static final byte[] PLTE = {'P', 'L', 'T', 'E'};
+    private static final byte[] TRNS = {'t', 'R', 'N', 'S'};
+    private static final byte[] IDAT = {'I', 'D', 'A', 'T'};
+    private static final byte[] IEND = {'I', 'E', 'N', 'D'};
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private final Deflater deflater = new Deflater();
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[8];
+    private final byte[] data = new byte[0x10000];
+    private int dataLength;
+
+    private byte[] previous = new byte[0];
+    private byte[] current = new byte[0];
+    private byte[][] filtered = new byte[5][0];
+
+    private PngEncoder() {
+    }
+
+    /**
+     * Encode an image to PNG.
+     *
+     * @param out    stream to write the PNG to
+     * @param pixels argb pixels, row by row
+     * @param width  image width
+     * @param height image height
+     * @param level  deflate level, from 0 (fastest, largest) to 9 (slowest, smallest)
+     * @throws IOException if writing to the stream fails
+     */
+    public static void encode(@NotNull OutputStream out, int[] pixels, int width, int height, int level) throws IOException {
+        ENCODERS.get().write(out, pixels, width, height, level);
+    }
+
+    /**
+     * Encode a palette image to PNG.
+     * <p>
+     * Palette entries that are not fully opaque have to come first, so the transparency chunk can stop at the last of them.
+     *
+     * @param out     stream to write the PNG to
+     * @param indices palette index of every pixel, row by row
+     * @param palette argb palette, at most 256 colors
+     * @param width   image width
+     * @param height  image height
+     * @param level   deflate level, from 0 (fastest, largest) to 9 (slowest, smallest)
+     * @throws IOException if writing to the stream fails
+     */
+    public static void encode(@NotNull OutputStream out, byte[] indices, int[] palette, int width, int height, int level) throws IOException {
+        ENCODERS.get().write(out, indices, palette, width, height, level);
+    }
+
+    private void write(@NotNull OutputStream out, int[] pixels, int width, int height, int level) throws IOException {
+        boolean alpha = false;
+        for (int pixel : pixels) {
+            if (pixel >>> 24 != 0xFF) {
+                alpha = true;
+                break;
+            }
+        }
+        int bpp = alpha ? 4 : 3;
+        int rowLength = width * bpp;
+        allocateRows(rowLength);
+        // the first row is filtered against a row of zeros
+        Arrays.fill(this.previous, (byte) 0);
+
+        // color type rgba or rgb
+        writeHeader(out, width, height, 8, alpha ? 6 : 2);
+
+        start(level);
+        // a couple of filters are enough at the fastest levels
+        int filters = level < 4 ? FILTER_UP : FILTER_PAETH;
+
+        for (int y = 0; y < height; y++) {
+            byte[] row = this.current;
+            for (int x = 0, i = y * width, j = 0; x < width; x++, i++) {
+                int pixel = pixels[i];
+                row[j++] = (byte) (pixel >> 16);
+                row[j++] = (byte) (pixel >> 8);
+                row[j++] = (byte) pixel;
+                if (alpha) {
+                    row[j++] = (byte) (pixel >>> 24);
+                }
+            }
+
+            byte[] best = filter(row, this.previous, bpp, filters);
+            deflate(out, best, best.length);
+
+            this.current = this.previous;
+            this.previous = row;
+        }
+
+        finish(out);
+    }
+
+    private void write(@NotNull OutputStream out, byte[] indices, int[] palette, int width, int height, int level) throws IOException {
+        // pack as many pixels into a byte as the palette allows
+        int depth = palette.length <= 2 ? 1 : palette.length <= 4 ? 2 : palette.length <= 16 ? 4 : 8;
+        int rowLength = (width * depth + 7) >> 3;
+        allocateRows(rowLength);
+
+        // color type palette
+        writeHeader(out, width, height, depth, 3);
+
+        byte[] plte = new byte[palette.length * 3];
+        int transparent = 0;
+        for (int i = 0; i < palette.length; i++) {
+            plte[i * 3] = (byte) (palette[i] >> 16);
+            plte[i * 3 + 1] = (byte) (palette[i] >> 8);
+            plte[i * 3 + 2] = (byte) palette[i];
+            if (palette[i] >>> 24 != 0xFF) {
+                transparent = i + 1;
+            }
+        }
+        writeChunk(out, PLTE, plte, plte.length);
+        if (transparent > 0) {
+            byte[] trns = new byte[transparent];
+            for (int i = 0; i < transparent; i++) {
+                trns[i] = (byte) (palette[i] >>> 24);
+            }
+            writeChunk(out, TRNS, trns, trns.length);
+        }
+
+        start(level);
+
+        // palette indices do not predict well, so rows are left unfiltered
+        byte[] row = this.filtered[FILTER_NONE];
+        row[0] = FILTER_NONE;
+        int perByte = 8 / depth;
+        for (int y = 0; y < height; y++) {
+            int i = y * width;
+            if (depth == 8) {
+                System.arraycopy(indices, i, row, 1, width);
+            } else {
+                Arrays.fill(row, 1, rowLength + 1, (byte) 0);
+                for (int x = 0; x < width; x++, i++) {
+                    int shift = 8 - depth * (x % perByte + 1);
+                    row[1 + x / perByte] |= (byte) ((indices[i] & 0xFF) << shift);
+                }
+            }
+            deflate(out, row, rowLength + 1);
+        }
+
+        finish(out);
+    }
+
+    private void allocateRows(int rowLength) {
+        if (this.current.length != rowLength) {
+            this.previous = new byte[rowLength];
+            this.current = new byte[rowLength];
+            this.filtered = new byte[5][rowLength + 1];
+        }
+    }
+
+    private void writeHeader(@NotNull OutputStream out, int width, int height, int depth, int colorType) throws IOException {
+        out.write(SIGNATURE);
+
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = (byte) depth;
+        ihdr[9] = (byte) colorType;
+        writeChunk(out, IHDR, ihdr, ihdr.length);
+    }
+
+    private void start(int level) {
+        this.deflater.reset();
+        this.deflater.setLevel(level);
+        this.dataLength = 0;
+    }
+
+    private void deflate(@NotNull OutputStream out, byte[] row, int length) throws IOException {
+        this.deflater.setInput(row, 0, length);
+        while (!this.deflater.needsInput()) {
+            deflate(out);
+        }
+    }
+
+    private void finish(@NotNull OutputStream out) throws IOException {
+        this.deflater.finish();
+        while (!this.deflater.finished()) {
+            deflate(out);
+        }
+        if (this.dataLength > 0) {
+            writeChunk(out, IDAT, this.data, this.dataLength);
+        }
+
+        writeChunk(out, IEND, this.data, 0);
+    }
+
+    private byte @NotNull [] filter(byte[] row, byte[] previous, int bpp, int filters) {
+        byte[] best = null;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = FILTER_NONE; type <= filters; type++) {
+            byte[] out = this.filtered[type];
+            out[0] = (byte) type;
+            long sum = switch (type) {
+                case FILTER_SUB -> filterSub(row, out, bpp);
+                case FILTER_UP -> filterUp(row, previous, out);
+                case FILTER_AVERAGE -> filterAverage(row, previous, out, bpp);
+                case FILTER_PAETH -> filterPaeth(row, previous, out, bpp);
+                default -> filterNone(row, out);
+            };
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = out;
+            }
+        }
+        return best;
+    }
+
+    private static long filterNone(byte[] row, byte[] out) {
+        long sum = 0;
+        for (int i = 0; i < row.length; i++) {
+            out[i + 1] = row[i];
+            sum += Math.abs(row[i]);
+        }
+        return sum;
+    }
+
+    private static long filterSub(byte[] row, byte[] out, int bpp) {
+        long sum = 0;
+        for (int i = 0; i < row.length; i++) {
+            byte value = (byte) (row[i] - (i < bpp ? 0 : row[i - bpp]));
+            out[i + 1] = value;
+            sum += Math.abs(value);
+        }
+        return sum;
+    }
+
+    private static long filterUp(byte[] row, byte[] previous, byte[] out) {
+        long sum = 0;
+        for (int i = 0; i < row.length; i++) {
+            byte value = (byte) (row[i] - previous[i]);
+            out[i + 1] = value;
+            sum += Math.abs(value);
+        }
+        return sum;
+    }
+
+    private static long filterAverage(byte[] row, byte[] previous, byte[] out, int bpp) {
+        long sum = 0;
+        for (int i = 0; i < row.length; i++) {
+            int a = i < bpp ? 0 : row[i - bpp] & 0xFF;
+            byte value = (byte) (row[i] - ((a + (previous[i] & 0xFF)) >> 1));
+            out[i + 1] = value;
+            sum += Math.abs(value);
+        }
+        return sum;
+    }
+
+    private static long filterPaeth(byte[] row, byte[] previous, byte[] out, int bpp) {
+        long sum = 0;
+        for (int i = 0; i < row.length; i++) {
+            int a = i < bpp ? 0 : row[i - bpp] & 0xFF;
+            int c = i < bpp ? 0 : previous[i - bpp] & 0xFF;
+            byte value = (byte) (row[i] - paeth(a, previous[i] & 0xFF, c));
+            out[i + 1] = value;
+            sum += Math.abs(value);
+        }
+        return sum;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    private void deflate(@NotNull OutputStream out) throws IOException {
+        int length = this.deflater.deflate(this.data, this.dataLength, this.data.length - this.dataLength);
+        this.dataLength += length;
+        if (this.dataLength == this.data.length) {
+            writeChunk(out, IDAT, this.data, this.dataLength);
+            this.dataLength = 0;
+        }
+    }
+
+    private void writeChunk(@NotNull OutputStream out, byte[] type, byte[] data, int length) throws IOException {
+        putInt(this.header, 0, length);
+        System.arraycopy(type, 0, this.header, 4, 4);
+        out.write(this.header, 0, 8);
+        out.write(data, 0, length);
+
+        this.crc.reset();
+        this.crc.update(type);
+        this.crc.update(data, 0, length);
+        putInt(this.header, 0, (int) this.crc.getValue());
+        out.write(this.header, 0, 4);
+    }
+
+    private static void putInt(byte[] bytes, int index, int value) {
+        bytes[index] = (byte) (value >>> 24);
+        bytes[index + 1] = (byte) (value >>> 16);
+        bytes[index + 2] = (byte) (value >>> 8);
+        bytes[index + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.image.io;
+
+import java.util.Arrays;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reduces argb pixels to a palette of at most 256 colors.
+ * <p>
+ * Images that already have 256 colors or fewer keep every color exactly. Anything with more colors, usually
+ * zoomed out tiles, is reduced with median cut: the colors are split into boxes along their widest channel
+ * until there are 256 boxes, and every box becomes the weighted average of the colors in it.
+ * <p>
+ * Every thread keeps its own quantizer, so the lookup tables are reused from one image to the next.
+ */
+public final class Quantizer {
+    private static final ThreadLocal<@NotNull Quantizer> QUANTIZERS = ThreadLocal.withInitial(Quantizer::new);
+
+    public static final int MAX_COLORS = 256;
+
+    // open addressing table of color index + 1, 0 for empty
+    private int[] slots = new int[0];
+    private int[] colors = new int[0];
+    private int[] counts = new int[0];
+    private int[] slotOf = new int[0];
+    private int[] boxOf = new int[0];
+    private int[] order = new int[0];
+    private int[] sorted = new int[0];
+    private int size;
+
+    private final int[] boxStart = new int[MAX_COLORS];
+    private final int[] boxEnd = new int[MAX_COLORS];
+    private final long[] boxScore = new long[MAX_COLORS];
+    private final int[] boxChannel = new int[MAX_COLORS];
+
+    private Quantizer() {
+    }
+
+    /**
+     * Reduce pixels to a palette.
+     * <p>
+     * Palette entries that are not fully opaque come first, as PNG transparency chunks want them.
+     *
+     * @param pixels  argb pixels
+     * @param indices filled with the palette index of every pixel
+     * @return argb palette
+     */
+    public static int @NotNull [] quantize(int[] pixels, byte[] indices) {
+        int[] palette = QUANTIZERS.get().reduce(pixels, indices, false);
+        return palette == null ? new int[0] : palette;
+    }
+
+    /**
+     * Get the exact palette of pixels, if they have no more than {@link #MAX_COLORS} colors.
+     * <p>
+     * Palette entries that are not fully opaque come first, as PNG transparency chunks want them.
+     *
+     * @param pixels  argb pixels
+     * @param indices filled with the palette index of every pixel
+     * @return argb palette, or null if there are too many colors
+     */
+    public static int @Nullable [] palette(int[] pixels, byte[] indices) {
+        return QUANTIZERS.get().reduce(pixels, indices, true);
+    }
+
+    private int @Nullable [] reduce(int[] pixels, byte[] indices, boolean exact) {
+        count(pixels);
+        try {
+            if (exact && this.size > MAX_COLORS) {
+                return null;
+            }
+            int boxes = this.size <= MAX_COLORS ? oneBoxPerColor() : medianCut();
+            int[] palette = buildPalette(boxes);
+            for (int i = 0; i < pixels.length; i++) {
+                indices[i] = (byte) this.boxOf[find(canonical(pixels[i]))];
+            }
+            return palette;
+        } finally {
+            // only clear the slots that were used
+            for (int i = 0; i < this.size; i++) {
+                this.slots[this.slotOf[i]] = 0;
+            }
+        }
+    }
+
+    private void count(int[] pixels) {
+        int capacity = Integer.highestOneBit(Math.max(16, pixels.length) - 1) << 2;
+        if (this.slots.length < capacity) {
+            this.slots = new int[capacity];
+        }
+        if (this.colors.length < pixels.length) {
+            this.colors = new int[pixels.length];
+            this.counts = new int[pixels.length];
+            this.slotOf = new int[pixels.length];
+            this.boxOf = new int[pixels.length];
+            this.order = new int[pixels.length];
+            this.sorted = new int[pixels.length];
+        }
+        this.size = 0;
+        int mask = this.slots.length - 1;
+        int last = 0;
+        int lastIndex = -1;
+        for (int pixel : pixels) {
+            int color = canonical(pixel);
+            if (color == last && lastIndex >= 0) {
+                // runs of the same color are common, skip the lookup
+                this.counts[lastIndex]++;
+                continue;
+            }
+            int slot = hash(color) & mask;
+            int index;
+            while (true) {
+                int entry = this.slots[slot];
+                if (entry == 0) {
+                    index = this.size++;
+                    this.slots[slot] = index + 1;
+                    this.colors[index] = color;
+                    this.counts[index] = 0;
+                    this.slotOf[index] = slot;
+                    break;
+                }
+                if (this.colors[entry - 1] == color) {
+                    index = entry - 1;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            this.counts[index]++;
+            last = color;
+            lastIndex = index;
+        }
+    }
+
+    private int find(int color) {
+        int mask = this.slots.length - 1;
+        int slot = hash(color) & mask;
+        while (this.colors[this.slots[slot] - 1] != color) {
+            slot = (slot + 1) & mask;
+        }
+        return this.slots[slot] - 1;
+    }
+
+    private int oneBoxPerColor() {
+        for (int i = 0; i < this.size; i++) {
+            this.order[i] = i;
+            this.boxStart[i] = i;
+            this.boxEnd[i] = i + 1;
+        }
+        return this.size;
+    }
+
+    private int medianCut() {
+        for (int i = 0; i < this.size; i++) {
+            this.order[i] = i;
+        }
+        this.boxStart[0] = 0;
+        this.boxEnd[0] = this.size;
+        score(0);
+        int boxes = 1;
+        while (boxes < MAX_COLORS) {
+            int box = -1;
+            long best = 0;
+            for (int i = 0; i < boxes; i++) {
+                if (this.boxScore[i] > best) {
+                    best = this.boxScore[i];
+                    box = i;
+                }
+            }
+            if (box < 0) {
+                // every box is down to a single color
+                break;
+            }
+            int split = split(box);
+            this.boxStart[boxes] = split;
+            this.boxEnd[boxes] = this.boxEnd[box];
+            this.boxEnd[box] = split;
+            score(box);
+            score(boxes);
+            boxes++;
+        }
+        return boxes;
+    }
+
+    private void score(int box) {
+        int start = this.boxStart[box];
+        int end = this.boxEnd[box];
+        long population = 0;
+        int widest = 0;
+        int channel = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int min = 0xFF;
+            int max = 0;
+            for (int i = start; i < end; i++) {
+                int value = this.colors[this.order[i]] >>> shift & 0xFF;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            if (max - min > widest) {
+                widest = max - min;
+                channel = shift;
+            }
+        }
+        for (int i = start; i < end; i++) {
+            population += this.counts[this.order[i]];
+        }
+        if (mixesAlpha(start, end)) {
+            // never average transparent, translucent and opaque colors together, split them apart first
+            this.boxChannel[box] = 24;
+            this.boxScore[box] = Long.MAX_VALUE;
+            return;
+        }
+        this.boxChannel[box] = channel;
+        this.boxScore[box] = end - start < 2 ? 0 : widest * population;
+    }
+
+    private boolean mixesAlpha(int start, int end) {
+        int alpha = alphaClass(this.colors[this.order[start]]);
+        for (int i = start + 1; i < end; i++) {
+            if (alphaClass(this.colors[this.order[i]]) != alpha) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int alphaClass(int color) {
+        int alpha = color >>> 24;
+        return alpha == 0 ? 0 : alpha == 0xFF ? 2 : 1;
+    }
+
+    private int split(int box) {
+        int start = this.boxStart[box];
+        int end = this.boxEnd[box];
+        int shift = this.boxChannel[box];
+
+        // counting sort the box along its widest channel
+        int[] buckets = new int[257];
+        for (int i = start; i < end; i++) {
+            buckets[(this.colors[this.order[i]] >>> shift & 0xFF) + 1]++;
+        }
+        for (int i = 1; i < buckets.length; i++) {
+            buckets[i] += buckets[i - 1];
+        }
+        for (int i = start; i < end; i++) {
+            int index = this.order[i];
+            this.sorted[start + buckets[this.colors[index] >>> shift & 0xFF]++] = index;
+        }
+        System.arraycopy(this.sorted, start, this.order, start, end - start);
+
+        if (shift == 24 && mixesAlpha(start, end)) {
+            // split where the alpha class changes
+            int alpha = alphaClass(this.colors[this.order[start]]);
+            int split = start + 1;
+            while (alphaClass(this.colors[this.order[split]]) == alpha) {
+                split++;
+            }
+            return split;
+        }
+
+        // split at the weighted median, leaving at least one color on each side
+        long total = 0;
+        for (int i = start; i < end; i++) {
+            total += this.counts[this.order[i]];
+        }
+        long half = total >> 1;
+        long sum = 0;
+        int split = start + 1;
+        for (int i = start; i < end - 1; i++) {
+            sum += this.counts[this.order[i]];
+            if (sum >= half) {
+                split = i + 1;
+                break;
+            }
+        }
+        return split;
+    }
+
+    private int @NotNull [] buildPalette(int boxes) {
+        int[] palette = new int[boxes];
+        for (int box = 0; box < boxes; box++) {
+            long a = 0, r = 0, g = 0, b = 0, total = 0;
+            for (int i = this.boxStart[box]; i < this.boxEnd[box]; i++) {
+                int color = this.colors[this.order[i]];
+                long count = this.counts[this.order[i]];
+                a += (color >>> 24) * count;
+                r += (color >> 16 & 0xFF) * count;
+                g += (color >> 8 & 0xFF) * count;
+                b += (color & 0xFF) * count;
+                total += count;
+            }
+            long half = total >> 1;
+            palette[box] = (int) ((a + half) / total) << 24
+                    | (int) ((r + half) / total) << 16
+                    | (int) ((g + half) / total) << 8
+                    | (int) ((b + half) / total);
+        }
+
+        // translucent entries first, so the transparency chunk stays short
+        Integer[] byAlpha = new Integer[boxes];
+        for (int i = 0; i < boxes; i++) {
+            byAlpha[i] = i;
+        }
+        Arrays.sort(byAlpha, (i, j) -> Boolean.compare(palette[i] >>> 24 == 0xFF, palette[j] >>> 24 == 0xFF));
+        int[] sortedPalette = new int[boxes];
+        int[] position = new int[boxes];
+        for (int i = 0; i < boxes; i++) {
+            sortedPalette[i] = palette[byAlpha[i]];
+            position[byAlpha[i]] = i;
+        }
+
+        for (int box = 0; box < boxes; box++) {
+            for (int i = this.boxStart[box]; i < this.boxEnd[box]; i++) {
+                this.boxOf[this.order[i]] = position[box];
+            }
+        }
+        return sortedPalette;
+    }
+
+    private static int canonical(int argb) {
+        // every fully transparent pixel is the same color
+        return argb >>> 24 == 0 ? 0 : argb;
+    }
+
+    private static int hash(int color) {
+        int h = color * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.image.io;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+import net.pl3x.map.core.configuration.Config;
+import net.pl3x.map.core.util.Mathf;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An image format and the quality tiles are written with.
+ *
+ * @param io      image format
+ * @param quality image quality (0.0 - 1.0), for formats that honor it
+ */
+public record TileFormat(IO.@NotNull Type io, double quality) {
+    /**
+     * Get the globally configured tile format.
+     *
+     * @return global tile format
+     */
+    public static @NotNull TileFormat global() {
+        return new TileFormat(IO.get(Config.WEB_TILE_FORMAT), Config.WEB_TILE_QUALITY);
+    }
+
+    /**
+     * Parse a tile format from a format name, optionally followed by a colon and a quality.
+     * <p>
+     * Examples: <code>png</code>, <code>jpg:0.8</code>
+     *
+     * @param value format and quality
+     * @return tile format
+     * @throws IllegalStateException if the format is unknown
+     * @throws NumberFormatException if the quality is not a number
+     */
+    public static @NotNull TileFormat parse(@NotNull String value) {
+        int index = value.indexOf(':');
+        if (index < 0) {
+            return new TileFormat(IO.get(value.trim()), Config.WEB_TILE_QUALITY);
+        }
+        double quality = Double.parseDouble(value.substring(index + 1).trim());
+        return new TileFormat(IO.get(value.substring(0, index).trim()), Mathf.clamp(0.0D, 1.0D, quality));
+    }
+
+    public @NotNull String getExtension() {
+        return this.io.getExtension();
+    }
+
+    public @Nullable BufferedImage read(@NotNull Path path) {
+        return this.io.read(path);
+    }
+
+    public boolean write(@NotNull Path path, int[] pixels) {
+        return this.io.write(path, pixels, this.quality);
+    }
+
+    public boolean write(@NotNull Path path, @NotNull BufferedImage buffer) {
+        return this.io.write(path, buffer, this.quality);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.image.io;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import net.pl3x.map.core.log.Logger;
+import net.pl3x.map.core.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Lossless WebP tiles, encoded and decoded without ImageIO plugins or native libraries.
+ *
+ * @see WebpEncoder
+ * @see WebpDecoder
+ */
+public class Webp extends IO.Type {
+    public Webp() {
+        super("webp");
+    }
+
+    @Override
+    public @Nullable BufferedImage read(@NotNull Path path) {
+        try {
+            WebpDecoder.Image image = WebpDecoder.decode(Files.readAllBytes(path));
+            BufferedImage buffer = new BufferedImage(image.width(), image.height(), BufferedImage.TYPE_INT_ARGB);
+            buffer.setRGB(0, 0, image.width(), image.height(), image.pixels(), 0, image.width());
+            return buffer;
+        } catch (IOException e) {
+            Logger.warn("Could not read tile image: " + path);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public boolean write(@NotNull Path path, int[] pixels, double quality) {
+        // lossless, quality does not apply
+        return write(path, pixels, 512, 512);
+    }
+
+    @Override
+    public boolean write(@NotNull Path path, @NotNull BufferedImage buffer, double quality) {
+        int width = buffer.getWidth();
+        int height = buffer.getHeight();
+        return write(path, buffer.getRGB(0, 0, width, height, null, 0, width), width, height);
+    }
+
+    private boolean write(@NotNull Path path, int[] pixels, int width, int height) {
+        Path tmp = FileUtil.tmp(path);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 0x10000)) {
+            WebpEncoder.encode(out, pixels, width, height);
+        } catch (IOException e) {
+            Logger.warn("Could not write tile image: " + tmp);
+            e.printStackTrace();
+            return discard(tmp);
+        }
+        return move(tmp, path);
+    }
+}
@@ -0,0 +1,502 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.image.io;
+
+import java.io.IOException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Decodes lossless WebP (VP8L) images to argb pixels.
+ * <p>
+ * Supports the whole lossless bitstream, not just what {@link WebpEncoder} writes, so tiles written by other tools
+ * can be read too. Lossy (VP8) images are not supported.
+ *
+ * @see <a href="https://developers.google.com/speed/webp/docs/webp_lossless_bitstream_specification">WebP Lossless Bitstream Specification</a>
+ */
+public final class WebpDecoder {
+    private static final int[] ALPHABET_SIZES = {256 + WebpEncoder.NUM_LENGTH_CODES, 256, 256, 256, WebpEncoder.NUM_DISTANCE_CODES};
+
+    private final byte[] data;
+    private final int end;
+    private int position;
+    private long buffer;
+    private int available;
+
+    private WebpDecoder(byte[] data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Decoded image.
+     *
+     * @param width  image width
+     * @param height image height
+     * @param pixels argb pixels, row by row
+     */
+    public record Image(int width, int height, int[] pixels) {
+    }
+
+    /**
+     * Decode a WebP file.
+     *
+     * @param bytes contents of the file
+     * @return decoded image
+     * @throws IOException if the file is not a lossless WebP or is corrupt
+     */
+    public static @NotNull Image decode(byte[] bytes) throws IOException {
+        if (bytes.length < 12 || !chars(bytes, 0, "RIFF") || !chars(bytes, 8, "WEBP")) {
+            throw new IOException("Not a WebP file");
+        }
+        int offset = 12;
+        while (offset + 8 <= bytes.length) {
+            int size = getInt(bytes, offset + 4);
+            if (size < 0 || offset + 8 + size > bytes.length) {
+                throw new IOException("Truncated WebP chunk");
+            }
+            if (chars(bytes, offset, "VP8L")) {
+                try {
+                    return new WebpDecoder(bytes, offset + 8, size).read();
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    throw new IOException("Corrupt WebP image", e);
+                }
+            }
+            if (chars(bytes, offset, "VP8 ")) {
+                throw new IOException("Lossy WebP is not supported");
+            }
+            // skip over VP8X, ICCP, EXIF and any other chunks
+            offset += 8 + size + (size & 1);
+        }
+        throw new IOException("No image data in WebP file");
+    }
+
+    private @NotNull Image read() throws IOException {
+        if (read(8) != 0x2F) {
+            throw new IOException("Bad VP8L signature");
+        }
+        int width = read(14) + 1;
+        int height = read(14) + 1;
+        read(1); // alpha hint
+        if (read(3) != 0) {
+            throw new IOException("Unknown VP8L version");
+        }
+
+        Transform[] transforms = new Transform[4];
+        int count = 0;
+        int codedWidth = width;
+        boolean[] seen = new boolean[4];
+        while (read(1) == 1) {
+            int type = read(2);
+            if (seen[type]) {
+                throw new IOException("Duplicate VP8L transform");
+            }
+            seen[type] = true;
+            Transform transform = readTransform(type, codedWidth, height);
+            transforms[count++] = transform;
+            codedWidth = transform.codedWidth;
+        }
+
+        int[] pixels = readImage(codedWidth, height, true);
+        for (int i = count - 1; i >= 0; i--) {
+            pixels = transforms[i].apply(pixels, height);
+        }
+        return new Image(width, height, pixels);
+    }
+
+    private @NotNull Transform readTransform(int type, int width, int height) throws IOException {
+        switch (type) {
+            case WebpEncoder.PREDICTOR_TRANSFORM, WebpEncoder.CROSS_COLOR_TRANSFORM -> {
+                int bits = read(3) + 2;
+                int[] data = readImage(subSampleSize(width, bits), subSampleSize(height, bits), false);
+                return new Transform(type, width, width, bits, data);
+            }
+            case WebpEncoder.SUBTRACT_GREEN_TRANSFORM -> {
+                return new Transform(type, width, width, 0, new int[0]);
+            }
+            default -> {
+                int size = read(8) + 1;
+                int[] palette = readImage(size, 1, false);
+                for (int i = 1; i < size; i++) {
+                    palette[i] = WebpEncoder.addPixels(palette[i], palette[i - 1]);
+                }
+                int bits = WebpEncoder.bundleBits(size);
+                return new Transform(type, width, subSampleSize(width, bits), bits, palette);
+            }
+        }
+    }
+
+    private int @NotNull [] readImage(int width, int height, boolean main) throws IOException {
+        int cacheBits = 0;
+        if (read(1) == 1) {
+            cacheBits = read(4);
+            if (cacheBits < 1 || cacheBits > 11) {
+                throw new IOException("Bad color cache size");
+            }
+        }
+
+        int metaBits = 0;
+        int metaWidth = 1;
+        int[] meta = null;
+        int groups = 1;
+        if (main && read(1) == 1) {
+            metaBits = read(3) + 2;
+            metaWidth = subSampleSize(width, metaBits);
+            meta = readImage(metaWidth, subSampleSize(height, metaBits), false);
+            for (int i = 0; i < meta.length; i++) {
+                meta[i] = meta[i] >> 8 & 0xFFFF;
+                groups = Math.max(groups, meta[i] + 1);
+            }
+        }
+
+        int cacheSize = cacheBits > 0 ? 1 << cacheBits : 0;
+        Huffman[][] codes = new Huffman[groups][5];
+        for (Huffman[] group : codes) {
+            for (int i = 0; i < 5; i++) {
+                group[i] = readCode(ALPHABET_SIZES[i] + (i == 0 ? cacheSize : 0));
+            }
+        }
+
+        int[] cache = cacheSize > 0 ? new int[cacheSize] : null;
+        int size = width * height;
+        int[] pixels = new int[size];
+        int x = 0;
+        int y = 0;
+        int i = 0;
+        int cached = 0;
+        Huffman[] group = codes[0];
+        while (i < size) {
+            if (meta != null) {
+                group = codes[meta[(y >> metaBits) * metaWidth + (x >> metaBits)]];
+            }
+            int green = group[0].read(this);
+            if (green < 256) {
+                int red = group[1].read(this);
+                int blue = group[2].read(this);
+                int alpha = group[3].read(this);
+                pixels[i++] = alpha << 24 | red << 16 | green << 8 | blue;
+                if (++x == width) {
+                    x = 0;
+                    y++;
+                }
+            } else if (green < 256 + WebpEncoder.NUM_LENGTH_CODES) {
+                int length = readLength(green - 256);
+                int code = readLength(group[4].read(this));
+                int distance = planeDistance(code, width);
+                if (distance > i || i + length > size) {
+                    throw new IOException("Bad backward reference");
+                }
+                for (int end = i + length; i < end; i++) {
+                    pixels[i] = pixels[i - distance];
+                }
+                x += length;
+                while (x >= width) {
+                    x -= width;
+                    y++;
+                }
+            } else {
+                if (cache == null) {
+                    throw new IOException("Color cache code without a color cache");
+                }
+                pixels[i++] = cache[green - 256 - WebpEncoder.NUM_LENGTH_CODES];
+                if (++x == width) {
+                    x = 0;
+                    y++;
+                }
+            }
+            if (cache != null) {
+                while (cached < i) {
+                    int pixel = pixels[cached++];
+                    cache[hash(pixel, cacheBits)] = pixel;
+                }
+            }
+        }
+        return pixels;
+    }
+
+    private static int hash(int argb, int bits) {
+        return (0x1E35A7BD * argb) >>> (32 - bits);
+    }
+
+    private int readLength(int prefix) throws IOException {
+        if (prefix < 4) {
+            return prefix + 1;
+        }
+        int extraBits = (prefix - 2) >> 1;
+        int offset = (2 + (prefix & 1)) << extraBits;
+        return offset + read(extraBits) + 1;
+    }
+
+    private static int planeDistance(int code, int width) {
+        if (code > 120) {
+            return code - 120;
+        }
+        int distance = WebpEncoder.PLANE_CODES[code * 2 - 2] + WebpEncoder.PLANE_CODES[code * 2 - 1] * width;
+        return Math.max(1, distance);
+    }
+
+    private @NotNull Huffman readCode(int alphabetSize) throws IOException {
+        int[] lengths = new int[alphabetSize];
+        if (read(1) == 1) {
+            // simple code
+            int symbols = read(1) + 1;
+            int first = read(read(1) == 1 ? 8 : 1);
+            lengths[check(first, alphabetSize)] = 1;
+            if (symbols == 2) {
+                lengths[check(read(8), alphabetSize)] = 1;
+            }
+            return new Huffman(lengths);
+        }
+
+        int[] codeLengths = new int[19];
+        int numCodes = read(4) + 4;
+        for (int i = 0; i < numCodes; i++) {
+            codeLengths[WebpEncoder.CODE_LENGTH_ORDER[i]] = read(3);
+        }
+        Huffman lengthCode = new Huffman(codeLengths);
+
+        int maxSymbol = alphabetSize;
+        if (read(1) == 1) {
+            int bits = 2 + 2 * read(3);
+            maxSymbol = 2 + read(bits);
+            if (maxSymbol > alphabetSize) {
+                throw new IOException("Bad prefix code size");
+            }
+        }
+
+        int previous = 8;
+        int symbol = 0;
+        while (symbol < alphabetSize && maxSymbol-- > 0) {
+            int code = lengthCode.read(this);
+            if (code < 16) {
+                lengths[symbol++] = code;
+                if (code != 0) {
+                    previous = code;
+                }
+                continue;
+            }
+            int repeat;
+            int value = 0;
+            switch (code) {
+                case 16 -> {
+                    repeat = 3 + read(2);
+                    value = previous;
+                }
+                case 17 -> repeat = 3 + read(3);
+                default -> repeat = 11 + read(7);
+            }
+            if (symbol + repeat > alphabetSize) {
+                throw new IOException("Bad prefix code lengths");
+            }
+            while (repeat-- > 0) {
+                lengths[symbol++] = value;
+            }
+        }
+        return new Huffman(lengths);
+    }
+
+    private static int check(int symbol, int alphabetSize) throws IOException {
+        if (symbol >= alphabetSize) {
+            throw new IOException("Bad prefix code symbol");
+        }
+        return symbol;
+    }
+
+    private static int subSampleSize(int size, int bits) {
+        return (size + (1 << bits) - 1) >> bits;
+    }
+
+    private int read(int bits) throws IOException {
+        if (bits == 0) {
+            return 0;
+        }
+        while (this.available < bits) {
+            if (this.position < this.end) {
+                this.buffer |= (this.data[this.position] & 0xFFL) << this.available;
+            } else if (this.position > this.end + 8) {
+                throw new IOException("Truncated WebP image");
+            }
+            // the last few bits of the image can be read through some zero padding
+            this.position++;
+            this.available += 8;
+        }
+        int value = (int) (this.buffer & ((1L << bits) - 1));
+        this.buffer >>>= bits;
+        this.available -= bits;
+        return value;
+    }
+
+    private static boolean chars(byte[] bytes, int index, @NotNull String chars) {
+        for (int i = 0; i < 4; i++) {
+            if (bytes[index + i] != chars.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getInt(byte[] bytes, int index) {
+        return (bytes[index] & 0xFF) | (bytes[index + 1] & 0xFF) << 8 | (bytes[index + 2] & 0xFF) << 16 | (bytes[index + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Canonical prefix code, decoded a bit at a time.
+     */
+    private static final class Huffman {
+        private final int[] counts = new int[16];
+        private final int[] symbols;
+        private final int single;
+
+        private Huffman(int[] lengths) throws IOException {
+            int used = 0;
+            int last = 0;
+            for (int symbol = 0; symbol < lengths.length; symbol++) {
+                if (lengths[symbol] > 0) {
+                    this.counts[lengths[symbol]]++;
+                    used++;
+                    last = symbol;
+                }
+            }
+            if (used == 0) {
+                throw new IOException("Empty prefix code");
+            }
+            // a code with a single symbol takes no bits at all
+            this.single = used == 1 ? last : -1;
+
+            int[] offsets = new int[16];
+            for (int length = 1; length < 15; length++) {
+                offsets[length + 1] = offsets[length] + this.counts[length];
+            }
+            this.symbols = new int[used];
+            for (int symbol = 0; symbol < lengths.length; symbol++) {
+                if (lengths[symbol] > 0) {
+                    this.symbols[offsets[lengths[symbol]]++] = symbol;
+                }
+            }
+        }
+
+        private int read(@NotNull WebpDecoder decoder) throws IOException {
+            if (this.single >= 0) {
+                return this.single;
+            }
+            int code = 0;
+            int first = 0;
+            int index = 0;
+            for (int length = 1; length < 16; length++) {
+                code |= decoder.read(1);
+                int count = this.counts[length];
+                if (code - count < first) {
+                    return this.symbols[index + (code - first)];
+                }
+                index += count;
+                first += count;
+                first <<= 1;
+                code <<= 1;
+            }
+            throw new IOException("Bad prefix code");
+        }
+    }
+
+    /**
+     * A transform to undo once the pixels are decoded.
+     */
+    private static final class Transform {
+        private final int type;
+        private final int width;
+        private final int codedWidth;
+        private final int bits;
+        private final int[] data;
+
+        private Transform(int type, int width, int codedWidth, int bits, int[] data) {
+            this.type = type;
+            this.width = width;
+            this.codedWidth = codedWidth;
+            this.bits = bits;
+            this.data = data;
+        }
+
+        private int @NotNull [] apply(int[] pixels, int height) {
+            switch (this.type) {
+                case WebpEncoder.PREDICTOR_TRANSFORM -> {
+                    int blocksWide = subSampleSize(this.width, this.bits);
+                    for (int y = 0; y < height; y++) {
+                        for (int x = 0; x < this.width; x++) {
+                            int i = y * this.width + x;
+                            int mode = this.data[(y >> this.bits) * blocksWide + (x >> this.bits)] >> 8 & 0xF;
+                            pixels[i] = WebpEncoder.addPixels(pixels[i], WebpEncoder.predict(pixels, i, x, y, this.width, mode));
+                        }
+                    }
+                    return pixels;
+                }
+                case WebpEncoder.CROSS_COLOR_TRANSFORM -> {
+                    int blocksWide = subSampleSize(this.width, this.bits);
+                    for (int y = 0; y < height; y++) {
+                        for (int x = 0; x < this.width; x++) {
+                            int i = y * this.width + x;
+                            int multipliers = this.data[(y >> this.bits) * blocksWide + (x >> this.bits)];
+                            int greenToRed = multipliers & 0xFF;
+                            int greenToBlue = multipliers >> 8 & 0xFF;
+                            int redToBlue = multipliers >> 16 & 0xFF;
+                            int pixel = pixels[i];
+                            int green = pixel >> 8 & 0xFF;
+                            int red = ((pixel >> 16) + delta(greenToRed, green)) & 0xFF;
+                            int blue = (pixel + delta(greenToBlue, green) + delta(redToBlue, red)) & 0xFF;
+                            pixels[i] = (pixel & 0xFF00FF00) | red << 16 | blue;
+                        }
+                    }
+                    return pixels;
+                }
+                case WebpEncoder.SUBTRACT_GREEN_TRANSFORM -> {
+                    for (int i = 0; i < pixels.length; i++) {
+                        int pixel = pixels[i];
+                        int green = pixel >> 8 & 0xFF;
+                        int red = ((pixel >> 16) + green) & 0xFF;
+                        int blue = (pixel + green) & 0xFF;
+                        pixels[i] = (pixel & 0xFF00FF00) | red << 16 | blue;
+                    }
+                    return pixels;
+                }
+                default -> {
+                    int depth = 8 >> this.bits;
+                    int mask = (1 << this.bits) - 1;
+                    int indexMask = (1 << depth) - 1;
+                    int[] result = new int[this.width * height];
+                    for (int y = 0; y < height; y++) {
+                        for (int x = 0; x < this.width; x++) {
+                            int packed = pixels[y * this.codedWidth + (x >> this.bits)] >> 8 & 0xFF;
+                            int index = packed >> (depth * (x & mask)) & indexMask;
+                            // indexes past the end of the palette are transparent black
+                            result[y * this.width + x] = index < this.data.length ? this.data[index] : 0;
+                        }
+                    }
+                    return result;
+                }
+            }
+        }
+
+        private static int delta(int multiplier, int color) {
+            return ((byte) multiplier * (byte) color) >> 5;
+        }
+    }
+}
@@ -0,0 +1,767 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.image.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Encodes argb pixels to lossless WebP (VP8L).
+ * <p>
+ * Images with 256 colors or fewer are written with the color indexing transform, packing several pixels into one
+ * when the palette is small enough. Everything else goes through the subtract green and predictor transforms,
+ * with the predictor picked per 16x16 block. The resulting pixels are compressed with LZ77 and a single set of
+ * prefix codes.
+ *
+ * @see <a href="https://developers.google.com/speed/webp/docs/webp_lossless_bitstream_specification">WebP Lossless Bitstream Specification</a>
+ */
+public final class WebpEncoder {
+    private static final ThreadLocal<@NotNull WebpEncoder> ENCODERS = ThreadLocal.withInitial(WebpEncoder::new);
+
+    static final int PREDICTOR_TRANSFORM = 0;
+    static final int CROSS_COLOR_TRANSFORM = 1;
+    static final int SUBTRACT_GREEN_TRANSFORM = 2;
+    static final int COLOR_INDEXING_TRANSFORM = 3;
+
+    static final int NUM_LENGTH_CODES = 24;
+    static final int NUM_DISTANCE_CODES = 40;
+    static final int[] CODE_LENGTH_ORDER = {17, 18, 0, 1, 2, 3, 4, 5, 16, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15};
+
+    // (x, y) offsets of the first 120 distance codes
+    static final int[] PLANE_CODES = {
+            0, 1, 1, 0, 1, 1, -1, 1, 0, 2, 2, 0, 1, 2, -1, 2, 2, 1, -2, 1, 2, 2, -2, 2, 0, 3, 3, 0, 1, 3, -1, 3, 3, 1, -3, 1,
+            2, 3, -2, 3, 3, 2, -3, 2, 0, 4, 4, 0, 1, 4, -1, 4, 4, 1, -4, 1, 3, 3, -3, 3, 2, 4, -2, 4, 4, 2, -4, 2, 0, 5,
+            3, 4, -3, 4, 4, 3, -4, 3, 5, 0, 1, 5, -1, 5, 5, 1, -5, 1, 2, 5, -2, 5, 5, 2, -5, 2, 4, 4, -4, 4, 3, 5, -3, 5,
+            5, 3, -5, 3, 0, 6, 6, 0, 1, 6, -1, 6, 6, 1, -6, 1, 2, 6, -2, 6, 6, 2, -6, 2, 4, 5, -4, 5, 5, 4, -5, 4, 3, 6,
+            -3, 6, 6, 3, -6, 3, 0, 7, 7, 0, 1, 7, -1, 7, 5, 5, -5, 5, 7, 1, -7, 1, 4, 6, -4, 6, 6, 4, -6, 4, 2, 7, -2, 7,
+            7, 2, -7, 2, 3, 7, -3, 7, 7, 3, -7, 3, 5, 6, -5, 6, 6, 5, -6, 5, 8, 0, 4, 7, -4, 7, 7, 4, -7, 4, 8, 1, 8, 2,
+            6, 6, -6, 6, 8, 3, 5, 7, -5, 7, 7, 5, -7, 5, 8, 4, 6, 7, -6, 7, 7, 6, -7, 6, 8, 5, 7, 7, -7, 7, 8, 6, 8, 7
+    };
+
+    private static final int PREDICTOR_BITS = 4;
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_MATCH = 4096;
+    private static final int MAX_CHAIN = 32;
+    private static final int HASH_BITS = 16;
+
+    private final int[] head = new int[1 << HASH_BITS];
+    private int[] chain = new int[0];
+    private int[] literals = new int[0];
+    private int[] lengths = new int[0];
+    private int[] distances = new int[0];
+
+    private WebpEncoder() {
+    }
+
+    /**
+     * Encode an image to lossless WebP.
+     *
+     * @param out    stream to write the WebP to
+     * @param pixels argb pixels, row by row
+     * @param width  image width
+     * @param height image height
+     * @throws IOException if writing to the stream fails
+     */
+    public static void encode(@NotNull OutputStream out, int[] pixels, int width, int height) throws IOException {
+        ENCODERS.get().write(out, pixels, width, height);
+    }
+
+    private void write(@NotNull OutputStream out, int[] pixels, int width, int height) throws IOException {
+        BitWriter bits = new BitWriter(pixels.length);
+        boolean alpha = false;
+        for (int pixel : pixels) {
+            if (pixel >>> 24 != 0xFF) {
+                alpha = true;
+                break;
+            }
+        }
+        bits.write(0x2F, 8);
+        bits.write(width - 1, 14);
+        bits.write(height - 1, 14);
+        bits.write(alpha ? 1 : 0, 1);
+        bits.write(0, 3);
+
+        byte[] indices = new byte[pixels.length];
+        int[] palette = Quantizer.palette(pixels, indices);
+        int[] image;
+        int imageWidth;
+        if (palette != null) {
+            imageWidth = writePalette(bits, palette, indices, width, height);
+            image = bundle(indices, width, height, palette.length, imageWidth);
+        } else {
+            image = pixels.clone();
+            imageWidth = width;
+            bits.write(1, 1);
+            bits.write(SUBTRACT_GREEN_TRANSFORM, 2);
+            subtractGreen(image);
+            bits.write(1, 1);
+            bits.write(PREDICTOR_TRANSFORM, 2);
+            bits.write(PREDICTOR_BITS - 2, 3);
+            image = predict(bits, image, width, height);
+        }
+        // no more transforms
+        bits.write(0, 1);
+
+        writeImage(bits, image, imageWidth, image.length / imageWidth, true);
+
+        byte[] data = bits.toByteArray();
+        int size = data.length;
+        int padding = size & 1;
+        byte[] header = new byte[20];
+        putChars(header, 0, "RIFF");
+        putInt(header, 4, 4 + 8 + size + padding);
+        putChars(header, 8, "WEBP");
+        putChars(header, 12, "VP8L");
+        putInt(header, 16, size);
+        out.write(header);
+        out.write(data);
+        if (padding != 0) {
+            out.write(0);
+        }
+    }
+
+    private int writePalette(@NotNull BitWriter bits, int[] palette, byte[] indices, int width, int height) {
+        bits.write(1, 1);
+        bits.write(COLOR_INDEXING_TRANSFORM, 2);
+        bits.write(palette.length - 1, 8);
+        // palette entries are stored as the difference to the entry before them
+        int[] deltas = new int[palette.length];
+        int previous = 0;
+        for (int i = 0; i < palette.length; i++) {
+            deltas[i] = subtractPixels(palette[i], previous);
+            previous = palette[i];
+        }
+        writeImage(bits, deltas, palette.length, 1, false);
+        return (width + (1 << bundleBits(palette.length)) - 1) >> bundleBits(palette.length);
+    }
+
+    static int bundleBits(int paletteSize) {
+        return paletteSize <= 2 ? 3 : paletteSize <= 4 ? 2 : paletteSize <= 16 ? 1 : 0;
+    }
+
+    private static int[] bundle(byte[] indices, int width, int height, int paletteSize, int packedWidth) {
+        int bits = bundleBits(paletteSize);
+        int depth = 8 >> bits;
+        int mask = (1 << bits) - 1;
+        int[] packed = new int[packedWidth * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                packed[y * packedWidth + (x >> bits)] |= (indices[y * width + x] & 0xFF) << (depth * (x & mask) + 8);
+            }
+        }
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] |= 0xFF000000;
+        }
+        return packed;
+    }
+
+    private static void subtractGreen(int[] image) {
+        for (int i = 0; i < image.length; i++) {
+            int pixel = image[i];
+            int green = pixel >> 8 & 0xFF;
+            int red = ((pixel >> 16) - green) & 0xFF;
+            int blue = (pixel - green) & 0xFF;
+            image[i] = (pixel & 0xFF00FF00) | red << 16 | blue;
+        }
+    }
+
+    private int @NotNull [] predict(@NotNull BitWriter bits, int[] image, int width, int height) {
+        int blockSize = 1 << PREDICTOR_BITS;
+        int blocksWide = (width + blockSize - 1) >> PREDICTOR_BITS;
+        int blocksHigh = (height + blockSize - 1) >> PREDICTOR_BITS;
+        int[] modes = new int[blocksWide * blocksHigh];
+        int[] residuals = new int[image.length];
+
+        for (int by = 0; by < blocksHigh; by++) {
+            for (int bx = 0; bx < blocksWide; bx++) {
+                int startX = bx << PREDICTOR_BITS;
+                int startY = by << PREDICTOR_BITS;
+                int endX = Math.min(width, startX + blockSize);
+                int endY = Math.min(height, startY + blockSize);
+                int best = 1;
+                long bestCost = Long.MAX_VALUE;
+                for (int mode = 0; mode < 14; mode++) {
+                    long cost = 0;
+                    for (int y = startY; y < endY && cost < bestCost; y++) {
+                        for (int x = startX; x < endX; x++) {
+                            int i = y * width + x;
+                            cost += cost(subtractPixels(image[i], predict(image, i, x, y, width, mode)));
+                        }
+                    }
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        best = mode;
+                    }
+                }
+                modes[by * blocksWide + bx] = 0xFF000000 | best << 8;
+                for (int y = startY; y < endY; y++) {
+                    for (int x = startX; x < endX; x++) {
+                        int i = y * width + x;
+                        residuals[i] = subtractPixels(image[i], predict(image, i, x, y, width, best));
+                    }
+                }
+            }
+        }
+
+        writeImage(bits, modes, blocksWide, blocksHigh, false);
+        return residuals;
+    }
+
+    private static int cost(int residual) {
+        // residuals close to 0 in either direction are cheap
+        return Math.abs((byte) residual) + Math.abs((byte) (residual >> 8))
+                + Math.abs((byte) (residual >> 16)) + Math.abs((byte) (residual >> 24));
+    }
+
+    static int predict(int[] image, int i, int x, int y, int width, int mode) {
+        if (y == 0) {
+            return x == 0 ? 0xFF000000 : image[i - 1];
+        }
+        if (x == 0) {
+            return image[i - width];
+        }
+        int left = image[i - 1];
+        int top = image[i - width];
+        int topLeft = image[i - width - 1];
+        // the top right of the last pixel in a row is the first pixel of the row
+        int topRight = image[i - width + 1];
+        return switch (mode) {
+            case 0 -> 0xFF000000;
+            case 1 -> left;
+            case 2 -> top;
+            case 3 -> topRight;
+            case 4 -> topLeft;
+            case 5 -> average(average(left, topRight), top);
+            case 6 -> average(left, topLeft);
+            case 7 -> average(left, top);
+            case 8 -> average(topLeft, top);
+            case 9 -> average(top, topRight);
+            case 10 -> average(average(left, topLeft), average(top, topRight));
+            case 11 -> select(left, top, topLeft);
+            case 12 -> clampAddSubtractFull(left, top, topLeft);
+            default -> clampAddSubtractHalf(average(left, top), topLeft);
+        };
+    }
+
+    private static int average(int a, int b) {
+        // per channel (a + b) / 2, without carries between channels
+        return (a & b) + (((a ^ b) & 0xFEFEFEFE) >>> 1);
+    }
+
+    private static int select(int left, int top, int topLeft) {
+        int distanceLeft = 0;
+        int distanceTop = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int l = left >>> shift & 0xFF;
+            int t = top >>> shift & 0xFF;
+            int tl = topLeft >>> shift & 0xFF;
+            distanceLeft += Math.abs(t - tl);
+            distanceTop += Math.abs(l - tl);
+        }
+        return distanceLeft < distanceTop ? left : top;
+    }
+
+    private static int clampAddSubtractFull(int a, int b, int c) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int value = (a >>> shift & 0xFF) + (b >>> shift & 0xFF) - (c >>> shift & 0xFF);
+            result |= clamp(value) << shift;
+        }
+        return result;
+    }
+
+    private static int clampAddSubtractHalf(int a, int b) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int ca = a >>> shift & 0xFF;
+            int value = ca + (ca - (b >>> shift & 0xFF)) / 2;
+            result |= clamp(value) << shift;
+        }
+        return result;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : Math.min(value, 0xFF);
+    }
+
+    static int addPixels(int a, int b) {
+        return (((a & 0xFF00FF00) + (b & 0xFF00FF00)) & 0xFF00FF00) | (((a & 0x00FF00FF) + (b & 0x00FF00FF)) & 0x00FF00FF);
+    }
+
+    private static int subtractPixels(int a, int b) {
+        return (((a | 0x00FF00FF) - (b & 0xFF00FF00)) & 0xFF00FF00) | (((a | 0xFF00FF00) - (b & 0x00FF00FF)) & 0x00FF00FF);
+    }
+
+    private void writeImage(@NotNull BitWriter bits, int[] image, int width, int height, boolean main) {
+        // no color cache
+        bits.write(0, 1);
+        if (main) {
+            // a single set of prefix codes for the whole image
+            bits.write(0, 1);
+        }
+
+        int count = tokenize(image, width);
+
+        int[] green = new int[256 + NUM_LENGTH_CODES];
+        int[] red = new int[256];
+        int[] blue = new int[256];
+        int[] alpha = new int[256];
+        int[] distance = new int[NUM_DISTANCE_CODES];
+        for (int i = 0; i < count; i++) {
+            int length = this.lengths[i];
+            if (length == 0) {
+                int pixel = this.literals[i];
+                green[pixel >> 8 & 0xFF]++;
+                red[pixel >> 16 & 0xFF]++;
+                blue[pixel & 0xFF]++;
+                alpha[pixel >>> 24]++;
+            } else {
+                green[256 + prefix(length)]++;
+                distance[prefix(this.distances[i])]++;
+            }
+        }
+
+        PrefixCode greenCode = PrefixCode.write(bits, green);
+        PrefixCode redCode = PrefixCode.write(bits, red);
+        PrefixCode blueCode = PrefixCode.write(bits, blue);
+        PrefixCode alphaCode = PrefixCode.write(bits, alpha);
+        PrefixCode distanceCode = PrefixCode.write(bits, distance);
+
+        for (int i = 0; i < count; i++) {
+            int length = this.lengths[i];
+            if (length == 0) {
+                int pixel = this.literals[i];
+                greenCode.write(bits, pixel >> 8 & 0xFF);
+                redCode.write(bits, pixel >> 16 & 0xFF);
+                blueCode.write(bits, pixel & 0xFF);
+                alphaCode.write(bits, pixel >>> 24);
+            } else {
+                int lengthPrefix = prefix(length);
+                greenCode.write(bits, 256 + lengthPrefix);
+                writeExtraBits(bits, lengthPrefix, length);
+                int code = this.distances[i];
+                int distancePrefix = prefix(code);
+                distanceCode.write(bits, distancePrefix);
+                writeExtraBits(bits, distancePrefix, code);
+            }
+        }
+    }
+
+    private int tokenize(int[] image, int width) {
+        int size = image.length;
+        if (this.literals.length < size) {
+            this.chain = new int[size];
+            this.literals = new int[size];
+            this.lengths = new int[size];
+            this.distances = new int[size];
+        }
+        Arrays.fill(this.head, -1);
+
+        // distances that have a short plane code
+        int[] planeCodes = new int[8 * width + 9];
+        for (int code = PLANE_CODES.length / 2; code > 0; code--) {
+            int distance = PLANE_CODES[code * 2 - 2] + PLANE_CODES[code * 2 - 1] * width;
+            if (distance >= 1 && distance < planeCodes.length) {
+                planeCodes[distance] = code;
+            }
+        }
+
+        int count = 0;
+        int i = 0;
+        while (i < size) {
+            int bestLength = 0;
+            int bestDistance = 0;
+            if (i + MIN_MATCH <= size) {
+                int max = Math.min(MAX_MATCH, size - i);
+                // the pixel to the left and the pixel above are the most likely matches
+                if (i >= 1) {
+                    bestLength = matchLength(image, i - 1, i, max);
+                    bestDistance = 1;
+                }
+                if (i >= width) {
+                    int length = matchLength(image, i - width, i, max);
+                    if (length > bestLength) {
+                        bestLength = length;
+                        bestDistance = width;
+                    }
+                }
+                int hash = hash(image[i], image[i + 1]);
+                int candidate = this.head[hash];
+                for (int steps = 0; candidate >= 0 && steps < MAX_CHAIN && bestLength < max; steps++) {
+                    int length = matchLength(image, candidate, i, max);
+                    if (length > bestLength) {
+                        bestLength = length;
+                        bestDistance = i - candidate;
+                    }
+                    candidate = this.chain[candidate];
+                }
+            }
+
+            if (bestLength >= MIN_MATCH) {
+                this.literals[count] = 0;
+                this.lengths[count] = bestLength;
+                this.distances[count] = bestDistance < planeCodes.length && planeCodes[bestDistance] > 0 ? planeCodes[bestDistance] : bestDistance + 120;
+                count++;
+                for (int end = i + bestLength; i < end; i++) {
+                    insert(image, i, size);
+                }
+            } else {
+                this.literals[count] = image[i];
+                this.lengths[count] = 0;
+                count++;
+                insert(image, i, size);
+                i++;
+            }
+        }
+        return count;
+    }
+
+    private void insert(int[] image, int i, int size) {
+        if (i + 1 < size) {
+            int hash = hash(image[i], image[i + 1]);
+            this.chain[i] = this.head[hash];
+            this.head[hash] = i;
+        }
+    }
+
+    private static int matchLength(int[] image, int from, int to, int max) {
+        int length = 0;
+        while (length < max && image[from + length] == image[to + length]) {
+            length++;
+        }
+        return length;
+    }
+
+    private static int hash(int a, int b) {
+        long h = ((long) a << 32 | (b & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> (64 - HASH_BITS));
+    }
+
+    /**
+     * Get the prefix code of a length or distance.
+     *
+     * @param value length or distance code, at least 1
+     * @return prefix code
+     */
+    static int prefix(int value) {
+        if (value <= 4) {
+            return value - 1;
+        }
+        int d = value - 1;
+        int highest = 31 - Integer.numberOfLeadingZeros(d);
+        return 2 * highest + (d >> (highest - 1) & 1);
+    }
+
+    private static void writeExtraBits(@NotNull BitWriter bits, int prefix, int value) {
+        if (prefix < 4) {
+            return;
+        }
+        int extraBits = (prefix - 2) >> 1;
+        bits.write((value - 1) & ((1 << extraBits) - 1), extraBits);
+    }
+
+    private static void putChars(byte[] bytes, int index, @NotNull String chars) {
+        for (int i = 0; i < 4; i++) {
+            bytes[index + i] = (byte) chars.charAt(i);
+        }
+    }
+
+    private static void putInt(byte[] bytes, int index, int value) {
+        bytes[index] = (byte) value;
+        bytes[index + 1] = (byte) (value >>> 8);
+        bytes[index + 2] = (byte) (value >>> 16);
+        bytes[index + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * Canonical prefix code, as written to the bitstream.
+     */
+    private static final class PrefixCode {
+        private final int[] codes;
+        private final int[] bits;
+
+        private PrefixCode(int[] lengths) {
+            this.codes = canonicalCodes(lengths);
+            this.bits = lengths.clone();
+            int used = 0;
+            int last = 0;
+            for (int symbol = 0; symbol < lengths.length; symbol++) {
+                if (lengths[symbol] > 0) {
+                    used++;
+                    last = symbol;
+                }
+            }
+            if (used == 1) {
+                // a code with a single symbol takes no bits at all
+                this.bits[last] = 0;
+            }
+        }
+
+        private void write(@NotNull BitWriter writer, int symbol) {
+            writer.write(this.codes[symbol], this.bits[symbol]);
+        }
+
+        private static @NotNull PrefixCode write(@NotNull BitWriter bits, int[] histogram) {
+            int[] symbols = new int[2];
+            int used = 0;
+            for (int symbol = 0; symbol < histogram.length; symbol++) {
+                if (histogram[symbol] > 0) {
+                    if (used < 2) {
+                        symbols[used] = symbol;
+                    }
+                    used++;
+                }
+            }
+
+            int[] lengths = new int[histogram.length];
+            if (used <= 2 && symbols[used == 0 ? 0 : used - 1] < 256) {
+                // simple code, for one or two symbols
+                bits.write(1, 1);
+                bits.write(Math.max(0, used - 1), 1);
+                if (symbols[0] <= 1) {
+                    bits.write(0, 1);
+                    bits.write(symbols[0], 1);
+                } else {
+                    bits.write(1, 1);
+                    bits.write(symbols[0], 8);
+                }
+                lengths[symbols[0]] = 1;
+                if (used == 2) {
+                    bits.write(symbols[1], 8);
+                    lengths[symbols[1]] = 1;
+                }
+                return new PrefixCode(lengths);
+            }
+
+            buildLengths(histogram, lengths, 15);
+            writeLengths(bits, lengths);
+            return new PrefixCode(lengths);
+        }
+
+        private static void writeLengths(@NotNull BitWriter bits, int[] lengths) {
+            // run length encode the code lengths with the code length alphabet
+            int[] tokens = new int[lengths.length];
+            int[] extras = new int[lengths.length];
+            int count = 0;
+            int previous = 8;
+            for (int i = 0; i < lengths.length; ) {
+                int value = lengths[i];
+                int run = 1;
+                while (i + run < lengths.length && lengths[i + run] == value) {
+                    run++;
+                }
+                i += run;
+                if (value == 0) {
+                    while (run >= 11) {
+                        int n = Math.min(run, 138);
+                        tokens[count] = 18;
+                        extras[count++] = n - 11;
+                        run -= n;
+                    }
+                    if (run >= 3) {
+                        tokens[count] = 17;
+                        extras[count++] = run - 3;
+                        run = 0;
+                    }
+                } else {
+                    if (value != previous) {
+                        tokens[count++] = value;
+                        previous = value;
+                        run--;
+                    }
+                    while (run >= 3) {
+                        int n = Math.min(run, 6);
+                        tokens[count] = 16;
+                        extras[count++] = n - 3;
+                        run -= n;
+                    }
+                }
+                while (run-- > 0) {
+                    tokens[count++] = value;
+                }
+            }
+
+            int[] histogram = new int[19];
+            for (int i = 0; i < count; i++) {
+                histogram[tokens[i]]++;
+            }
+            int[] codeLengths = new int[19];
+            buildLengths(histogram, codeLengths, 7);
+            PrefixCode code = new PrefixCode(codeLengths);
+
+            int numCodes = 19;
+            while (numCodes > 4 && codeLengths[CODE_LENGTH_ORDER[numCodes - 1]] == 0) {
+                numCodes--;
+            }
+            // normal code
+            bits.write(0, 1);
+            bits.write(numCodes - 4, 4);
+            for (int i = 0; i < numCodes; i++) {
+                bits.write(codeLengths[CODE_LENGTH_ORDER[i]], 3);
+            }
+            // every symbol of the alphabet is coded
+            bits.write(0, 1);
+            for (int i = 0; i < count; i++) {
+                int token = tokens[i];
+                code.write(bits, token);
+                switch (token) {
+                    case 16 -> bits.write(extras[i], 2);
+                    case 17 -> bits.write(extras[i], 3);
+                    case 18 -> bits.write(extras[i], 7);
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        private static void buildLengths(int[] histogram, int[] lengths, int maxLength) {
+            int[] counts = histogram.clone();
+            while (true) {
+                Arrays.fill(lengths, 0);
+                int symbols = 0;
+                int last = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        symbols++;
+                        last = i;
+                    }
+                }
+                if (symbols == 0) {
+                    return;
+                }
+                if (symbols == 1) {
+                    lengths[last] = 1;
+                    return;
+                }
+
+                // plain huffman tree, nodes past the symbols are internal
+                int[] parent = new int[counts.length * 2];
+                long[] weight = new long[counts.length * 2];
+                PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> weight[a] != weight[b] ? Long.compare(weight[a], weight[b]) : Integer.compare(a, b));
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        weight[i] = counts[i];
+                        queue.add(i);
+                    }
+                }
+                int next = counts.length;
+                while (queue.size() > 1) {
+                    int a = queue.poll();
+                    int b = queue.poll();
+                    weight[next] = weight[a] + weight[b];
+                    parent[a] = next;
+                    parent[b] = next;
+                    queue.add(next++);
+                }
+                int root = next - 1;
+                boolean fits = true;
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == 0) {
+                        continue;
+                    }
+                    int depth = 0;
+                    for (int node = i; node != root; node = parent[node]) {
+                        depth++;
+                    }
+                    lengths[i] = depth;
+                    if (depth > maxLength) {
+                        fits = false;
+                    }
+                }
+                if (fits) {
+                    return;
+                }
+                // flatten the distribution until the tree is shallow enough
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        counts[i] = (counts[i] + 1) >> 1;
+                    }
+                }
+            }
+        }
+
+        private static int[] canonicalCodes(int[] lengths) {
+            int[] count = new int[16];
+            for (int length : lengths) {
+                count[length]++;
+            }
+            count[0] = 0;
+            int[] next = new int[16];
+            int code = 0;
+            for (int length = 1; length < 16; length++) {
+                code = (code + count[length - 1]) << 1;
+                next[length] = code;
+            }
+            int[] codes = new int[lengths.length];
+            for (int symbol = 0; symbol < lengths.length; symbol++) {
+                int length = lengths[symbol];
+                if (length > 0) {
+                    // codes are read bit by bit from the least significant bit, so store them reversed
+                    codes[symbol] = Integer.reverse(next[length]++) >>> (32 - length);
+                }
+            }
+            return codes;
+        }
+    }
+
+    /**
+     * Writes bits least significant bit first.
+     */
+    static final class BitWriter {
+        private byte[] bytes;
+        private int position;
+        private long buffer;
+        private int used;
+
+        BitWriter(int capacity) {
+            this.bytes = new byte[Math.max(64, capacity)];
+        }
+
+        void write(int value, int count) {
+            if (count == 0) {
+                return;
+            }
+            this.buffer |= (value & ((1L << count) - 1)) << this.used;
+            this.used += count;
+            while (this.used >= 8) {
+                if (this.position == this.bytes.length) {
+                    this.bytes = Arrays.copyOf(this.bytes, this.bytes.length << 1);
+                }
+                this.bytes[this.position++] = (byte) this.buffer;
+                this.buffer >>>= 8;
+                this.used -= 8;
+            }
+        }
+
+        byte @NotNull [] toByteArray() {
+            if (this.used > 0) {
+                write(0, 8 - this.used);
+            }
+            return Arrays.copyOf(this.bytes, this.position);
+        }
+    }
+}
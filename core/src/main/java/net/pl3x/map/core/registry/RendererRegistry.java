@@ -29,6 +29,7 @@ import net.pl3x.map.core.renderer.BiomeRenderer;
 import net.pl3x.map.core.renderer.BlockInfoRenderer;
 import net.pl3x.map.core.renderer.FlowerMapRenderer;
 import net.pl3x.map.core.renderer.InhabitedRenderer;
+import net.pl3x.map.core.renderer.Layer;
 import net.pl3x.map.core.renderer.NetherRoofRenderer;
 import net.pl3x.map.core.renderer.NightRenderer;
 import net.pl3x.map.core.renderer.Renderer;
@@ -49,12 +50,16 @@ public class RendererRegistry extends Registry<Renderer.@NotNull Builder> {
     public static final String NETHER_ROOF = "nether_roof";
 
     public void register() {
-        register(BASIC, new Renderer.Builder(BASIC, "Basic", BasicRenderer.class));
+        register(BASIC, new Renderer.Builder(BASIC, "Basic", BasicRenderer.class)
+                .produces(Layer.BASIC_COLOR));
         register(BIOMES, new Renderer.Builder(BIOMES, "Biomes", BiomeRenderer.class));
-        register(BLOCKINFO, new Renderer.Builder(BLOCKINFO, "BlockInfo", BlockInfoRenderer.class));
+        register(BLOCKINFO, new Renderer.Builder(BLOCKINFO, "BlockInfo", BlockInfoRenderer.class)
+                .consumes(Layer.BIOME));
         register(FLOWERMAP, new Renderer.Builder(FLOWERMAP, "FlowerMap", FlowerMapRenderer.class));
-        register(INHABITED, new Renderer.Builder(INHABITED, "Inhabited", InhabitedRenderer.class));
-        register(NIGHT, new Renderer.Builder(NIGHT, "Night", NightRenderer.class));
+        register(INHABITED, new Renderer.Builder(INHABITED, "Inhabited", InhabitedRenderer.class)
+                .consumes(Layer.BASIC_COLOR));
+        register(NIGHT, new Renderer.Builder(NIGHT, "Night", NightRenderer.class)
+                .consumes(Layer.BASIC_COLOR));
         register(VANILLA, new Renderer.Builder(VANILLA, "Vanilla", VanillaRenderer.class));
         register(VINTAGE_STORY, new Renderer.Builder(VINTAGE_STORY, "VintageStory", VintageStoryRenderer.class));
         register(NETHER_ROOF, new Renderer.Builder(NETHER_ROOF, "NetherRoof", NetherRoofRenderer.class));
@@ -46,6 +46,8 @@ public class WorldRegistry extends Registry<@NotNull World> {
         if (world != null) {
             Pl3xMap.api().getEventRegistry().callEvent(new WorldUnloadedEvent(world));
             world.getMarkerTask().cancel();
+            world.getTileTask().cancel();
+            world.getOptimizeTask().cancel();
             //world.getRegionFileWatcher().stop();
             world.cleanup();
         }
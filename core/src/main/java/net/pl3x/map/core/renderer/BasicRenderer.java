@@ -34,8 +34,14 @@ public final class BasicRenderer extends Renderer {
     }
 
     @Override
-    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, Chunk.@NotNull BlockData data, int blockX, int blockZ) {
-        int pixelColor = basicPixelColor(region, data, blockX, blockZ);
+    public boolean supportsParallelScan() {
+        return true;
+    }
+
+    @Override
+    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, int index, int blockX, int blockZ) {
+        int pixelColor = basicPixelColor(region, chunk, index, blockX, blockZ);
         getTileImage().setPixel(blockX, blockZ, pixelColor);
+        setLayer(Layer.BASIC_COLOR, blockX, blockZ, pixelColor);
     }
 }
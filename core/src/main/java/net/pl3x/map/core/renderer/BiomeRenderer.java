@@ -23,7 +23,6 @@
  */
 package net.pl3x.map.core.renderer;
 
-import net.pl3x.map.core.configuration.ColorsConfig;
 import net.pl3x.map.core.renderer.task.RegionScanTask;
 import net.pl3x.map.core.util.Colors;
 import net.pl3x.map.core.world.Biome;
@@ -37,18 +36,23 @@ public final class BiomeRenderer extends Renderer {
     }
 
     @Override
-    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, Chunk.@NotNull BlockData data, int blockX, int blockZ) {
+    public boolean supportsParallelScan() {
+        return true;
+    }
+
+    @Override
+    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, int index, int blockX, int blockZ) {
         int pixelColor = 0;
 
-        if (data.getBlockState().getBlock().color() > 0) {
+        if (chunk.getBlockState(index).getBlock().color() > 0) {
             // determine the biome
-            Biome biome = data.getBiome(region, blockX, blockZ);
-            int color = ColorsConfig.BIOME_COLORS.getOrDefault(biome.getKey(), 0);
+            Biome biome = chunk.getBiome(index);
+            int color = biome.color();
             pixelColor = Colors.setAlpha(0xFF, color);
 
             // work out the heightmap
-            if (data.getFluidState() == null) {
-                pixelColor = Colors.blend(getHeightmap().getColor(region, blockX, blockZ), pixelColor);
+            if (chunk.getFluidStateId(index) == 0) {
+                pixelColor = Colors.blend(getHeightmapColor(region, blockX, blockZ), pixelColor);
             }
         }
 
@@ -37,7 +37,6 @@ import net.pl3x.map.core.renderer.task.RegionScanTask;
 import net.pl3x.map.core.util.ByteUtil;
 import net.pl3x.map.core.util.FileUtil;
 import net.pl3x.map.core.util.Mathf;
-import net.pl3x.map.core.world.Biome;
 import net.pl3x.map.core.world.Block;
 import net.pl3x.map.core.world.Chunk;
 import net.pl3x.map.core.world.Region;
@@ -55,18 +54,27 @@ public class BlockInfoRenderer extends Renderer {
     @Override
     public void allocateData(@NotNull Point region) {
         this.byteBuffer = ByteBuffer.allocate(512 * 512 * 4 + 12);
-        Path path = getWorld().getTilesDirectory()
-                .resolve(String.format(TileImage.DIR_PATH, 0, getKey()))
-                .resolve(String.format(TileImage.FILE_PATH, region.x(), region.z(), "pl3xmap.gz"));
+        Path path = getDataPath(region);
         try {
             if (Files.exists(path) && Files.size(path) > 0) {
                 FileUtil.readGzip(path, this.byteBuffer);
             }
         } catch (IOException ignore) {
-            // silently fail - we're clearing and rebuilding the entire byteBuffer anyway in scanData()
+            // silently fail - we're clearing and rebuilding the entire byteBuffer anyway in preScan()
         }
     }
 
+    @Override
+    public boolean hasSavedData(@NotNull Point region) {
+        return Files.exists(getDataPath(region));
+    }
+
+    private @NotNull Path getDataPath(@NotNull Point region) {
+        return getWorld().getTilesDirectory()
+                .resolve(String.format(TileImage.DIR_PATH, 0, getKey()))
+                .resolve(String.format(TileImage.FILE_PATH, region.x(), region.z(), "pl3xmap.gz"));
+    }
+
     @Override
     public void saveData(@NotNull Point region) {
         Path tilesDir = getWorld().getTilesDirectory();
@@ -143,31 +151,34 @@ public class BlockInfoRenderer extends Renderer {
     }
 
     @Override
-    public void scanData(@NotNull Region region) {
+    public void preScan(@NotNull Region region) {
         this.byteBuffer.clear();
 
         this.byteBuffer.put(0, ByteUtil.toBytes(0x706C3378)); // pl3x
         this.byteBuffer.put(4, ByteUtil.toBytes(0x6D617001)); // map1
         this.byteBuffer.put(8, ByteUtil.toBytes(getWorld().getMinBuildHeight()));
+    }
 
-        super.scanData(region);
+    @Override
+    public boolean supportsParallelScan() {
+        return true;
     }
 
     @Override
-    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, Chunk.@NotNull BlockData data, int blockX, int blockZ) {
-        boolean fluid = data.getFluidState() != null;
+    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, int index, int blockX, int blockZ) {
+        boolean fluid = chunk.getFluidStateId(index) != 0;
 
-        int y = (fluid ? data.getFluidY() : data.getBlockY()) - getWorld().getMinBuildHeight();
+        int y = (fluid ? chunk.getFluidY(index) : chunk.getBlockY(index)) - getWorld().getMinBuildHeight();
 
-        Block block = (fluid ? data.getFluidState() : data.getBlockState()).getBlock();
-        Biome biome = data.getBiome(region, blockX, blockZ);
+        Block block = (fluid ? chunk.getFluidState(index) : chunk.getBlockState(index)).getBlock();
+        int biome = getLayer(Layer.BIOME, region, blockX, blockZ);
 
         // 11111111111111111111111111111111 - 32 bits - (4294967295)
         // 1111111111                       - 10 bits - block (1023)
         //           1111111111             - 10 bits - biome (1023)
         //                     111111111111 - 12 bits - yPos  (4095)
-        int packed = ((block.getIndex() & 1023) << 22) | ((biome.index() & 1023) << 12) | (y & 4095);
-        int index = (blockZ & 511) * 512 + (blockX & 511);
-        this.byteBuffer.put(12 + index * 4, ByteUtil.toBytes(packed));
+        int packed = ((block.getIndex() & 1023) << 22) | ((biome & 1023) << 12) | (y & 4095);
+        int pixel = (blockZ & 511) * 512 + (blockX & 511);
+        this.byteBuffer.put(12 + pixel * 4, ByteUtil.toBytes(packed));
     }
 }
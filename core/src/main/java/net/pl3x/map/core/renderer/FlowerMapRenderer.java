@@ -55,21 +55,26 @@ public class FlowerMapRenderer extends Renderer {
     }
 
     @Override
-    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, Chunk.@NotNull BlockData data, int blockX, int blockZ) {
+    public boolean supportsParallelScan() {
+        return true;
+    }
+
+    @Override
+    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, int index, int blockX, int blockZ) {
         int pixelColor = 0x7F7F7F;
 
-        Biome biome = data.getBiome(region, blockX, blockZ);
+        Biome biome = chunk.getBiome(index);
 
-        Block flower = Pl3xMap.api().getFlower(region.getWorld(), biome, blockX, data.getBlockY(), blockZ);
+        Block flower = Pl3xMap.api().getFlower(region.getWorld(), biome, blockX, chunk.getBlockY(index), blockZ);
         if (flower != null) {
             pixelColor = (0xFF << 24) | (this.colorMap.getOrDefault(flower, pixelColor) & 0xFFFFFF);
         }
 
         // work out the heightmap
-        pixelColor = Colors.blend(getHeightmap().getColor(region, blockX, blockZ), pixelColor);
+        pixelColor = Colors.blend(getHeightmapColor(region, blockX, blockZ), pixelColor);
 
         // fluid stuff
-        pixelColor = processFluids(getWorld().getConfig().RENDER_TRANSLUCENT_FLUIDS, region, biome, data, blockX, blockZ, pixelColor);
+        pixelColor = processFluids(getWorld().getConfig().RENDER_TRANSLUCENT_FLUIDS, region, biome, chunk, index, blockX, blockZ, pixelColor);
 
         // draw color data to image
         getTileImage().setPixel(blockX, blockZ, pixelColor);
@@ -23,38 +23,33 @@
  */
 package net.pl3x.map.core.renderer;
 
-import net.pl3x.map.core.registry.RendererRegistry;
 import net.pl3x.map.core.renderer.task.RegionScanTask;
 import net.pl3x.map.core.util.Colors;
 import net.pl3x.map.core.util.Mathf;
 import net.pl3x.map.core.world.Chunk;
+import net.pl3x.map.core.world.ChunkFingerprint;
 import net.pl3x.map.core.world.Region;
 import org.jetbrains.annotations.NotNull;
 
 public final class InhabitedRenderer extends Renderer {
-    private Renderer basic;
-
     public InhabitedRenderer(@NotNull RegionScanTask task, @NotNull Builder builder) {
         super(task, builder);
     }
 
-    public void scanData(@NotNull Region region) {
-        // get the basic renderer so we can copy its tiles
-        this.basic = getRegionScanTask().getRenderer(RendererRegistry.BASIC);
-        super.scanData(region);
+    @Override
+    public void fingerprint(@NotNull Chunk chunk, @NotNull ChunkFingerprint fingerprint) {
+        fingerprint.put(chunk.getInhabitedTime());
+    }
+
+    @Override
+    public boolean supportsParallelScan() {
+        return true;
     }
 
     @Override
-    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, Chunk.@NotNull BlockData data, int blockX, int blockZ) {
-        // get basic pixel color
-        int pixelColor;
-        if (this.basic != null) {
-            // get current color from basic renderer
-            pixelColor = this.basic.getTileImage().getPixel(blockX, blockZ);
-        } else {
-            // could not find basic renderer (disabled?), we have to draw it ourselves
-            pixelColor = basicPixelColor(region, data, blockX, blockZ);
-        }
+    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, int index, int blockX, int blockZ) {
+        // get basic pixel color, from the basic renderer if it is enabled
+        int pixelColor = hasLayer(Layer.BASIC_COLOR) ? getLayer(Layer.BASIC_COLOR, region, blockX, blockZ) : basicPixelColor(region, chunk, index, blockX, blockZ);
 
         // we hsb lerp between blue and red with ratio being the
         // percent inhabited time is of the maxed out inhabited time
@@ -0,0 +1,84 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.renderer;
+
+import net.pl3x.map.core.Keyed;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A per-pixel intermediate product of a region scan.
+ * <p>
+ * Renderers declare the layers they consume and produce on their {@link Renderer.Builder}.
+ * The region scan orders renderers so producers run before their consumers, keeps each
+ * layer only while a consumer still needs it, and lets every consumer reuse the same values.
+ * <p>
+ * Built-in layers are worked out by the region scan itself, on demand.
+ */
+public final class Layer extends Keyed {
+    /**
+     * Registry index of the surface biome.
+     */
+    public static final Layer BIOME = new Layer("biome", true);
+    /**
+     * Biome tinted color of the surface block, without any shading.
+     */
+    public static final Layer BLOCK_COLOR = new Layer("block_color", true);
+    /**
+     * Shading of the world's configured heightmap.
+     */
+    public static final Layer HEIGHTMAP_SHADE = new Layer("heightmap_shade", true);
+    /**
+     * Block light level right above the surface.
+     */
+    public static final Layer LIGHT = new Layer("light", true);
+    /**
+     * Final color of the basic map, produced by the basic renderer.
+     */
+    public static final Layer BASIC_COLOR = new Layer("basic_color");
+
+    private final boolean builtIn;
+
+    /**
+     * Create a new layer produced by a renderer.
+     *
+     * @param key unique key for the layer
+     */
+    public Layer(@NotNull String key) {
+        this(key, false);
+    }
+
+    private Layer(@NotNull String key, boolean builtIn) {
+        super(key);
+        this.builtIn = builtIn;
+    }
+
+    /**
+     * Check if this layer is worked out by the region scan instead of a renderer.
+     *
+     * @return true if built-in
+     */
+    public boolean isBuiltIn() {
+        return this.builtIn;
+    }
+}
@@ -34,6 +34,12 @@ public class NetherRoofRenderer extends VanillaRenderer {
         super(task, builder);
     }
 
+    @Override
+    public boolean supportsFusedScan() {
+        // the chunk data is found below the ceiling, we need the roof itself
+        return !getWorld().hasCeiling() && super.supportsFusedScan();
+    }
+
     @Override
     protected int getBlockBelowCeiling(int blockY, Chunk chunk, int blockX, int blockZ) {
         return blockY;
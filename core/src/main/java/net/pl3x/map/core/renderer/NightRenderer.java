@@ -23,39 +23,42 @@
  */
 package net.pl3x.map.core.renderer;
 
-import net.pl3x.map.core.registry.RendererRegistry;
 import net.pl3x.map.core.renderer.task.RegionScanTask;
 import net.pl3x.map.core.world.Chunk;
+import net.pl3x.map.core.world.ChunkFingerprint;
 import net.pl3x.map.core.world.Region;
 import org.jetbrains.annotations.NotNull;
 
 public final class NightRenderer extends Renderer {
-    private Renderer basic;
-
     public NightRenderer(@NotNull RegionScanTask task, @NotNull Builder builder) {
         super(task, builder);
     }
 
-    public void scanData(@NotNull Region region) {
-        // get the basic renderer so we can copy its tiles
-        this.basic = getRegionScanTask().getRenderer(RendererRegistry.BASIC);
-        super.scanData(region);
+    @Override
+    public void fingerprint(@NotNull Chunk chunk, @NotNull ChunkFingerprint fingerprint) {
+        // light level right above each block
+        int startX = chunk.getX() << 4;
+        int startZ = chunk.getZ() << 4;
+        for (int i = 0; i < 256; i++) {
+            if (chunk.hasData(i)) {
+                int y = chunk.getFluidStateId(i) == 0 ? chunk.getBlockY(i) : chunk.getFluidY(i);
+                fingerprint.put(chunk.getLight(startX + (i & 0xF), y + 1, startZ + (i >> 4)));
+            }
+        }
     }
 
     @Override
-    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, Chunk.@NotNull BlockData data, int blockX, int blockZ) {
-        // get basic pixel color
-        int pixelColor;
-        if (this.basic != null) {
-            // get current color from basic renderer
-            pixelColor = this.basic.getTileImage().getPixel(blockX, blockZ);
-        } else {
-            // could not find basic renderer (disabled?), we have to draw it ourselves
-            pixelColor = basicPixelColor(region, data, blockX, blockZ);
-        }
+    public boolean supportsParallelScan() {
+        return true;
+    }
+
+    @Override
+    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, int index, int blockX, int blockZ) {
+        // get basic pixel color, from the basic renderer if it is enabled
+        int pixelColor = hasLayer(Layer.BASIC_COLOR) ? getLayer(Layer.BASIC_COLOR, region, blockX, blockZ) : basicPixelColor(region, chunk, index, blockX, blockZ);
 
         // get light level right above this block
-        int lightPixel = calculateLight(chunk, data.getFluidState(), blockX, data.getBlockY(), blockZ, data.getFluidY(), pixelColor);
+        int lightPixel = calculateLight(chunk, chunk.getFluidState(index), blockX, chunk.getBlockY(index), blockZ, chunk.getFluidY(index), pixelColor);
         getTileImage().setPixel(blockX, blockZ, lightPixel);
     }
 }
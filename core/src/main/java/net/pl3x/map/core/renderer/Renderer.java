@@ -23,8 +23,13 @@
  */
 package net.pl3x.map.core.renderer;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.Set;
 import net.pl3x.map.core.Keyed;
 import net.pl3x.map.core.Pl3xMap;
 import net.pl3x.map.core.image.TileImage;
@@ -37,6 +42,7 @@ import net.pl3x.map.core.world.Biome;
 import net.pl3x.map.core.world.BlockState;
 import net.pl3x.map.core.world.Blocks;
 import net.pl3x.map.core.world.Chunk;
+import net.pl3x.map.core.world.ChunkFingerprint;
 import net.pl3x.map.core.world.Region;
 import net.pl3x.map.core.world.World;
 import org.jetbrains.annotations.NotNull;
@@ -44,6 +50,7 @@ import org.jetbrains.annotations.Nullable;
 
 public abstract class Renderer extends Keyed {
     private final RegionScanTask task;
+    private final Builder builder;
     private final String name;
     private final World world;
     private final Heightmap heightmap;
@@ -53,6 +60,7 @@ public abstract class Renderer extends Keyed {
     public Renderer(@NotNull RegionScanTask task, @NotNull Builder builder) {
         super(builder.getKey());
         this.task = task;
+        this.builder = builder;
         this.name = builder.getName();
         this.world = task.getWorld();
 
@@ -72,10 +80,69 @@ public abstract class Renderer extends Keyed {
         return this.name;
     }
 
+    public @NotNull Builder getBuilder() {
+        return this.builder;
+    }
+
     public @NotNull Heightmap getHeightmap() {
         return this.heightmap;
     }
 
+    public @NotNull SharedPixel getSharedPixel() {
+        return this.task.getSharedPixel();
+    }
+
+    /**
+     * Get this renderer's heightmap shading for a block, shared with other renderers using the same heightmap.
+     *
+     * @param region region the block is in
+     * @param blockX block x coordinate
+     * @param blockZ block z coordinate
+     * @return heightmap shading color
+     */
+    public int getHeightmapColor(@NotNull Region region, int blockX, int blockZ) {
+        return getSharedPixel().getHeightmapColor(getHeightmap(), region, blockX, blockZ);
+    }
+
+    /**
+     * Check if a layer is available to read during this scan.
+     *
+     * @param layer layer to check
+     * @return true if the layer is built-in or produced by an enabled renderer
+     */
+    public boolean hasLayer(@NotNull Layer layer) {
+        return this.task.hasLayer(layer);
+    }
+
+    /**
+     * Get the value of a layer for a block.
+     * <p>
+     * The layer should be declared with {@link Builder#consumes(Layer...)}.
+     *
+     * @param layer  layer to read
+     * @param region region the block is in
+     * @param blockX block x coordinate
+     * @param blockZ block z coordinate
+     * @return layer value, or 0 if the layer is not available
+     */
+    public int getLayer(@NotNull Layer layer, @NotNull Region region, int blockX, int blockZ) {
+        return this.task.getLayer(layer, region, blockX, blockZ);
+    }
+
+    /**
+     * Set the value of a layer for a block.
+     * <p>
+     * The layer should be declared with {@link Builder#produces(Layer...)}.
+     *
+     * @param layer  layer to write
+     * @param blockX block x coordinate
+     * @param blockZ block z coordinate
+     * @param value  layer value
+     */
+    public void setLayer(@NotNull Layer layer, int blockX, int blockZ, int value) {
+        this.task.setLayer(layer, blockX, blockZ, value);
+    }
+
     public @NotNull TileImage getTileImage() {
         return this.tileImage;
     }
@@ -88,82 +155,145 @@ public abstract class Renderer extends Keyed {
         this.tileImage.saveToDisk();
     }
 
-    public void scanData(@NotNull Region region) {
-        int cX = region.getX() << 5;
-        int cZ = region.getZ() << 5;
-
-        // iterate each chunk in this region
-        for (int chunkX = cX; chunkX < cX + 32; chunkX++) {
-            int bX = chunkX << 4;
-            for (int chunkZ = cZ; chunkZ < cZ + 32; chunkZ++) {
-                // skip any blocks that do not need to be rendered due to visibility limits
-                if (!getWorld().visibleChunk(chunkX, chunkZ)) {
-                    continue;
-                }
-                int bZ = chunkZ << 4;
-                Chunk chunk = region.getChunk(chunkX, chunkZ);
-                // iterate each block in this chunk
-                for (int blockX = bX; blockX < bX + 16; blockX++) {
-                    for (int blockZ = bZ; blockZ < bZ + 16; blockZ++) {
-                        Pl3xMap.api().getRegionProcessor().checkPaused();
-                        // skip any blocks that do not need to be rendered due to visibility limits
-                        if (!getWorld().visibleBlock(blockX, blockZ)) {
-                            continue;
-                        }
-                        Chunk.BlockData data = chunk.getData(blockX, blockZ);
-                        if (data == null) {
-                            // this shouldn't happen, but just in case...
-                            continue;
-                        }
-                        scanBlock(region, chunk, data, blockX, blockZ);
-                    }
-                }
-            }
+    /**
+     * Check if this renderer has previously saved data for the region.
+     * <p>
+     * Regions without saved data are always rendered in full, even if only a few chunks changed.
+     *
+     * @param region region position
+     * @return true if data for this region exists on disk
+     */
+    public boolean hasSavedData(@NotNull Point region) {
+        return this.tileImage != null && this.tileImage.exists();
+    }
+
+    /**
+     * Mix any chunk data this renderer uses, beyond the populated surface data, into the chunk's fingerprint.
+     * <p>
+     * Chunks with an unchanged fingerprint are not rendered again.
+     *
+     * @param chunk       populated chunk
+     * @param fingerprint fingerprint to add to
+     */
+    public void fingerprint(@NotNull Chunk chunk, @NotNull ChunkFingerprint fingerprint) {
+    }
+
+    /**
+     * Check if this renderer can run as a per-pixel stage of the shared region scan.
+     * <p>
+     * Renderers that override {@link #scanData(Region)} do their own traversal and are scanned on their own.
+     *
+     * @return true if {@link #scanBlock(Region, Chunk, int, int, int)} can be called from the shared scan
+     */
+    public boolean supportsFusedScan() {
+        try {
+            return getClass().getMethod("scanData", Region.class).getDeclaringClass() == Renderer.class;
+        } catch (NoSuchMethodException e) {
+            return false;
         }
     }
 
-    public abstract void scanBlock(@NotNull Region region, @NotNull Chunk chunk, Chunk.@NotNull BlockData data, int blockX, int blockZ);
+    /**
+     * Check if {@link #scanBlock(Region, Chunk, int, int, int)} can be called for different columns of the same region
+     * from several threads at once.
+     * <p>
+     * Regions are split up into blocks of chunks that are scanned in parallel when render threads are idle.
+     * Renderers keeping per-column state in fields have to return false, which scans the region on a single thread.
+     *
+     * @return true if blocks can be scanned in parallel
+     */
+    public boolean supportsParallelScan() {
+        return false;
+    }
 
-    public int basicPixelColor(@NotNull Region region, Chunk.@NotNull BlockData data, int blockX, int blockZ) {
+    /**
+     * Called before any blocks of the region are scanned.
+     *
+     * @param region region being scanned
+     */
+    public void preScan(@NotNull Region region) {
+    }
+
+    /**
+     * Called after all blocks of the region were scanned.
+     *
+     * @param region region being scanned
+     */
+    public void postScan(@NotNull Region region) {
+    }
+
+    public void scanData(@NotNull Region region) {
+        preScan(region);
+        getRegionScanTask().scanBlocks(region, List.of(this));
+        postScan(region);
+    }
+
+    /**
+     * Render a single block column.
+     *
+     * @param region region being scanned
+     * @param chunk  chunk the column is in
+     * @param index  column index in the chunk's surface data, see {@link Chunk#index(int, int)}
+     * @param blockX block x coordinate
+     * @param blockZ block z coordinate
+     */
+    public abstract void scanBlock(@NotNull Region region, @NotNull Chunk chunk, int index, int blockX, int blockZ);
+
+    public int basicPixelColor(@NotNull Region region, @NotNull Chunk chunk, int index, int blockX, int blockZ) {
+        // other renderers using the same heightmap most likely already worked this out
+        return getSharedPixel().getBasicColor(getHeightmap(), blockX, blockZ, () -> calculateBasicPixelColor(region, chunk, index, blockX, blockZ));
+    }
+
+    private int calculateBasicPixelColor(@NotNull Region region, @NotNull Chunk chunk, int index, int blockX, int blockZ) {
         // get biome once
-        Biome biome = data.getBiome(region, blockX, blockZ);
+        Biome biome = chunk.getBiome(index);
 
         // fix true block color
         int pixelColor = 0;
-        if (data.getFluidState() == null || region.getWorld().getConfig().RENDER_TRANSLUCENT_FLUIDS) {
+        if (chunk.getFluidStateId(index) == 0 || region.getWorld().getConfig().RENDER_TRANSLUCENT_FLUIDS) {
             // not flat fluids, we need to draw land
-            pixelColor = Colors.fixBlockColor(region, biome, data.getBlockState(), blockX, blockZ);
+            pixelColor = getSharedPixel().getBlockColor(region, biome, chunk.getBlockState(index), blockX, blockZ);
             if (pixelColor != 0) {
                 // fix alpha
                 pixelColor = Colors.setAlpha(0xFF, pixelColor);
                 // work out the heightmap
-                pixelColor = Colors.blend(getHeightmap().getColor(region, blockX, blockZ), pixelColor);
+                pixelColor = Colors.blend(getHeightmapColor(region, blockX, blockZ), pixelColor);
             }
         }
 
         // fix up water color
-        pixelColor = processFluids(region.getWorld().getConfig().RENDER_TRANSLUCENT_FLUIDS, region, biome, data, blockX, blockZ, pixelColor);
+        pixelColor = processFluids(region.getWorld().getConfig().RENDER_TRANSLUCENT_FLUIDS, region, biome, chunk, index, blockX, blockZ, pixelColor);
 
         // if there was translucent glass, mix it in here
-        for (int color : data.getGlassColors()) {
-            pixelColor = Colors.blend(color, pixelColor);
-        }
+        return blendGlass(chunk, index, pixelColor);
+    }
 
-        return pixelColor;
+    /**
+     * Blend the translucent glass above a column's top block over its pixel color.
+     *
+     * @param chunk      chunk the column is in
+     * @param index      column index
+     * @param pixelColor pixel color of the column
+     * @return pixel color with the glass blended in
+     */
+    public int blendGlass(@NotNull Chunk chunk, int index, int pixelColor) {
+        int glass = chunk.getGlassColor(index);
+        return glass == 0 ? pixelColor : Colors.blend(glass, pixelColor);
     }
 
-    public int processFluids(boolean translucentFluid, @NotNull Region region, @NotNull Biome biome, Chunk.@NotNull BlockData data, int blockX, int blockZ, int pixelColor) {
-        if (data.getFluidState() != null) {
-            int fluidDepth = data.getFluidY() - data.getBlockY();
+    public int processFluids(boolean translucentFluid, @NotNull Region region, @NotNull Biome biome, @NotNull Chunk chunk, int index, int blockX, int blockZ, int pixelColor) {
+        BlockState fluidstate = chunk.getFluidState(index);
+        if (fluidstate != null) {
+            int fluidDepth = chunk.getFluidY(index) - chunk.getBlockY(index);
             if (translucentFluid) {
                 // fancy fluids, yum
-                int fluidColor = fancyFluids(region, biome, data.getFluidState(), blockX, blockZ, fluidDepth * 0.025F);
+                int fluidColor = fancyFluids(region, biome, fluidstate, blockX, blockZ, fluidDepth * 0.025F);
                 return Colors.blend(fluidColor, pixelColor);
             }
             double diffY = fluidDepth * 0.1D + (blockX + blockZ & 1) * 0.2D;
             return Colors.shade(
-                    data.getFluidState().getBlock().isWater() ?
-                            Colors.getWaterColor(region, biome, blockX, blockZ) :
+                    fluidstate.getBlock().isWater() ?
+                            getSharedPixel().getWaterColor(region, biome, blockX, blockZ) :
                             Blocks.LAVA.color(),
                     diffY < 0.5D ? 0xFF : (diffY > 0.9D ? 0xB4 : 0xDC)
             );
@@ -175,7 +305,7 @@ public abstract class Renderer extends Keyed {
         // let's do some maths to get pretty fluid colors based on depth
         int color;
         if (fluidstate.getBlock().isWater()) {
-            color = Colors.getWaterColor(region, biome, blockX, blockZ);
+            color = getSharedPixel().getWaterColor(region, biome, blockX, blockZ);
             color = Colors.lerpARGB(color, 0xFF000000, Mathf.clamp(0, 0.45F, Easing.cubicOut(depth / 1.5F)));
             color = Colors.setAlpha((int) (Easing.quinticOut(Mathf.clamp(0, 1, depth * 5F)) * 0xFF), color);
         } else {
@@ -217,6 +347,8 @@ public abstract class Renderer extends Keyed {
     public static final class Builder extends Keyed {
         private final @NotNull String name;
         private final @NotNull Class<? extends @NotNull Renderer> clazz;
+        private final Set<@NotNull Layer> consumes = new LinkedHashSet<>();
+        private final Set<@NotNull Layer> produces = new LinkedHashSet<>();
 
         public Builder(@NotNull String key, @NotNull String name, @NotNull Class<? extends @NotNull Renderer> clazz) {
             super(key);
@@ -224,6 +356,36 @@ public abstract class Renderer extends Keyed {
             this.clazz = clazz;
         }
 
+        /**
+         * Declare layers this renderer reads.
+         *
+         * @param layers layers read by this renderer
+         * @return this builder
+         */
+        public @NotNull Builder consumes(@NotNull Layer @NotNull ... layers) {
+            this.consumes.addAll(Arrays.asList(layers));
+            return this;
+        }
+
+        /**
+         * Declare layers this renderer writes.
+         *
+         * @param layers layers written by this renderer
+         * @return this builder
+         */
+        public @NotNull Builder produces(@NotNull Layer @NotNull ... layers) {
+            this.produces.addAll(Arrays.asList(layers));
+            return this;
+        }
+
+        public @NotNull Set<@NotNull Layer> getConsumes() {
+            return Collections.unmodifiableSet(this.consumes);
+        }
+
+        public @NotNull Set<@NotNull Layer> getProduces() {
+            return Collections.unmodifiableSet(this.produces);
+        }
+
         public @NotNull String getName() {
             return name;
         }
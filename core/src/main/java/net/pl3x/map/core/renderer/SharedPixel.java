@@ -0,0 +1,207 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.renderer;
+
+import java.util.Arrays;
+import java.util.function.IntSupplier;
+import net.pl3x.map.core.renderer.heightmap.Heightmap;
+import net.pl3x.map.core.renderer.task.RegionScanTask;
+import net.pl3x.map.core.util.Colors;
+import net.pl3x.map.core.world.Biome;
+import net.pl3x.map.core.world.BlockState;
+import net.pl3x.map.core.world.Region;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Per-pixel values shared between all renderers of a region scan.
+ * <p>
+ * The region is traversed once and every column is handed to each renderer in
+ * turn. Values more than one renderer needs (block color, water color, heightmap
+ * shading, basic pixel color) are calculated by the first renderer that asks for
+ * them and reused by the rest, until the scan moves to the next column.
+ * <p>
+ * When parts of the region are scanned on different threads, every thread gets its own instance.
+ */
+public class SharedPixel {
+    /**
+     * Returned by {@link #getPreviousRow(Object, int, int)} when the row to the north was not scanned by this thread.
+     */
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private final RegionScanTask task;
+
+    private int blockX;
+    private int blockZ;
+    private boolean valid;
+
+    private int blockColor;
+    private boolean hasBlockColor;
+
+    private int waterColor;
+    private boolean hasWaterColor;
+
+    private final Memo heightmapColors = new Memo();
+    private final Memo basicColors = new Memo();
+    private final Rows previousRows = new Rows();
+
+    public SharedPixel(@NotNull RegionScanTask task) {
+        this.task = task;
+    }
+
+    private void moveTo(int blockX, int blockZ) {
+        if (this.valid && this.blockX == blockX && this.blockZ == blockZ) {
+            return;
+        }
+        this.blockX = blockX;
+        this.blockZ = blockZ;
+        this.valid = true;
+        this.hasBlockColor = false;
+        this.hasWaterColor = false;
+        this.heightmapColors.clear();
+        this.basicColors.clear();
+    }
+
+    /**
+     * Forget all values, forcing them to be calculated again.
+     */
+    public void invalidate() {
+        this.valid = false;
+    }
+
+    public int getBlockColor(@NotNull Region region, @NotNull Biome biome, @NotNull BlockState blockstate, int blockX, int blockZ) {
+        moveTo(blockX, blockZ);
+        if (!this.hasBlockColor) {
+            this.blockColor = Colors.fixBlockColor(this.task.getHeightfield(region), biome, blockstate, blockX, blockZ);
+            this.hasBlockColor = true;
+        }
+        return this.blockColor;
+    }
+
+    public int getWaterColor(@NotNull Region region, @NotNull Biome biome, int blockX, int blockZ) {
+        moveTo(blockX, blockZ);
+        if (!this.hasWaterColor) {
+            this.waterColor = Colors.getWaterColor(this.task.getHeightfield(region), biome, blockX, blockZ);
+            this.hasWaterColor = true;
+        }
+        return this.waterColor;
+    }
+
+    public int getHeightmapColor(@NotNull Heightmap heightmap, @NotNull Region region, int blockX, int blockZ) {
+        moveTo(blockX, blockZ);
+        return this.heightmapColors.get(heightmap, () -> heightmap.getColor(this.task.getHeightfield(region), blockX, blockZ));
+    }
+
+    public int getBasicColor(@NotNull Heightmap heightmap, int blockX, int blockZ, @NotNull IntSupplier color) {
+        moveTo(blockX, blockZ);
+        return this.basicColors.get(heightmap, color);
+    }
+
+    /**
+     * Get a value stored for the block to the north of this column.
+     * <p>
+     * Columns are scanned north to south, so the block to the north is usually the one this thread scanned last.
+     *
+     * @param key    owner of the value, usually the renderer
+     * @param blockX block x coordinate of this column
+     * @param blockZ block z coordinate of this column
+     * @return stored value, or {@link #UNKNOWN} if the block to the north was not scanned by this thread
+     */
+    public int getPreviousRow(@NotNull Object key, int blockX, int blockZ) {
+        return this.previousRows.get(key, blockX, blockZ - 1);
+    }
+
+    /**
+     * Store a value of this column for the row to the south of it.
+     *
+     * @param key    owner of the value, usually the renderer
+     * @param blockX block x coordinate of this column
+     * @param blockZ block z coordinate of this column
+     * @param value  value to store
+     * @see #getPreviousRow(Object, int, int)
+     */
+    public void setPreviousRow(@NotNull Object key, int blockX, int blockZ, int value) {
+        this.previousRows.set(key, blockX, blockZ, value);
+    }
+
+    private static final class Rows {
+        private final Object[] keys = new Object[4];
+        private final int[][] rows = new int[4][];
+        private final int[][] values = new int[4][];
+        private int size;
+
+        private int get(@NotNull Object key, int blockX, int blockZ) {
+            for (int i = 0; i < this.size; i++) {
+                if (this.keys[i] == key) {
+                    int column = blockX & 0x1FF;
+                    return this.rows[i][column] == blockZ ? this.values[i][column] : UNKNOWN;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        private void set(@NotNull Object key, int blockX, int blockZ, int value) {
+            int i = 0;
+            while (i < this.size && this.keys[i] != key) {
+                i++;
+            }
+            if (i == this.size) {
+                if (this.size == this.keys.length) {
+                    return;
+                }
+                this.keys[i] = key;
+                this.rows[i] = new int[512];
+                this.values[i] = new int[512];
+                Arrays.fill(this.rows[i], UNKNOWN);
+                this.size++;
+            }
+            int column = blockX & 0x1FF;
+            this.rows[i][column] = blockZ;
+            this.values[i][column] = value;
+        }
+    }
+
+    private static final class Memo {
+        private final Object[] keys = new Object[4];
+        private final int[] values = new int[4];
+        private int size;
+
+        private int get(@NotNull Object key, @NotNull IntSupplier supplier) {
+            for (int i = 0; i < this.size; i++) {
+                if (this.keys[i] == key) {
+                    return this.values[i];
+                }
+            }
+            int value = supplier.getAsInt();
+            if (this.size < this.keys.length) {
+                this.keys[this.size] = key;
+                this.values[this.size++] = value;
+            }
+            return value;
+        }
+
+        private void clear() {
+            this.size = 0;
+        }
+    }
+}
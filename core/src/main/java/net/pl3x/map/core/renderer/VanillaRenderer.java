@@ -27,18 +27,33 @@ import net.pl3x.map.core.Pl3xMap;
 import net.pl3x.map.core.renderer.heightmap.Heightmap;
 import net.pl3x.map.core.renderer.task.RegionScanTask;
 import net.pl3x.map.core.util.Colors;
+import net.pl3x.map.core.world.Block;
 import net.pl3x.map.core.world.BlockState;
 import net.pl3x.map.core.world.Chunk;
+import net.pl3x.map.core.world.ChunkFingerprint;
 import net.pl3x.map.core.world.EmptyChunk;
 import net.pl3x.map.core.world.Region;
 import org.jetbrains.annotations.NotNull;
 
 public class VanillaRenderer extends Renderer {
     private final Heightmap heightmap;
+    private final boolean compatible;
+    private final ThreadLocal<@NotNull Surface> surfaces = ThreadLocal.withInitial(Surface::new);
 
     public VanillaRenderer(@NotNull RegionScanTask task, @NotNull Builder builder) {
         super(task, builder);
         this.heightmap = Pl3xMap.api().getHeightmapRegistry().get("old_school");
+
+        // the chunk data stops at the first block with a map color, we stop at
+        // the first block with a vanilla color. those have to agree for every block
+        boolean compatible = true;
+        for (Block block : Pl3xMap.api().getBlockRegistry()) {
+            if ((block.color() > 0) != (block.vanilla() > 0)) {
+                compatible = false;
+                break;
+            }
+        }
+        this.compatible = compatible;
     }
 
     @Override
@@ -46,11 +61,46 @@ public class VanillaRenderer extends Renderer {
         return this.heightmap;
     }
 
+    @Override
+    public void fingerprint(@NotNull Chunk chunk, @NotNull ChunkFingerprint fingerprint) {
+        // vanilla colors can show blocks the populated surface data skips over
+        if (chunk.noHeightmap()) {
+            return;
+        }
+        int startX = chunk.getX() << 4;
+        int startZ = chunk.getZ() << 4;
+        for (int z = startZ; z < startZ + 16; z++) {
+            for (int x = startX; x < startX + 16; x++) {
+                fingerprint.put(chunk.getWorldSurfaceY(x, z));
+            }
+        }
+    }
+
+    /**
+     * The populated chunk data can stand in for the vanilla column descent as long as
+     * every block is skipped or rendered by both the same way.
+     */
+    @Override
+    public boolean supportsFusedScan() {
+        return this.compatible;
+    }
+
+    @Override
+    public boolean supportsParallelScan() {
+        return true;
+    }
+
     @Override
     public void scanData(@NotNull Region region) {
+        if (supportsFusedScan()) {
+            super.scanData(region);
+            return;
+        }
+
         int startX = region.getX() << 9;
         int startZ = region.getZ() << 9;
 
+        Surface surface = new Surface();
         for (int pixelX = 0; pixelX < 512; pixelX++) {
             int blockX = startX + pixelX;
             double lastBlockY = 0.0D;
@@ -61,6 +111,12 @@ public class VanillaRenderer extends Renderer {
                     continue;
                 }
 
+                // skip unchanged chunks, but keep the row right above a changed chunk for shading
+                if (!getRegionScanTask().isChunkDirty(blockX >> 4, blockZ >> 4)
+                        && !getRegionScanTask().isChunkDirty(blockX >> 4, (blockZ + 1) >> 4)) {
+                    continue;
+                }
+
                 Pl3xMap.api().getRegionProcessor().checkPaused();
 
                 Chunk chunk = region.getWorld().getChunk(region, blockX >> 4, blockZ >> 4);
@@ -68,42 +124,81 @@ public class VanillaRenderer extends Renderer {
                     continue;
                 }
 
-                int blockY = chunk.noHeightmap() ? getWorld().getMaxBuildHeight() : chunk.getWorldSurfaceY(blockX, blockZ) + 1;
-                int fluidY = 0;
-                BlockState blockstate;
-                BlockState fluidstate = null;
-
-                // if world has ceiling iterate down until we find air
-                blockY = getBlockBelowCeiling(blockY, chunk, blockX, blockZ);
-
-                // iterate down until we find a renderable block
-                do {
-                    blockY -= 1;
-                    blockstate = chunk.getBlockState(blockX, blockY, blockZ);
-                    if (blockstate.getBlock().isFluid()) {
-                        if (fluidstate == null) {
-                            // get fluid information for the top fluid block
-                            fluidY = blockY;
-                            fluidstate = blockstate;
-                        }
-                        continue;
-                    }
-
-                    // test if block is renderable. we ignore blocks with black color
-                    if (blockstate.getBlock().vanilla() > 0) {
-                        break;
-                    }
-                } while (blockY > getWorld().getMinBuildHeight());
-
-                setPixel(pixelZ, fluidstate, fluidY, blockY, pixelX, blockstate, lastBlockY);
-
-                if (blockstate.getBlock().isFlat()) {
-                    blockY--;
-                }
+                findSurface(surface, chunk, -1, blockX, blockZ);
 
-                lastBlockY = blockY;
+                setPixel(pixelZ, surface.fluidstate, surface.fluidY, surface.blockY, pixelX, surface.blockstate, lastBlockY);
+
+                lastBlockY = surface.blockstate.getBlock().isFlat() ? surface.blockY - 1 : surface.blockY;
+            }
+        }
+    }
+
+    @Override
+    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, int index, int blockX, int blockZ) {
+        // parts of a region can be scanned on different threads, so every thread gets its own surface
+        Surface surface = this.surfaces.get();
+        SharedPixel sharedPixel = getSharedPixel();
+
+        // height of the block to the north, for shading. usually the row this thread just scanned
+        int lastBlockY = sharedPixel.getPreviousRow(this, blockX, blockZ);
+        if (lastBlockY == SharedPixel.UNKNOWN) {
+            lastBlockY = 0;
+            Chunk northChunk = region.getWorld().getChunk(region, blockX >> 4, (blockZ - 1) >> 4);
+            int north = Chunk.index(blockX, blockZ - 1);
+            if (northChunk.hasData(north) && getWorld().visibleBlock(blockX, blockZ - 1)) {
+                findSurface(surface, northChunk, north, blockX, blockZ - 1);
+                lastBlockY = surface.blockstate.getBlock().isFlat() ? surface.blockY - 1 : surface.blockY;
             }
         }
+
+        findSurface(surface, chunk, index, blockX, blockZ);
+
+        setPixel(blockZ & 0x1FF, surface.fluidstate, surface.fluidY, surface.blockY, blockX & 0x1FF, surface.blockstate, lastBlockY);
+
+        sharedPixel.setPreviousRow(this, blockX, blockZ, surface.blockstate.getBlock().isFlat() ? surface.blockY - 1 : surface.blockY);
+    }
+
+    private void findSurface(@NotNull Surface surface, @NotNull Chunk chunk, int index, int blockX, int blockZ) {
+        if (index >= 0 && chunk.getGlassColor(index) == 0) {
+            // same column the chunk already found, without the flat block adjustment
+            surface.blockstate = chunk.getBlockState(index);
+            surface.blockY = surface.blockstate.getBlock().isFlat() ? chunk.getBlockY(index) + 1 : chunk.getBlockY(index);
+            surface.fluidstate = chunk.getFluidState(index);
+            surface.fluidY = chunk.getFluidY(index);
+            return;
+        }
+
+        int blockY = chunk.noHeightmap() ? getWorld().getMaxBuildHeight() : chunk.getWorldSurfaceY(blockX, blockZ) + 1;
+        int fluidY = 0;
+        BlockState blockstate;
+        BlockState fluidstate = null;
+
+        // if world has ceiling iterate down until we find air
+        blockY = getBlockBelowCeiling(blockY, chunk, blockX, blockZ);
+
+        // iterate down until we find a renderable block
+        do {
+            blockY -= 1;
+            blockstate = chunk.getBlockState(blockX, blockY, blockZ);
+            if (blockstate.getBlock().isFluid()) {
+                if (fluidstate == null) {
+                    // get fluid information for the top fluid block
+                    fluidY = blockY;
+                    fluidstate = blockstate;
+                }
+                continue;
+            }
+
+            // test if block is renderable. we ignore blocks with black color
+            if (blockstate.getBlock().vanilla() > 0) {
+                break;
+            }
+        } while (blockY > getWorld().getMinBuildHeight());
+
+        surface.blockY = blockY;
+        surface.fluidY = fluidY;
+        surface.blockstate = blockstate;
+        surface.fluidstate = fluidstate;
     }
 
     private void setPixel(int pixelZ, BlockState fluidstate, int fluidY, int blockY, int pixelX, BlockState blockstate, double lastBlockY) {
@@ -148,7 +243,10 @@ public class VanillaRenderer extends Renderer {
         return blockY;
     }
 
-    @Override
-    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, Chunk.@NotNull BlockData data, int blockX, int blockZ) {
+    private static final class Surface {
+        private int blockY;
+        private int fluidY;
+        private BlockState blockstate;
+        private BlockState fluidstate;
     }
 }
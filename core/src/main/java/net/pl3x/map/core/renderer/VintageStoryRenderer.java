@@ -23,7 +23,6 @@
  */
 package net.pl3x.map.core.renderer;
 
-import java.util.Arrays;
 import net.pl3x.map.core.Pl3xMap;
 import net.pl3x.map.core.renderer.heightmap.Heightmap;
 import net.pl3x.map.core.renderer.task.RegionScanTask;
@@ -31,12 +30,18 @@ import net.pl3x.map.core.util.BlurTool;
 import net.pl3x.map.core.util.Colors;
 import net.pl3x.map.core.world.Biome;
 import net.pl3x.map.core.world.Chunk;
+import net.pl3x.map.core.world.Heightfield;
 import net.pl3x.map.core.world.Region;
 import org.jetbrains.annotations.NotNull;
 
 public class VintageStoryRenderer extends Renderer {
+    private static final int SHADOW_SIZE = 512 + 2;
+
     private final Heightmap heightmap;
 
+    private int[] pixelMap;
+    private byte[] shadowMap;
+
     public VintageStoryRenderer(@NotNull RegionScanTask task, @NotNull Builder builder) {
         super(task, builder);
         this.heightmap = Pl3xMap.api().getHeightmapRegistry().get("vintage_story");
@@ -48,96 +53,143 @@ public class VintageStoryRenderer extends Renderer {
     }
 
     @Override
-    public void scanData(@NotNull Region region) {
-        int[] pixelMap = new int[512 << 9];
-        byte[] shadowMap = new byte[512 << 9];
-        Arrays.fill(shadowMap, (byte) 0);
+    public void preScan(@NotNull Region region) {
+        this.pixelMap = new int[512 << 9];
+        // one extra pixel on every side, so the blur sees the neighboring regions
+        this.shadowMap = new byte[SHADOW_SIZE * SHADOW_SIZE];
+    }
+
+    @Override
+    public boolean supportsParallelScan() {
+        return true;
+    }
+
+    @Override
+    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, int index, int blockX, int blockZ) {
+        // get biome once
+        Biome biome = chunk.getBiome(index);
+
+        // fix true block color
+        int pixelColor = 0;
+        if (chunk.getFluidStateId(index) == 0 || region.getWorld().getConfig().RENDER_TRANSLUCENT_FLUIDS) {
+            // not flat fluids, we need to draw land
+            pixelColor = getSharedPixel().getBlockColor(region, biome, chunk.getBlockState(index), blockX, blockZ);
+            if (pixelColor != 0) {
+                // fix alpha
+                pixelColor = Colors.setAlpha(0xFF, pixelColor);
+            }
+        }
+
+        // fix up water color
+        pixelColor = processFluids(region.getWorld().getConfig().RENDER_TRANSLUCENT_FLUIDS, region, biome, chunk, index, blockX, blockZ, pixelColor);
 
+        // if there was translucent glass, mix it in here
+        pixelColor = blendGlass(chunk, index, pixelColor);
+
+        this.pixelMap[((blockZ & 0x1FF) << 9) + (blockX & 0x1FF)] = pixelColor;
+
+        setShadow(getRegionScanTask().getHeightfield(region), chunk, index, (blockX & 0x1FF) + 1, (blockZ & 0x1FF) + 1, blockX, blockZ);
+    }
+
+    private void setShadow(@NotNull Heightfield heightfield, @NotNull Chunk chunk, int index, int x, int z, int blockX, int blockZ) {
+        float diff = chunk.getFluidStateId(index) != 0 ? 1 : CalculateAltitudeDiff(heightfield, blockX, blockZ, chunk.getBlockY(index));
+        this.shadowMap[z * SHADOW_SIZE + x] = (byte) (128 * diff - 127);
+    }
+
+    private void setHaloShadow(@NotNull Region region, @NotNull Heightfield heightfield, int x, int z) {
+        int blockX = (region.getX() << 9) + x - 1;
+        int blockZ = (region.getZ() << 9) + z - 1;
+        if (!getWorld().visibleBlock(blockX, blockZ)) {
+            return;
+        }
+        Chunk chunk = getWorld().getChunk(region, blockX >> 4, blockZ >> 4);
+        int index = Chunk.index(blockX, blockZ);
+        if (chunk.hasData(index)) {
+            setShadow(heightfield, chunk, index, x, z, blockX, blockZ);
+        }
+    }
+
+    @Override
+    public void postScan(@NotNull Region region) {
+        int startX = region.getX() << 9;
+        int startZ = region.getZ() << 9;
+
+        // the shared scan only visits dirty chunks, but the shadow blur
+        // also reads from the unchanged chunks right next to them
         int cX = region.getX() << 5;
         int cZ = region.getZ() << 5;
-
-        // iterate each chunk in this region
         for (int chunkX = cX; chunkX < cX + 32; chunkX++) {
-            int bX = chunkX << 4;
             for (int chunkZ = cZ; chunkZ < cZ + 32; chunkZ++) {
-                // skip any blocks that do not need to be rendered due to visibility limits
                 if (!getWorld().visibleChunk(chunkX, chunkZ)) {
                     continue;
                 }
-                int bZ = chunkZ << 4;
+                if (getRegionScanTask().isChunkDirty(chunkX, chunkZ) || !isNearDirtyChunk(chunkX, chunkZ)) {
+                    continue;
+                }
                 Chunk chunk = region.getChunk(chunkX, chunkZ);
-                // iterate each block in this chunk
-                for (int blockX = bX; blockX < bX + 16; blockX++) {
-                    for (int blockZ = bZ; blockZ < bZ + 16; blockZ++) {
+                for (int blockX = chunkX << 4; blockX < (chunkX << 4) + 16; blockX++) {
+                    for (int blockZ = chunkZ << 4; blockZ < (chunkZ << 4) + 16; blockZ++) {
                         Pl3xMap.api().getRegionProcessor().checkPaused();
-                        // skip any blocks that do not need to be rendered due to visibility limits
                         if (!getWorld().visibleBlock(blockX, blockZ)) {
                             continue;
                         }
-
-                        Chunk.BlockData data = chunk.getData(blockX, blockZ);
-                        if (data == null) {
-                            // this shouldn't happen, but just in case...
-                            continue;
-                        }
-
-                        // get biome once
-                        Biome biome = data.getBiome(region, blockX, blockZ);
-
-                        // fix true block color
-                        int pixelColor = 0;
-                        if (data.getFluidState() == null || region.getWorld().getConfig().RENDER_TRANSLUCENT_FLUIDS) {
-                            // not flat fluids, we need to draw land
-                            pixelColor = Colors.fixBlockColor(region, biome, data.getBlockState(), blockX, blockZ);
-                            if (pixelColor != 0) {
-                                // fix alpha
-                                pixelColor = Colors.setAlpha(0xFF, pixelColor);
-                            }
-                        }
-
-                        // fix up water color
-                        pixelColor = processFluids(region.getWorld().getConfig().RENDER_TRANSLUCENT_FLUIDS, region, biome, data, blockX, blockZ, pixelColor);
-
-                        // if there was translucent glass, mix it in here
-                        for (int color : data.getGlassColors()) {
-                            pixelColor = Colors.blend(color, pixelColor);
+                        int index = Chunk.index(blockX, blockZ);
+                        if (chunk.hasData(index)) {
+                            scanBlock(region, chunk, index, blockX, blockZ);
                         }
-
-                        int index = ((blockZ & 0x1FF) << 9) + (blockX & 0x1FF);
-                        pixelMap[index] = pixelColor;
-
-                        float diff = data.getFluidState() != null ? 1 : CalculateAltitudeDiff(region, blockX, blockZ, data.getBlockY());
-                        shadowMap[index] = (byte) (128 * diff - 127);
                     }
                 }
             }
         }
 
+        // the ring of pixels around the region, straight from the neighboring regions
+        Heightfield heightfield = getRegionScanTask().getHeightfield(region);
+        for (int i = 0; i < SHADOW_SIZE; i++) {
+            setHaloShadow(region, heightfield, i, 0);
+            setHaloShadow(region, heightfield, i, SHADOW_SIZE - 1);
+            setHaloShadow(region, heightfield, 0, i);
+            setHaloShadow(region, heightfield, SHADOW_SIZE - 1, i);
+        }
+
+        byte[] shadowMap = this.shadowMap;
         byte[] shadowMapCopy = shadowMap.clone();
-        BlurTool.Blur(shadowMap, 512, 512, 2);
+        BlurTool.Blur(shadowMap, SHADOW_SIZE, SHADOW_SIZE, 2);
 
-        for (int i = 0; i < shadowMap.length; i++) {
-            float shadow = ((int) (((shadowMap[i] + 127) / 128F - 1f) * 5)) / 5f;
-            shadow += ((((shadowMapCopy[i] + 127) / 128F - 1f) * 5) % 1) / 5f;
+        for (int i = 0; i < this.pixelMap.length; i++) {
             int x = i & 511;
             int z = i >> 9;
-            int index = (z << 9) + x;
-            getTileImage().setPixel(x, z, pixelMap[index] == 0 ? 0 : (Colors.mul(pixelMap[index], shadow * 1.4F + 1F) | 0xFF << 24));
+            if (!getRegionScanTask().isChunkDirty((startX + x) >> 4, (startZ + z) >> 4)) {
+                continue;
+            }
+            int shadowIndex = (z + 1) * SHADOW_SIZE + x + 1;
+            float shadow = ((int) (((shadowMap[shadowIndex] + 127) / 128F - 1f) * 5)) / 5f;
+            shadow += ((((shadowMapCopy[shadowIndex] + 127) / 128F - 1f) * 5) % 1) / 5f;
+            getTileImage().setPixel(x, z, this.pixelMap[i] == 0 ? 0 : (Colors.mul(this.pixelMap[i], shadow * 1.4F + 1F) | 0xFF << 24));
         }
+
+        this.pixelMap = null;
+        this.shadowMap = null;
     }
 
-    @Override
-    public void scanBlock(@NotNull Region region, @NotNull Chunk chunk, Chunk.@NotNull BlockData data, int blockX, int blockZ) {
+    private boolean isNearDirtyChunk(int chunkX, int chunkZ) {
+        for (int x = chunkX - 1; x <= chunkX + 1; x++) {
+            for (int z = chunkZ - 1; z <= chunkZ + 1; z++) {
+                if (getRegionScanTask().isChunkDirty(x, z)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
-    private float CalculateAltitudeDiff(Region region, int blockX, int blockZ, int blockY) {
-        Chunk.BlockData northwest = region.getWorld().getChunk(region, (blockX - 1) >> 4, (blockZ - 1) >> 4).getData(blockX - 1, blockZ - 1);
-        Chunk.BlockData northeast = region.getWorld().getChunk(region, blockX >> 4, (blockZ - 1) >> 4).getData(blockX, blockZ - 1);
-        Chunk.BlockData southwest = region.getWorld().getChunk(region, (blockX - 1) >> 4, blockZ >> 4).getData(blockX - 1, blockZ);
+    private float CalculateAltitudeDiff(Heightfield heightfield, int blockX, int blockZ, int blockY) {
+        int northwest = heightfield.getHeight(blockX - 1, blockZ - 1);
+        int northeast = heightfield.getHeight(blockX, blockZ - 1);
+        int southwest = heightfield.getHeight(blockX - 1, blockZ);
 
-        int leftTop = blockY - (northwest == null ? blockY : northwest.getBlockY());
-        int rightTop = blockY - (northeast == null ? blockY : northeast.getBlockY());
-        int leftBot = blockY - (southwest == null ? blockY : southwest.getBlockY());
+        int leftTop = blockY - (northwest == Heightfield.NO_DATA ? blockY : northwest);
+        int rightTop = blockY - (northeast == Heightfield.NO_DATA ? blockY : northeast);
+        int leftBot = blockY - (southwest == Heightfield.NO_DATA ? blockY : southwest);
 
         int direction = Integer.signum(leftTop) + Integer.signum(rightTop) + Integer.signum(leftBot);
         int steepness = Math.max(Math.max(Math.abs(leftTop), Math.abs(rightTop)), Math.abs(leftBot));
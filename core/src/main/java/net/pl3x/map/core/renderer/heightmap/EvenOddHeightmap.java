@@ -23,7 +23,7 @@
  */
 package net.pl3x.map.core.renderer.heightmap;
 
-import net.pl3x.map.core.world.Chunk;
+import net.pl3x.map.core.world.Heightfield;
 import net.pl3x.map.core.world.Region;
 import org.jetbrains.annotations.NotNull;
 
@@ -34,9 +34,14 @@ public class EvenOddHeightmap extends Heightmap {
 
     @Override
     public int getColor(@NotNull Region region, int blockX, int blockZ) {
-        Chunk.BlockData origin = region.getWorld().getChunk(region, blockX >> 4, blockZ >> 4).getData(blockX, blockZ);
+        return getColor(region.getHeightfield(), blockX, blockZ);
+    }
+
+    @Override
+    public int getColor(@NotNull Heightfield heightfield, int blockX, int blockZ) {
+        int y = heightfield.getHeight(blockX, blockZ);
         int heightColor = 0x22;
-        if (origin != null && origin.getBlockY() % 2 == 1) {
+        if (y != Heightfield.NO_DATA && y % 2 == 1) {
             heightColor = 0x33;
         }
         return heightColor << 24;
@@ -23,7 +23,7 @@
  */
 package net.pl3x.map.core.renderer.heightmap;
 
-import net.pl3x.map.core.world.Chunk;
+import net.pl3x.map.core.world.Heightfield;
 import net.pl3x.map.core.world.Region;
 import org.jetbrains.annotations.NotNull;
 
@@ -33,15 +33,19 @@ public class EvenOddOldSchoolHeightmap extends Heightmap {
     }
 
     @Override
-    @SuppressWarnings("DuplicatedCode")
     public int getColor(@NotNull Region region, int blockX, int blockZ) {
-        Chunk.BlockData origin = region.getWorld().getChunk(region, blockX >> 4, blockZ >> 4).getData(blockX, blockZ);
-        Chunk.BlockData west = region.getWorld().getChunk(region, (blockX - 1) >> 4, blockZ >> 4).getData(blockX - 1, blockZ);
+        return getColor(region.getHeightfield(), blockX, blockZ);
+    }
+
+    @Override
+    @SuppressWarnings("DuplicatedCode")
+    public int getColor(@NotNull Heightfield heightfield, int blockX, int blockZ) {
+        int y = heightfield.getHeight(blockX, blockZ);
+        int west = heightfield.getHeight(blockX - 1, blockZ);
         int heightColor = 0x22;
-        if (origin != null) {
-            int y = origin.getBlockY();
-            if (west != null) {
-                heightColor = getColor(y, west.getBlockY(), heightColor, 0x22);
+        if (y != Heightfield.NO_DATA) {
+            if (west != Heightfield.NO_DATA) {
+                heightColor = getColor(y, west, heightColor, 0x22);
             }
             if (y % 2 == 1) {
                 heightColor += 0x11;
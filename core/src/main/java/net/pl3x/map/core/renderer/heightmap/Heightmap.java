@@ -27,6 +27,7 @@ import java.util.Arrays;
 import java.util.Objects;
 import net.pl3x.map.core.Keyed;
 import net.pl3x.map.core.util.Mathf;
+import net.pl3x.map.core.world.Heightfield;
 import net.pl3x.map.core.world.Region;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -41,6 +42,20 @@ public abstract class Heightmap extends Keyed {
 
     public abstract int getColor(@NotNull Region region, int blockX, int blockZ);
 
+    /**
+     * Get the heightmap color for a block, reading the surface heights from a heightfield.
+     * <p>
+     * Heightmaps that only implement {@link #getColor(Region, int, int)} read from the heightfield's region instead.
+     *
+     * @param heightfield heightfield of the region being rendered
+     * @param blockX      block x coordinate
+     * @param blockZ      block z coordinate
+     * @return heightmap color
+     */
+    public int getColor(@NotNull Heightfield heightfield, int blockX, int blockZ) {
+        return getColor(heightfield.getRegion(), blockX, blockZ);
+    }
+
     public int getMin() {
         return 0x00;
     }
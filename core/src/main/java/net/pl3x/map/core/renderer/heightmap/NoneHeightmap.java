@@ -23,6 +23,7 @@
  */
 package net.pl3x.map.core.renderer.heightmap;
 
+import net.pl3x.map.core.world.Heightfield;
 import net.pl3x.map.core.world.Region;
 import org.jetbrains.annotations.NotNull;
 
@@ -35,4 +36,9 @@ public class NoneHeightmap extends Heightmap {
     public int getColor(@NotNull Region region, int blockX, int blockZ) {
         return 0x22 << 24;
     }
+
+    @Override
+    public int getColor(@NotNull Heightfield heightfield, int blockX, int blockZ) {
+        return 0x22 << 24;
+    }
 }
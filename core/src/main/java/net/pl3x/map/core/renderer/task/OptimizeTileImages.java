@@ -0,0 +1,77 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.renderer.task;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import net.pl3x.map.core.Pl3xMap;
+import net.pl3x.map.core.configuration.Config;
+import net.pl3x.map.core.scheduler.Task;
+import net.pl3x.map.core.world.World;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Re-encodes tile images that stopped changing, while the region processor has nothing to do.
+ */
+public class OptimizeTileImages extends Task {
+    private final World world;
+    private final ExecutorService executor;
+
+    private CompletableFuture<Void> future;
+    private boolean running;
+
+    public OptimizeTileImages(@NotNull World world) {
+        super(60, true);
+        this.world = world;
+        this.executor = Pl3xMap.ThreadFactory.createService("Pl3xMap-Optimizer");
+    }
+
+    @Override
+    public void run() {
+        if (this.running || !Config.WEB_TILE_OPTIMIZER || !Pl3xMap.api().getRegionProcessor().isIdle()) {
+            return;
+        }
+        this.running = true;
+        this.future = CompletableFuture.runAsync(() -> {
+            // never compete with the renderer for cpu
+            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+            try {
+                // yield as soon as there is something to render
+                this.world.getTileOptimizer().optimize(() -> cancelled() || !Pl3xMap.api().getRegionProcessor().isIdle());
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+            this.running = false;
+        }, this.executor);
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        if (this.future != null) {
+            this.future.join();
+        }
+        this.executor.shutdown();
+    }
+}
@@ -25,6 +25,7 @@ package net.pl3x.map.core.renderer.task;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.concurrent.CompletableFuture;
@@ -33,6 +34,8 @@ import net.pl3x.map.core.Pl3xMap;
 import net.pl3x.map.core.log.Logger;
 import net.pl3x.map.core.markers.Point;
 import net.pl3x.map.core.util.Mathf;
+import net.pl3x.map.core.world.RegionModifiedState;
+import net.pl3x.map.core.world.RegionReader;
 import org.jetbrains.annotations.NotNull;
 
 public class RegionDoubleChecker implements Runnable {
@@ -115,6 +118,13 @@ public class RegionDoubleChecker implements Runnable {
                             continue;
                         }
 
+                        // the file was touched, but skip it if none of its chunks were saved since the last render
+                        RegionModifiedState.ChunkState chunkState = world.getRegionModifiedState().getChunkState(rX, rZ);
+                        if (chunkState != null && chunkState.timestamps() != null && Arrays.equals(chunkState.timestamps(), RegionReader.readTimestamps(file))) {
+                            world.getRegionModifiedState().set(Mathf.asLong(rX, rZ), modified);
+                            continue;
+                        }
+
                         Logger.debug("Found modified region: " + file.getFileName());
                         modifiedRegions.add(Point.of(rX, rZ));
                     } catch (Throwable t) {
@@ -0,0 +1,172 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.renderer.task;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import net.pl3x.map.core.Pl3xMap;
+import net.pl3x.map.core.markers.Point;
+import net.pl3x.map.core.player.Player;
+import net.pl3x.map.core.util.Mathf;
+import net.pl3x.map.core.world.World;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Scores queued regions by how much they are wanted right now.
+ * <p>
+ * A region's score is its distance, in regions, to the closest online player or recently viewed tile of its world.
+ * Worlds nobody is in or looking at fall back to the distance to spawn. Regions that have been waiting get a small
+ * bonus, so a region is not pushed back forever by closer ones, but the bonus is capped and never outweighs more
+ * than a few regions of distance. Lower scores are rendered first.
+ */
+public class RegionPriority {
+    // waiting this long makes up for being one region further away
+    private static final double MILLIS_PER_REGION = 60000D;
+
+    // most regions of distance waiting can make up for
+    private static final double MAX_WAIT_BONUS = 8D;
+
+    // tiles viewed on the web map are forgotten after this long
+    private static final long VIEW_TIMEOUT = 300000L;
+
+    // most viewed tiles remembered per world
+    private static final int MAX_VIEWS = 256;
+
+    private final Map<@NotNull World, @NotNull Map<@NotNull Long, @NotNull Long>> views = new ConcurrentHashMap<>();
+
+    private Map<@NotNull World, double @NotNull []> focus = new HashMap<>();
+
+    /**
+     * Remember that a tile was requested from the web map.
+     *
+     * @param world world the tile is in
+     * @param zoom  zoom level the tile is at, 0 being one region per tile
+     * @param tileX tile x coordinate
+     * @param tileZ tile z coordinate
+     */
+    public void addView(@NotNull World world, int zoom, int tileX, int tileZ) {
+        Map<Long, Long> views = this.views.computeIfAbsent(world, k -> new ConcurrentHashMap<>());
+        long now = System.currentTimeMillis();
+        // the region in the middle of the tile
+        int regionX = (tileX << zoom) + ((1 << zoom) >> 1);
+        int regionZ = (tileZ << zoom) + ((1 << zoom) >> 1);
+        views.put(Mathf.asLong(regionX, regionZ), now);
+        if (views.size() > MAX_VIEWS) {
+            expireViews(views, now);
+            // still too many, forget the ones viewed longest ago
+            while (views.size() > MAX_VIEWS) {
+                Map.Entry<Long, Long> oldest = null;
+                for (Map.Entry<Long, Long> entry : views.entrySet()) {
+                    if (oldest == null || entry.getValue() < oldest.getValue()) {
+                        oldest = entry;
+                    }
+                }
+                if (oldest == null) {
+                    break;
+                }
+                views.remove(oldest.getKey(), oldest.getValue());
+            }
+        }
+    }
+
+    /**
+     * Take a fresh snapshot of where the players are and which tiles were viewed lately, to score regions with.
+     */
+    public void update() {
+        long now = System.currentTimeMillis();
+        Map<World, List<Double>> points = new HashMap<>();
+        for (Player player : Pl3xMap.api().getPlayerRegistry()) {
+            Point position = player.getPosition();
+            List<Double> list = points.computeIfAbsent(player.getWorld(), k -> new ArrayList<>());
+            list.add(position.x() / 512D);
+            list.add(position.z() / 512D);
+        }
+        Iterator<Map.Entry<World, Map<Long, Long>>> iter = this.views.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<World, Map<Long, Long>> entry = iter.next();
+            Map<Long, Long> views = entry.getValue();
+            expireViews(views, now);
+            if (views.isEmpty()) {
+                iter.remove();
+                continue;
+            }
+            List<Double> list = points.computeIfAbsent(entry.getKey(), k -> new ArrayList<>());
+            for (long pos : views.keySet()) {
+                list.add(Mathf.longToX(pos) + 0.5D);
+                list.add(Mathf.longToZ(pos) + 0.5D);
+            }
+        }
+        Map<World, double[]> focus = new HashMap<>();
+        points.forEach((world, list) -> {
+            double[] array = new double[list.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = list.get(i);
+            }
+            focus.put(world, array);
+        });
+        this.focus = focus;
+    }
+
+    /**
+     * Score a queued region.
+     *
+     * @param world  world the region is in
+     * @param region region position
+     * @param queued time the region was queued at
+     * @return score, lower scores are rendered first
+     */
+    public double score(@NotNull World world, @NotNull Point region, long queued) {
+        double x = region.x() + 0.5D;
+        double z = region.z() + 0.5D;
+        double[] focus = this.focus.get(world);
+        double distance;
+        if (focus == null || focus.length == 0) {
+            Point spawn = world.getSpawn();
+            distance = Math.hypot(x - spawn.x() / 512D, z - spawn.z() / 512D);
+        } else {
+            double closest = Double.MAX_VALUE;
+            for (int i = 0; i < focus.length; i += 2) {
+                double dx = x - focus[i];
+                double dz = z - focus[i + 1];
+                closest = Math.min(closest, dx * dx + dz * dz);
+            }
+            distance = Math.sqrt(closest);
+        }
+        double waited = Math.max(0L, System.currentTimeMillis() - queued) / MILLIS_PER_REGION;
+        return distance - Math.min(waited, MAX_WAIT_BONUS);
+    }
+
+    private void expireViews(@NotNull Map<@NotNull Long, @NotNull Long> views, long now) {
+        Iterator<Long> iter = views.values().iterator();
+        while (iter.hasNext()) {
+            if (now - iter.next() > VIEW_TIMEOUT) {
+                iter.remove();
+            }
+        }
+    }
+}
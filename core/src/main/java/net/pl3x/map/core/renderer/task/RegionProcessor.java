@@ -23,32 +23,62 @@
  */
 package net.pl3x.map.core.renderer.task;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import net.pl3x.map.core.Pl3xMap;
 import net.pl3x.map.core.configuration.Config;
 import net.pl3x.map.core.log.Logger;
 import net.pl3x.map.core.markers.Point;
 import net.pl3x.map.core.renderer.progress.Progress;
 import net.pl3x.map.core.util.Mathf;
-import net.pl3x.map.core.util.SpiralIterator;
 import net.pl3x.map.core.world.World;
 import org.jetbrains.annotations.NotNull;
-
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Renders queued regions on the render threads.
+ * <p>
+ * Only a small window of regions is handed to the render threads at a time. Every time one of them finishes, the
+ * next region is taken from a priority queue, which newly queued regions join right away. Nothing waits for a whole
+ * batch of regions to finish, and a full render of a huge world only keeps a small job per queued region around.
+ * Regions needed by the web map right away go first, then regions queued in small batches (the few regions players
+ * just changed), then bulk renders. Within each of those, the queue is ordered by {@link RegionPriority}, and
+ * reordered as players move around.
+ */
 public class RegionProcessor {
-    private final Map<@NotNull World, @NotNull Collection<@NotNull Point>> regionsToScan = new ConcurrentHashMap<>();
+    // how often queued regions are scored again
+    private static final long RESCORE_INTERVAL = 10000L;
+
+    // batches of more regions than this are bulk renders, queued behind regions that just changed
+    private static final int SMALL_BATCH = 64;
+
     private final Deque<@NotNull Ticket> ticketsToScan = new ConcurrentLinkedDeque<>();
 
+    // everything below is guarded by the lock
+    private final Object lock = new Object();
+    private PriorityQueue<@NotNull Job> queue = new PriorityQueue<>();
+    private final Map<@NotNull World, @NotNull Map<@NotNull Long, @NotNull Job>> queued = new HashMap<>();
+    private final Map<@NotNull World, @NotNull Set<@NotNull Long>> rendering = new HashMap<>();
+    private final Map<@NotNull World, @NotNull Integer> remaining = new HashMap<>();
+    private final Deque<@NotNull World> finishedWorlds = new ArrayDeque<>();
+    private int inFlight;
+    private long sequence;
+    private boolean wakeUp;
+
+    private final RegionPriority priority = new RegionPriority();
+
     private final Executor executor;
     private final Progress progress;
 
@@ -56,8 +86,7 @@ public class RegionProcessor {
 
     private boolean paused;
 
-    private long timeStarted;
-    private boolean running;
+    private volatile boolean running;
 
     public RegionProcessor() {
         this.executor = Pl3xMap.ThreadFactory.createService("Pl3xMap-Processor");
@@ -82,19 +111,41 @@ public class RegionProcessor {
         this.paused = paused;
     }
 
+    /**
+     * Check if there is nothing to render right now.
+     *
+     * @return true if no regions are queued or being rendered
+     */
+    public boolean isIdle() {
+        return !isPaused() && !this.running && this.ticketsToScan.isEmpty();
+    }
+
     public @NotNull Progress getProgress() {
         return this.progress;
     }
 
-    public Set<World> getQueuedWorlds() {
-        return this.regionsToScan.keySet();
+    public @NotNull RegionPriority getPriority() {
+        return this.priority;
+    }
+
+    public @NotNull Set<@NotNull World> getQueuedWorlds() {
+        synchronized (this.lock) {
+            return new HashSet<>(this.remaining.keySet());
+        }
     }
 
     public void start(long delay) {
         this.future = CompletableFuture.runAsync(() -> {
-            // wait...
+            // wait, unless regions are needed right away
             try {
-                Thread.sleep(delay);
+                long end = System.currentTimeMillis() + delay;
+                synchronized (this.lock) {
+                    long left;
+                    while (!this.wakeUp && (left = end - System.currentTimeMillis()) > 0) {
+                        this.lock.wait(left);
+                    }
+                    this.wakeUp = false;
+                }
             } catch (InterruptedException ignore) {
             }
 
@@ -117,11 +168,42 @@ public class RegionProcessor {
     }
 
     public void addRegions(@NotNull World world, @NotNull Collection<@NotNull Point> regions) {
+        addRegions(world, regions, false);
+    }
+
+    /**
+     * Queue regions to be rendered.
+     * <p>
+     * Regions queued while a render is running are picked up by that render as soon as a render thread frees up.
+     *
+     * @param world   world the regions are in
+     * @param regions regions to render
+     * @param force   true to render every chunk, instead of only the chunks changed since the last render
+     */
+    public void addRegions(@NotNull World world, @NotNull Collection<@NotNull Point> regions, boolean force) {
+        boolean bulk = regions.size() > SMALL_BATCH;
         for (Point region : regions) {
-            Ticket ticket = new Ticket(world, region);
-            if (!this.ticketsToScan.contains(ticket)) {
-                this.ticketsToScan.add(ticket);
-            }
+            // duplicates are merged when the tickets are queued
+            this.ticketsToScan.add(new Ticket(world, region, force, false, bulk));
+        }
+        synchronized (this.lock) {
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Queue regions to be rendered before any other queued region, starting right away if nothing is rendering.
+     *
+     * @param world   world the regions are in
+     * @param regions regions to render
+     */
+    public void addUrgentRegions(@NotNull World world, @NotNull Collection<@NotNull Point> regions) {
+        for (Point region : regions) {
+            this.ticketsToScan.add(new Ticket(world, region, false, true, false));
+        }
+        synchronized (this.lock) {
+            this.wakeUp = true;
+            this.lock.notifyAll();
         }
     }
 
@@ -134,123 +216,258 @@ public class RegionProcessor {
 
         // consider task as running
         this.running = true;
-        this.timeStarted = System.currentTimeMillis();
 
-        Logger.debug("Region processor started queuing at " + this.timeStarted);
+        Logger.debug("Region processor started at " + System.currentTimeMillis());
 
         try {
-            while (!this.ticketsToScan.isEmpty()) {
-                Ticket ticket = this.ticketsToScan.poll();
-                if (ticket == null) continue;
-
-                Collection<Point> set = this.regionsToScan.getOrDefault(ticket.world, new HashSet<>());
-                set.add(ticket.region);
-                this.regionsToScan.put(ticket.world, set);
-            }
-
-            Iterator<Map.Entry<World, Collection<Point>>> iter = this.regionsToScan.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<World, Collection<Point>> entry = iter.next();
-                iter.remove();
-                World world = entry.getKey();
-                Collection<Point> regions = entry.getValue();
-                process(world, regions);
-
+            // keep a region waiting for every render thread, so none of them sit idle between regions
+            Executor executor = Pl3xMap.api().getRenderExecutor();
+            int window = (executor instanceof ForkJoinPool pool ? pool.getParallelism() : 1) * 2;
+
+            long nextRescore = 0;
+            while (true) {
+                boolean rescore = System.currentTimeMillis() >= nextRescore;
+                if (rescore) {
+                    this.priority.update();
+                    nextRescore = System.currentTimeMillis() + RESCORE_INTERVAL;
+                }
+                List<Ticket> tickets = takeTickets();
+                Job job = null;
+                World finished = null;
+                synchronized (this.lock) {
+                    if (rescore) {
+                        rescore();
+                    }
+                    queueTickets(tickets);
+                    if (!this.finishedWorlds.isEmpty()) {
+                        finished = this.finishedWorlds.poll();
+                    } else if (this.inFlight < window && !this.queue.isEmpty()) {
+                        job = this.queue.poll();
+                        long pos = Mathf.asLong(job.region);
+                        Map<Long, Job> queued = this.queued.get(job.world);
+                        queued.remove(pos);
+                        if (queued.isEmpty()) {
+                            this.queued.remove(job.world);
+                        }
+                        this.rendering.computeIfAbsent(job.world, k -> new HashSet<>()).add(pos);
+                        this.inFlight++;
+                    } else if (this.inFlight == 0 && this.queue.isEmpty() && this.ticketsToScan.isEmpty()) {
+                        break;
+                    } else {
+                        // wait for a region to finish rendering or for more regions to be queued
+                        this.lock.wait(1000L);
+                        continue;
+                    }
+                }
+                if (finished != null) {
+                    finish(finished);
+                } else {
+                    checkPaused();
+                    submit(job);
+                }
             }
         } catch (Throwable t) {
             t.printStackTrace();
         }
 
+        // stop the progress tracker
+        getProgress().finish();
+
         this.running = false;
-        Logger.debug("Region processor finished queuing at " + System.currentTimeMillis());
+        Logger.debug("Region processor finished at " + System.currentTimeMillis());
     }
 
-    private void process(@NotNull World world, @NotNull Collection<@NotNull Point> regionPositions) {
-        Logger.debug(world.getName() + " Region processor started processing at " + System.currentTimeMillis());
-
-        // create spiral iterator to order region scanning
-        Point spawn = world.getSpawn();
-        SpiralIterator spiralIterator = new SpiralIterator(spawn.x() >> 9, spawn.z() >> 9);
-
-        // order preserved map of regions with boolean to signify if it was already scanned
-        List<Point> orderedRegionsToScan = new ArrayList<>();
-
-        // iterate the spiral
-        int totalRegions = regionPositions.size();
-        int numberOfFoundRegions = 0;
-        int numberOfSkippedRegions = 0;
-        while (numberOfFoundRegions < totalRegions) {
-            // let us not get stuck in an endless loop
-            if (numberOfSkippedRegions > 1000000) {
-                Logger.debug("Failsafe triggered.");
-                // we scanned over a million non-existent regions straight
-                // quit the spiral and add the remaining regions to the end
-                orderedRegionsToScan.addAll(regionPositions);
-                break;
-            }
+    private @NotNull List<@NotNull Ticket> takeTickets() {
+        List<Ticket> tickets = new ArrayList<>();
+        Ticket ticket;
+        while ((ticket = this.ticketsToScan.poll()) != null) {
+            tickets.add(ticket);
+        }
+        return tickets;
+    }
 
-            // get region from spiral and ensure a region file exists for it
-            Point regionPos = spiralIterator.next();
-            if (regionPositions.remove(regionPos)) {
-                // file exists, add region to scan
-                orderedRegionsToScan.add(regionPos);
-                numberOfFoundRegions++;
-                numberOfSkippedRegions = 0;
-            } else {
-                numberOfSkippedRegions++;
+    private void queueTickets(@NotNull List<@NotNull Ticket> tickets) {
+        long now = System.currentTimeMillis();
+        int added = 0;
+        for (Ticket ticket : tickets) {
+            Map<Long, Job> queued = this.queued.computeIfAbsent(ticket.world(), k -> new HashMap<>());
+            long pos = Mathf.asLong(ticket.region());
+            Job existing = queued.get(pos);
+            if (existing != null) {
+                // already waiting, keep its place in the queue unless it moved up a tier
+                existing.force |= ticket.force();
+                if ((ticket.urgent() && !existing.urgent) || (!ticket.bulk() && existing.bulk)) {
+                    this.queue.remove(existing);
+                    existing.urgent |= ticket.urgent();
+                    existing.bulk &= ticket.bulk();
+                    this.queue.add(existing);
+                }
+                continue;
             }
+            Job job = new Job(ticket.world(), ticket.region(), ticket.force(), ticket.urgent(), ticket.bulk(), this.sequence++, now);
+            job.score = this.priority.score(job.world, job.region, job.queued);
+            queued.put(pos, job);
+            this.queue.add(job);
+            this.remaining.merge(job.world, 1, Integer::sum);
+            added++;
         }
+        if (added > 0) {
+            getProgress().setTotalRegions(getProgress().getTotalRegions() + added);
+            getProgress().setTotalChunks(getProgress().getTotalRegions() * 1024L);
+        }
+    }
 
-        // create and send tasks to executor to run
-        schedule(world, orderedRegionsToScan);
-
-        Logger.debug(world.getName() + " Region processor finished processing at " + System.currentTimeMillis());
+    private void rescore() {
+        for (Job job : this.queue) {
+            job.score = this.priority.score(job.world, job.region, job.queued);
+        }
+        // the scores changed underneath the queue, build it up again
+        this.queue = new PriorityQueue<>(this.queue.stream().toList());
     }
 
-    private void schedule(@NotNull World world, @NotNull List<@NotNull Point> orderedRegionsToScan) {
+    private void submit(@NotNull Job job) {
+        World world = job.world;
         getProgress().setWorld(world);
-        getProgress().setTotalRegions(orderedRegionsToScan.size());
-        getProgress().setTotalChunks(getProgress().getTotalRegions() * 1024L);
-
-        CompletableFuture.allOf(orderedRegionsToScan.stream()
-                .map(pos -> CompletableFuture.runAsync(new RegionScanTask(world, pos), Pl3xMap.api().getRenderExecutor())
-                        .whenComplete((result, throwable) -> {
-                            if (throwable != null) {
-                                throwable.printStackTrace();
-                            }
-
-                            // set region modified time
-                            world.getRegionModifiedState().set(Mathf.asLong(pos), this.timeStarted);
-
-                            // run the garbage collector
-                            if (Config.GC_WHEN_RUNNING) {
-                                System.gc();
-                            }
-                        })
-                ).toArray(CompletableFuture[]::new)
-        ).whenComplete((result, throwable) -> {
-            if (throwable != null) {
-                throwable.printStackTrace();
+        try {
+            // create the task on the render thread, so a task that fails to set up is finished like any other failed render
+            CompletableFuture.runAsync(() -> new RegionScanTask(world, job.region, job.force).run(), Pl3xMap.api().getRenderExecutor())
+                    .whenComplete((result, throwable) -> complete(job, throwable));
+        } catch (Throwable t) {
+            complete(job, t);
+        }
+    }
+
+    private void complete(@NotNull Job job, @Nullable Throwable throwable) {
+        World world = job.world;
+        if (throwable != null) {
+            throwable.printStackTrace();
+        }
+
+        // set region modified time
+        world.getRegionModifiedState().set(Mathf.asLong(job.region), job.queued);
+
+        // run the garbage collector
+        if (Config.GC_WHEN_RUNNING) {
+            System.gc();
+        }
+
+        synchronized (this.lock) {
+            this.inFlight--;
+            Set<Long> rendering = this.rendering.get(world);
+            rendering.remove(Mathf.asLong(job.region));
+            if (rendering.isEmpty()) {
+                this.rendering.remove(world);
+            }
+            if (this.remaining.merge(world, -1, Integer::sum) == 0) {
+                this.remaining.remove(world);
+                this.finishedWorlds.add(world);
             }
+            this.lock.notifyAll();
+        }
 
-            // stop the progress tracker
-            getProgress().finish();
+        // build the zoomed out tiles above this region as soon as the regions around it are done too
+        if (isSettled(world, 1, job.region.x() >> 1, job.region.z() >> 1)) {
+            world.getTilePyramid().buildAsync();
+        }
+    }
 
-            // free up some memory
-            world.cleanup();
+    /**
+     * Check if none of the regions under a tile are waiting to be rendered, or being rendered.
+     *
+     * @param world world the tile is in
+     * @param zoom  zoom level of the tile, 0 being one region per tile
+     * @param tileX tile x coordinate
+     * @param tileZ tile z coordinate
+     * @return true if every region under the tile is done rendering
+     */
+    public boolean isSettled(@NotNull World world, int zoom, int tileX, int tileZ) {
+        int minX = tileX << zoom;
+        int minZ = tileZ << zoom;
+        int maxX = minX + (1 << zoom) - 1;
+        int maxZ = minZ + (1 << zoom) - 1;
+        synchronized (this.lock) {
+            Map<Long, Job> queued = this.queued.get(world);
+            Set<Long> rendering = this.rendering.get(world);
+            return (queued == null || !contains(queued.keySet(), minX, minZ, maxX, maxZ))
+                    && (rendering == null || !contains(rendering, minX, minZ, maxX, maxZ));
+        }
+    }
 
-            // run the garbage collector
-            if (Config.GC_WHEN_FINISHED) {
-                System.gc();
+    private boolean contains(@NotNull Set<@NotNull Long> regions, int minX, int minZ, int maxX, int maxZ) {
+        long area = (long) (maxX - minX + 1) * (maxZ - minZ + 1);
+        if (area > regions.size()) {
+            // fewer regions than the tile covers, look at every one of them instead
+            for (long pos : regions) {
+                int x = Mathf.longToX(pos);
+                int z = Mathf.longToZ(pos);
+                if (x >= minX && x <= maxX && z >= minZ && z <= maxZ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (int x = minX; x <= maxX; x++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                if (regions.contains(Mathf.asLong(x, z))) {
+                    return true;
+                }
             }
+        }
+        return false;
+    }
+
+    private void finish(@NotNull World world) {
+        // build whatever zoomed out tiles are still dirty, on the render threads
+        world.getTilePyramid().buildAsync();
 
-            // consider task as no longer running
-            this.running = false;
+        // free up some memory
+        world.cleanup();
+
+        // run the garbage collector
+        if (Config.GC_WHEN_FINISHED) {
+            System.gc();
+        }
 
-            Logger.debug(world.getName() + " Region processor finished task at " + System.currentTimeMillis());
-        }).join();
+        Logger.debug(world.getName() + " Region processor finished world at " + System.currentTimeMillis());
     }
 
-    private record Ticket(@NotNull World world, @NotNull Point region) {
+    private record Ticket(@NotNull World world, @NotNull Point region, boolean force, boolean urgent, boolean bulk) {
+    }
+
+    /**
+     * A region waiting to be rendered.
+     */
+    private static final class Job implements Comparable<@NotNull Job> {
+        private final World world;
+        private final Point region;
+        private final long sequence;
+        private final long queued;
+
+        private boolean force;
+        private boolean urgent;
+        private boolean bulk;
+        private double score;
+
+        private Job(@NotNull World world, @NotNull Point region, boolean force, boolean urgent, boolean bulk, long sequence, long queued) {
+            this.world = world;
+            this.region = region;
+            this.force = force;
+            this.urgent = urgent;
+            this.bulk = bulk;
+            this.sequence = sequence;
+            this.queued = queued;
+        }
+
+        @Override
+        public int compareTo(@NotNull Job other) {
+            if (this.urgent != other.urgent) {
+                return this.urgent ? -1 : 1;
+            }
+            if (this.bulk != other.bulk) {
+                return this.bulk ? 1 : -1;
+            }
+            int compare = Double.compare(this.score, other.score);
+            return compare != 0 ? compare : Long.compare(this.sequence, other.sequence);
+        }
     }
 }
@@ -25,29 +25,73 @@ package net.pl3x.map.core.renderer.task;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
 import net.pl3x.map.core.Pl3xMap;
+import net.pl3x.map.core.configuration.WorldConfig;
 import net.pl3x.map.core.log.Logger;
 import net.pl3x.map.core.markers.Point;
 import net.pl3x.map.core.registry.RendererRegistry;
+import net.pl3x.map.core.renderer.Layer;
 import net.pl3x.map.core.renderer.Renderer;
+import net.pl3x.map.core.renderer.SharedPixel;
+import net.pl3x.map.core.renderer.heightmap.Heightmap;
 import net.pl3x.map.core.util.Mathf;
+import net.pl3x.map.core.world.Biome;
+import net.pl3x.map.core.world.Block;
+import net.pl3x.map.core.world.Chunk;
+import net.pl3x.map.core.world.ChunkFingerprint;
+import net.pl3x.map.core.world.Heightfield;
 import net.pl3x.map.core.world.Region;
+import net.pl3x.map.core.world.RegionModifiedState;
+import net.pl3x.map.core.world.RegionReader;
 import net.pl3x.map.core.world.World;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public class RegionScanTask implements Runnable {
+    // heightmaps look one block back, the vintage story blur one more
+    private static final int HEIGHTFIELD_HALO = 2;
+
+    // blocks of 4x4 chunks, the smallest part of a region that is scanned on its own thread
+    private static final int UNIT_SHIFT = 2;
+    private static final int UNITS = (32 >> UNIT_SHIFT) * (32 >> UNIT_SHIFT);
+
     private final World world;
     private final Point regionPos;
+    private final boolean force;
 
     private final Map<@NotNull String, @NotNull Renderer> renderers = new LinkedHashMap<>();
+    private final Map<@NotNull Thread, @NotNull SharedPixel> sharedPixels = new ConcurrentHashMap<>();
+    private final Heightmap heightmap;
+
+    private Heightfield heightfield;
+
+    private final Set<@NotNull Layer> producedLayers = new HashSet<>();
+    private final Map<@NotNull Layer, int[]> layers = new HashMap<>();
+
+    private int[] timestamps;
+    private int timestampsRead;
+    private long[] dirtyChunks;
+    private long[] fingerprints;
+    private RegionModifiedState.ChunkState previous;
+    private long renderHash;
 
     public RegionScanTask(@NotNull World world, @NotNull Point regionPos) {
+        this(world, regionPos, false);
+    }
+
+    public RegionScanTask(@NotNull World world, @NotNull Point regionPos, boolean force) {
         this.world = world;
         this.regionPos = regionPos;
+        this.force = force;
 
         RendererRegistry registry = Pl3xMap.api().getRendererRegistry();
         List<Renderer.Builder> rendererBuilders = new ArrayList<>(this.world.getRenderers().values());
@@ -61,18 +105,80 @@ public class RegionScanTask implements Runnable {
             Renderer renderer = registry.createRenderer(this, builder);
             this.renderers.put(renderer.getKey(), renderer);
         });
+
+        sortRenderers();
+
+        String heightmap = this.world.getConfig().RENDER_HEIGHTMAP_TYPE.toLowerCase(Locale.ROOT);
+        this.heightmap = Pl3xMap.api().getHeightmapRegistry().get(heightmap);
+
+        this.renderHash = renderHash();
     }
 
     public @NotNull World getWorld() {
         return this.world;
     }
 
+    /**
+     * Get the shared pixel values of the column the current thread is scanning.
+     *
+     * @return shared pixel values of the current thread
+     */
+    public @NotNull SharedPixel getSharedPixel() {
+        Thread thread = Thread.currentThread();
+        SharedPixel sharedPixel = this.sharedPixels.get(thread);
+        if (sharedPixel == null) {
+            sharedPixel = new SharedPixel(this);
+            this.sharedPixels.put(thread, sharedPixel);
+        }
+        return sharedPixel;
+    }
+
+    /**
+     * Get the heightfield of a region.
+     * <p>
+     * The region being scanned gets a heightfield that keeps the surface heights and biomes of it and the blocks
+     * around it, wide enough for biome blending and the blur of the vintage story renderer. Any other region
+     * gets a heightfield reading straight from its chunks.
+     *
+     * @param region region to get heightfield for
+     * @return region heightfield
+     */
+    public @NotNull Heightfield getHeightfield(@NotNull Region region) {
+        Heightfield heightfield = this.heightfield;
+        if (heightfield != null && heightfield.getRegion() == region) {
+            return heightfield;
+        }
+        return region.getHeightfield();
+    }
+
     public @Nullable Renderer getRenderer(@NotNull String id) {
         return this.renderers.get(id);
     }
 
+    /**
+     * Check if a chunk in this region needs to be rendered.
+     * <p>
+     * Only chunks saved since the last render, and the chunks directly around them, are dirty.
+     * Every chunk is dirty when the region is rendered for the first time or the render was forced.
+     *
+     * @param chunkX chunk x coordinate
+     * @param chunkZ chunk z coordinate
+     * @return true if the chunk needs to be rendered
+     */
+    public boolean isChunkDirty(int chunkX, int chunkZ) {
+        if (this.dirtyChunks == null) {
+            return true;
+        }
+        if (chunkX >> 5 != this.regionPos.x() || chunkZ >> 5 != this.regionPos.z()) {
+            return false;
+        }
+        int index = ((chunkZ & 31) << 5) + (chunkX & 31);
+        return (this.dirtyChunks[index >> 6] & (1L << index)) != 0;
+    }
+
     public void cleanup() {
         this.renderers.clear();
+        this.sharedPixels.clear();
     }
 
     @Override
@@ -86,7 +192,16 @@ public class RegionScanTask implements Runnable {
 
             Pl3xMap.api().getRegionProcessor().checkPaused();
 
-            scanRegion(loadRegion());
+            Region region = loadRegion();
+            try {
+                this.heightfield = new Heightfield(region, Math.max(HEIGHTFIELD_HALO, this.world.getConfig().RENDER_BIOME_BLEND));
+                scanRegion(region);
+                this.heightfield = null;
+                this.sharedPixels.clear();
+            } finally {
+                // the chunks are loaded, do not hold on to the region file
+                region.releaseReader();
+            }
 
             Pl3xMap.api().getRegionProcessor().checkPaused();
 
@@ -106,21 +221,410 @@ public class RegionScanTask implements Runnable {
     private @NotNull Region loadRegion() {
         Region region = this.world.getRegion(null, this.regionPos.x(), this.regionPos.z());
         try {
-            region.loadChunks();
+            // always open a fresh view, the file has most likely changed since it was last read
+            this.timestampsRead = (int) (System.currentTimeMillis() / 1000L);
+            RegionReader reader = region.refreshReader();
+            long[] changed = findChangedChunks(reader);
+            region.loadChunks(reader, changed == null ? null : index -> isSet(changed, index));
+            if (reader != null) {
+                findDirtyChunks(region, changed);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
         return region;
     }
 
+    private long @Nullable [] findChangedChunks(@Nullable RegionReader reader) {
+        if (reader == null) {
+            return null;
+        }
+        this.timestamps = reader.getTimestamps();
+        if (this.force) {
+            return null;
+        }
+        this.previous = this.world.getRegionModifiedState().getChunkState(this.regionPos.x(), this.regionPos.z());
+        if (this.previous == null || this.previous.timestamps() == null) {
+            return null;
+        }
+        RegionModifiedState.Fingerprints fingerprints = this.previous.fingerprints();
+        if (fingerprints == null || fingerprints.renderHash() != this.renderHash) {
+            // render settings changed, everything needs to be rendered again
+            return null;
+        }
+        for (Renderer renderer : this.renderers.values()) {
+            if (!renderer.hasSavedData(this.regionPos)) {
+                return null;
+            }
+        }
+
+        int[] previous = this.previous.timestamps();
+        long[] changed = new long[16];
+        for (int index = 0; index < 1024; index++) {
+            if (this.timestamps[index] != previous[index]) {
+                changed[index >> 6] |= 1L << index;
+            }
+        }
+        return changed;
+    }
+
+    private void findDirtyChunks(@NotNull Region region, long @Nullable [] changed) {
+        // only compared against when findChangedChunks found the previous state
+        RegionModifiedState.Fingerprints previous = changed == null ? null : this.previous.fingerprints();
+        this.fingerprints = changed == null || previous == null ? new long[1024] : previous.chunks().clone();
+
+        // fingerprint the surface of every chunk that was saved, and drop
+        // the ones that were saved but would render exactly the same
+        int count = 0;
+        int skipped = 0;
+        for (int index = 0; index < 1024; index++) {
+            if (changed != null && !isSet(changed, index)) {
+                continue;
+            }
+            Pl3xMap.api().getRegionProcessor().checkPaused();
+            Chunk chunk = region.getChunk((this.regionPos.x() << 5) + (index & 31), (this.regionPos.z() << 5) + (index >> 5));
+            ChunkFingerprint fingerprint = new ChunkFingerprint(chunk);
+            for (Renderer renderer : this.renderers.values()) {
+                renderer.fingerprint(chunk, fingerprint);
+            }
+            long value = fingerprint.getValue();
+            if (changed != null) {
+                if (value == this.fingerprints[index]) {
+                    changed[index >> 6] &= ~(1L << index);
+                    skipped++;
+                } else {
+                    count++;
+                }
+            }
+            this.fingerprints[index] = value;
+        }
+
+        if (changed == null) {
+            // render everything
+            return;
+        }
+
+        // include the neighbors of changed chunks, heightmaps and biome blending read across chunk edges
+        long[] dirty = new long[16];
+        for (int index = 0; index < 1024; index++) {
+            if (!isSet(changed, index)) {
+                continue;
+            }
+            int x = index & 31;
+            int z = index >> 5;
+            for (int dz = Math.max(0, z - 1); dz <= Math.min(31, z + 1); dz++) {
+                for (int dx = Math.max(0, x - 1); dx <= Math.min(31, x + 1); dx++) {
+                    int i = (dz << 5) + dx;
+                    dirty[i >> 6] |= 1L << i;
+                }
+            }
+        }
+        this.dirtyChunks = dirty;
+
+        Logger.debug("[" + this.world.getName() + "] Found " + count + " changed chunks in " + this.regionPos + " (" + skipped + " saved without visible changes)");
+    }
+
+    private long renderHash() {
+        WorldConfig config = this.world.getConfig();
+        ChunkFingerprint hash = new ChunkFingerprint()
+                .put(config.RENDER_BIOME_BLEND)
+                .put(config.RENDER_SKYLIGHT)
+                .put(config.RENDER_TRANSLUCENT_FLUIDS ? 1 : 0)
+                .put(config.RENDER_TRANSLUCENT_GLASS ? 1 : 0)
+                .put(config.RENDER_HEIGHTMAP_TYPE.toLowerCase(Locale.ROOT).hashCode());
+        for (String key : this.renderers.keySet()) {
+            hash.put(key.hashCode());
+        }
+        // registries are unordered, so sum up the colors to not depend on iteration order
+        long colors = 0;
+        for (Block block : Pl3xMap.api().getBlockRegistry()) {
+            colors += new ChunkFingerprint().put(block.getIndex()).put(block.color()).put(block.vanilla()).getValue();
+        }
+        for (Biome biome : this.world.getBiomeRegistry()) {
+            colors += new ChunkFingerprint().put(biome.index()).put(biome.color()).put(biome.foliage()).put(biome.grass()).put(biome.water()).getValue();
+        }
+        return hash.put(colors).getValue();
+    }
+
+    private static boolean isSet(long[] mask, int index) {
+        return (mask[index >> 6] & (1L << index)) != 0;
+    }
+
     private void scanRegion(@NotNull Region region) {
+        // renderers that work per pixel share a single pass over the region, as long as
+        // everything they consume is produced by a renderer that is part of that pass too
+        List<Renderer> fused = new ArrayList<>();
+        List<Renderer> separate = new ArrayList<>();
+        Set<Layer> separateLayers = new HashSet<>();
         for (Renderer renderer : this.renderers.values()) {
+            boolean dependsOnSeparate = renderer.getBuilder().getConsumes().stream().anyMatch(separateLayers::contains);
+            if (renderer.supportsFusedScan() && !dependsOnSeparate) {
+                fused.add(renderer);
+            } else {
+                separate.add(renderer);
+                separateLayers.addAll(renderer.getBuilder().getProduces());
+            }
+        }
+
+        // stage 0 is the shared pass, every separate renderer is a stage after that
+        Map<Layer, Integer> lastStage = new HashMap<>();
+        for (int stage = 0; stage <= separate.size(); stage++) {
+            List<Renderer> renderers = stage == 0 ? fused : List.of(separate.get(stage - 1));
+            for (Renderer renderer : renderers) {
+                for (Layer layer : renderer.getBuilder().getConsumes()) {
+                    lastStage.put(layer, stage);
+                }
+            }
+        }
+
+        // keep layers around for every consumer that does not read them while they are being produced
+        List<Layer> materialize = new ArrayList<>();
+        for (Map.Entry<Layer, Integer> entry : lastStage.entrySet()) {
+            Layer layer = entry.getKey();
+            if (layer.isBuiltIn()) {
+                if (entry.getValue() > 0) {
+                    materialize.add(layer);
+                    this.layers.put(layer, new int[512 << 9]);
+                }
+            } else if (this.producedLayers.contains(layer)) {
+                this.layers.put(layer, new int[512 << 9]);
+            }
+        }
+
+        for (Renderer renderer : fused) {
+            renderer.preScan(region);
+        }
+        scanBlocks(region, fused, materialize);
+        for (Renderer renderer : fused) {
+            renderer.postScan(region);
+        }
+        freeLayers(lastStage, 0);
+
+        for (int i = 0; i < separate.size(); i++) {
             Pl3xMap.api().getRegionProcessor().checkPaused();
-            renderer.scanData(region);
+            separate.get(i).scanData(region);
+            freeLayers(lastStage, i + 1);
         }
+
+        this.layers.clear();
+
         Pl3xMap.api().getRegionProcessor().getProgress().increment();
     }
 
+    private void freeLayers(@NotNull Map<@NotNull Layer, @NotNull Integer> lastStage, int stage) {
+        lastStage.forEach((layer, last) -> {
+            if (last == stage) {
+                this.layers.remove(layer);
+            }
+        });
+    }
+
+    /**
+     * Order renderers so every renderer runs after the renderers producing the layers it consumes.
+     */
+    private void sortRenderers() {
+        Map<Layer, List<Renderer>> producers = new HashMap<>();
+        for (Renderer renderer : this.renderers.values()) {
+            for (Layer layer : renderer.getBuilder().getProduces()) {
+                producers.computeIfAbsent(layer, k -> new ArrayList<>()).add(renderer);
+                this.producedLayers.add(layer);
+            }
+        }
+
+        Map<String, Renderer> sorted = new LinkedHashMap<>();
+        Set<Renderer> visiting = new HashSet<>();
+        for (Renderer renderer : this.renderers.values()) {
+            visit(renderer, producers, sorted, visiting);
+        }
+        this.renderers.clear();
+        this.renderers.putAll(sorted);
+    }
+
+    private void visit(@NotNull Renderer renderer, @NotNull Map<@NotNull Layer, @NotNull List<@NotNull Renderer>> producers, @NotNull Map<@NotNull String, @NotNull Renderer> sorted, @NotNull Set<@NotNull Renderer> visiting) {
+        if (sorted.containsKey(renderer.getKey())) {
+            return;
+        }
+        if (!visiting.add(renderer)) {
+            Logger.warn("Renderer " + renderer.getKey() + " has a circular layer dependency");
+            return;
+        }
+        for (Layer layer : renderer.getBuilder().getConsumes()) {
+            for (Renderer producer : producers.getOrDefault(layer, List.of())) {
+                if (producer != renderer) {
+                    visit(producer, producers, sorted, visiting);
+                }
+            }
+        }
+        visiting.remove(renderer);
+        sorted.put(renderer.getKey(), renderer);
+    }
+
+    /**
+     * Check if a layer can be read during this scan.
+     *
+     * @param layer layer to check
+     * @return true if the layer is built-in or produced by one of this scan's renderers
+     */
+    public boolean hasLayer(@NotNull Layer layer) {
+        return layer.isBuiltIn() || this.producedLayers.contains(layer);
+    }
+
+    /**
+     * Get the value of a layer for a block.
+     *
+     * @param layer  layer to read
+     * @param region region the block is in
+     * @param blockX block x coordinate
+     * @param blockZ block z coordinate
+     * @return layer value, or 0 if the layer is not available
+     */
+    public int getLayer(@NotNull Layer layer, @NotNull Region region, int blockX, int blockZ) {
+        int[] values = this.layers.get(layer);
+        if (values != null) {
+            return values[((blockZ & 0x1FF) << 9) + (blockX & 0x1FF)];
+        }
+        return layer.isBuiltIn() ? computeLayer(layer, region, blockX, blockZ) : 0;
+    }
+
+    /**
+     * Set the value of a layer for a block. Does nothing if no renderer consumes the layer.
+     *
+     * @param layer  layer to write
+     * @param blockX block x coordinate
+     * @param blockZ block z coordinate
+     * @param value  layer value
+     */
+    public void setLayer(@NotNull Layer layer, int blockX, int blockZ, int value) {
+        int[] values = this.layers.get(layer);
+        if (values != null) {
+            values[((blockZ & 0x1FF) << 9) + (blockX & 0x1FF)] = value;
+        }
+    }
+
+    private int computeLayer(@NotNull Layer layer, @NotNull Region region, int blockX, int blockZ) {
+        Chunk chunk = this.world.getChunk(region, blockX >> 4, blockZ >> 4);
+        int index = Chunk.index(blockX, blockZ);
+        if (!chunk.hasData(index)) {
+            return 0;
+        }
+        if (layer == Layer.HEIGHTMAP_SHADE) {
+            return getSharedPixel().getHeightmapColor(this.heightmap, region, blockX, blockZ);
+        }
+        if (layer == Layer.LIGHT) {
+            return chunk.getLight(blockX, (chunk.getFluidStateId(index) == 0 ? chunk.getBlockY(index) : chunk.getFluidY(index)) + 1, blockZ);
+        }
+        Biome biome = chunk.getBiome(index);
+        if (layer == Layer.BIOME) {
+            return biome.index();
+        }
+        if (layer == Layer.BLOCK_COLOR) {
+            return getSharedPixel().getBlockColor(region, biome, chunk.getBlockState(index), blockX, blockZ);
+        }
+        return 0;
+    }
+
+    /**
+     * Visit every visible and dirty block column of the region once, handing each to all the given renderers.
+     * <p>
+     * When render threads are idle and every renderer supports it, the region is split up into blocks of 4x4 chunks
+     * that are scanned in parallel, all writing into the same images. Otherwise the region is scanned on the calling
+     * thread, so regions waiting in the queue are not held up.
+     *
+     * @param region    region to scan
+     * @param renderers renderers to scan with
+     */
+    public void scanBlocks(@NotNull Region region, @NotNull List<@NotNull Renderer> renderers) {
+        scanBlocks(region, renderers, List.of());
+    }
+
+    private void scanBlocks(@NotNull Region region, @NotNull List<@NotNull Renderer> renderers, @NotNull List<@NotNull Layer> materialize) {
+        if (renderers.isEmpty() && materialize.isEmpty()) {
+            return;
+        }
+        if (Pl3xMap.ThreadFactory.hasSpareThreads() && renderers.stream().allMatch(Renderer::supportsParallelScan)) {
+            new ScanUnits(region, renderers, materialize, 0, UNITS).invoke();
+        } else {
+            scanUnits(region, renderers, materialize, 0, UNITS);
+        }
+    }
+
+    private void scanUnits(@NotNull Region region, @NotNull List<@NotNull Renderer> renderers, @NotNull List<@NotNull Layer> materialize, int from, int to) {
+        int unitsWide = 32 >> UNIT_SHIFT;
+        for (int unit = from; unit < to; unit++) {
+            int cX = (region.getX() << 5) + ((unit % unitsWide) << UNIT_SHIFT);
+            int cZ = (region.getZ() << 5) + ((unit / unitsWide) << UNIT_SHIFT);
+            scanChunks(region, renderers, materialize, cX, cZ, 1 << UNIT_SHIFT);
+        }
+    }
+
+    private void scanChunks(@NotNull Region region, @NotNull List<@NotNull Renderer> renderers, @NotNull List<@NotNull Layer> materialize, int cX, int cZ, int size) {
+        // iterate each chunk in this block of chunks
+        for (int chunkX = cX; chunkX < cX + size; chunkX++) {
+            int bX = chunkX << 4;
+            for (int chunkZ = cZ; chunkZ < cZ + size; chunkZ++) {
+                // skip any blocks that do not need to be rendered due to visibility limits
+                if (!this.world.visibleChunk(chunkX, chunkZ)) {
+                    continue;
+                }
+                // skip any chunks that have not changed since the last render
+                if (!isChunkDirty(chunkX, chunkZ)) {
+                    continue;
+                }
+                int bZ = chunkZ << 4;
+                Chunk chunk = region.getChunk(chunkX, chunkZ);
+                // iterate each block in this chunk
+                for (int blockX = bX; blockX < bX + 16; blockX++) {
+                    for (int blockZ = bZ; blockZ < bZ + 16; blockZ++) {
+                        Pl3xMap.api().getRegionProcessor().checkPaused();
+                        // skip any blocks that do not need to be rendered due to visibility limits
+                        if (!this.world.visibleBlock(blockX, blockZ)) {
+                            continue;
+                        }
+                        int index = Chunk.index(blockX, blockZ);
+                        if (!chunk.hasData(index)) {
+                            // this shouldn't happen, but just in case...
+                            continue;
+                        }
+                        for (Layer layer : materialize) {
+                            this.layers.get(layer)[((blockZ & 0x1FF) << 9) + (blockX & 0x1FF)] = computeLayer(layer, region, blockX, blockZ);
+                        }
+                        for (Renderer renderer : renderers) {
+                            renderer.scanBlock(region, chunk, index, blockX, blockZ);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private final class ScanUnits extends RecursiveAction {
+        private final Region region;
+        private final List<Renderer> renderers;
+        private final List<Layer> materialize;
+        private final int from;
+        private final int to;
+
+        private ScanUnits(@NotNull Region region, @NotNull List<@NotNull Renderer> renderers, @NotNull List<@NotNull Layer> materialize, int from, int to) {
+            this.region = region;
+            this.renderers = renderers;
+            this.materialize = materialize;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            // only keep splitting while other threads are actually taking the work
+            if (this.to - this.from > 1 && getSurplusQueuedTaskCount() < 2) {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new ScanUnits(this.region, this.renderers, this.materialize, this.from, middle),
+                        new ScanUnits(this.region, this.renderers, this.materialize, middle, this.to));
+                return;
+            }
+            scanUnits(this.region, this.renderers, this.materialize, this.from, this.to);
+        }
+    }
+
     private void saveImages() {
         for (Renderer renderer : this.renderers.values()) {
             Pl3xMap.api().getRegionProcessor().checkPaused();
@@ -128,5 +632,21 @@ public class RegionScanTask implements Runnable {
         }
         // set region modified time
         world.getRegionModifiedState().set(Mathf.asLong(this.regionPos), System.currentTimeMillis());
+
+        // set chunk modified times and fingerprints
+        int[] timestamps = this.timestamps;
+        if (timestamps != null) {
+            for (int index = 0; index < timestamps.length; index++) {
+                // timestamps only have a one second resolution, so a chunk saved again
+                // in the same second it was read would be missed. render it again next time
+                if (timestamps[index] >= this.timestampsRead) {
+                    timestamps[index] = 0;
+                }
+            }
+        }
+        if (timestamps != null || this.fingerprints != null) {
+            RegionModifiedState.Fingerprints fingerprints = this.fingerprints == null ? null : new RegionModifiedState.Fingerprints(this.renderHash, this.fingerprints);
+            world.getRegionModifiedState().setChunkState(this.regionPos.x(), this.regionPos.z(), new RegionModifiedState.ChunkState(timestamps, fingerprints));
+        }
     }
 }
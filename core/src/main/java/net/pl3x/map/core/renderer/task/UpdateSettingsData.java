@@ -117,6 +117,11 @@ public class UpdateSettingsData extends Task {
             zoom.put("default", config.ZOOM_DEFAULT);
             zoom.put("maxOut", config.ZOOM_MAX_OUT);
             zoom.put("maxIn", config.ZOOM_MAX_IN);
+            List<String> formats = new ArrayList<>();
+            for (int i = 0; i <= config.ZOOM_MAX_OUT; i++) {
+                formats.add(world.getTileFormat(i).getExtension());
+            }
+            zoom.put("formats", formats);
 
             Map<String, Object> ui = new LinkedHashMap<>();
             ui.put("link", config.UI_LINK);
@@ -174,7 +179,7 @@ public class UpdateSettingsData extends Task {
         zoom.put("wheel", Config.MAP_ZOOM_WHEEL);
 
         Map<String, Object> map = new LinkedHashMap<>();
-        map.put("format", IO.get(Config.WEB_TILE_FORMAT).getKey());
+        map.put("format", IO.get(Config.WEB_TILE_FORMAT).getExtension());
         map.put("maxPlayers", Pl3xMap.api().getMaxPlayers());
         map.put("lang", lang);
         map.put("zoom", zoom);
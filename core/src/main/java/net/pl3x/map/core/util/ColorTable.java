@@ -0,0 +1,175 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.util;
+
+import java.util.Arrays;
+import net.pl3x.map.core.Pl3xMap;
+import net.pl3x.map.core.world.Block;
+import net.pl3x.map.core.world.BlockState;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Colors and flags of every block state, indexed by block state id.
+ * <p>
+ * Everything the renderers need to know about a block state to color it is worked out once per state, the first time
+ * the state is looked up. That includes the colors of blocks that depend on their properties, like crops and redstone.
+ * The table is cleared whenever the colors config is reloaded.
+ */
+public final class ColorTable {
+    public static final int TINT_NONE = 0;
+    public static final int TINT_FOLIAGE = 1;
+    public static final int TINT_GRASS = 2;
+    public static final int TINT_WATER = 3;
+
+    private static final int AIR = 1;
+    private static final int FLUID = 1 << 1;
+    private static final int GLASS = 1 << 2;
+    private static final int FLAT = 1 << 3;
+    private static final int TINT_SHIFT = 4;
+    private static final int COMPUTED = 1 << 30;
+
+    // color in the low 32 bits and flags in the high 32 bits, so a single write publishes both
+    private static volatile long[] entries = new long[1024];
+    // bumped on every clear, so entries worked out from the old config are not stored afterwards
+    private static volatile int generation;
+
+    private ColorTable() {
+    }
+
+    /**
+     * Forget the colors of all block states, making them be worked out again from the current config.
+     */
+    public static void clear() {
+        synchronized (ColorTable.class) {
+            entries = new long[entries.length];
+            generation++;
+        }
+    }
+
+    /**
+     * Get the color of a block state, before any biome tint is applied.
+     *
+     * @param id block state id
+     * @return rgb color, or 0 if the block is not rendered
+     */
+    public static int getColor(int id) {
+        return (int) get(id);
+    }
+
+    /**
+     * Get the biome tint a block state is colored with.
+     *
+     * @param id block state id
+     * @return one of {@link #TINT_NONE}, {@link #TINT_FOLIAGE}, {@link #TINT_GRASS} or {@link #TINT_WATER}
+     */
+    public static int getTint(int id) {
+        return (int) (get(id) >>> 32) >> TINT_SHIFT & 0x3;
+    }
+
+    public static boolean isAir(int id) {
+        return (get(id) >>> 32 & AIR) != 0;
+    }
+
+    public static boolean isFluid(int id) {
+        return (get(id) >>> 32 & FLUID) != 0;
+    }
+
+    public static boolean isGlass(int id) {
+        return (get(id) >>> 32 & GLASS) != 0;
+    }
+
+    public static boolean isFlat(int id) {
+        return (get(id) >>> 32 & FLAT) != 0;
+    }
+
+    private static long get(int id) {
+        long[] entries = ColorTable.entries;
+        if (id < entries.length) {
+            long entry = entries[id];
+            if (entry != 0) {
+                return entry;
+            }
+        }
+        return compute(id);
+    }
+
+    private static long compute(int id) {
+        int generation = ColorTable.generation;
+        BlockState state = BlockState.byId(id);
+        Block block = state.getBlock();
+        int tint = block.isFoliage() ? TINT_FOLIAGE : block.isGrass() ? TINT_GRASS : block.isWater() ? TINT_WATER : TINT_NONE;
+        int flags = COMPUTED
+                | (block.isAir() ? AIR : 0)
+                | (block.isFluid() ? FLUID : 0)
+                | (block.isGlass() ? GLASS : 0)
+                | (block.isFlat() ? FLAT : 0)
+                | tint << TINT_SHIFT;
+        long entry = ((long) flags << 32) | (computeColor(state, tint) & 0xFFFFFFFFL);
+        synchronized (ColorTable.class) {
+            if (generation != ColorTable.generation) {
+                // the table was cleared while this entry was worked out, it may have been read from the old config
+                return entry;
+            }
+            long[] entries = ColorTable.entries;
+            if (id >= entries.length) {
+                entries = ColorTable.entries = Arrays.copyOf(entries, Math.max(entries.length << 1, id + 1));
+            }
+            entries[id] = entry;
+        }
+        return entry;
+    }
+
+    private static int computeColor(@NotNull BlockState state, int tint) {
+        Block block = state.getBlock();
+        int color = block.color();
+        if (color <= 0) {
+            return 0;
+        }
+        if (tint != TINT_NONE) {
+            return color;
+        }
+        String key = block.getKey();
+        if (key.equals("minecraft:melon_stem") || key.equals("minecraft:pumpkin_stem")) {
+            int age = state.getAge();
+            return Colors.rgb(age << 5, 0xFF - (age << 3), age << 2);
+        }
+        if (key.equals("minecraft:wheat")) {
+            return Colors.lerpRGB(0x007C00, 0xDCBB65, (state.getAge() + 1) / 8F);
+        }
+        if (key.equals("minecraft:redstone_wire")) {
+            return Pl3xMap.api().getColorForPower(state.getPower());
+        }
+        if (key.equals("minecraft:cocoa")) {
+            return switch (state.getAge()) {
+                case 0 -> 0x6A682E;
+                case 1 -> 0x654721;
+                default -> 0x703715;
+            };
+        }
+        if (key.equals("minecraft:farmland")) {
+            return state.getMoisture() >= 7 ? 0x512C0F : 0x8E6646;
+        }
+        return color;
+    }
+}
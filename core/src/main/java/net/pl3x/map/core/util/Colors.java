@@ -28,10 +28,10 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.nio.file.Path;
 import javax.imageio.ImageIO;
-import net.pl3x.map.core.Pl3xMap;
 import net.pl3x.map.core.world.Biome;
+import net.pl3x.map.core.world.BiomeBlend;
 import net.pl3x.map.core.world.BlockState;
-import net.pl3x.map.core.world.Chunk;
+import net.pl3x.map.core.world.Heightfield;
 import net.pl3x.map.core.world.Region;
 import org.jetbrains.annotations.NotNull;
 
@@ -200,13 +200,65 @@ public class Colors {
      * @see <a href="https://en.wikipedia.org/wiki/Alpha_compositing#Alpha_blending">Alpha Blending</a>
      */
     public static int blend(int color0, int color1) {
-        double a0 = (double) alpha(color0) / 0xFF;
-        double a1 = (double) alpha(color1) / 0xFF;
-        double a = a0 + a1 * (1 - a0);
-        double r = (red(color0) * a0 + red(color1) * a1 * (1 - a0)) / a;
-        double g = (green(color0) * a0 + green(color1) * a1 * (1 - a0)) / a;
-        double b = (blue(color0) * a0 + blue(color1) * a1 * (1 - a0)) / a;
-        return argb((int) a * 0xFF, (int) r, (int) g, (int) b);
+        int a0 = color0 >>> 24;
+        int a1 = color1 >>> 24;
+        if (a0 == 0xFF) {
+            return color0;
+        }
+        if (a1 == 0xFF) {
+            return blendOpaque(color0, a0, color1);
+        }
+        // neither color is opaque, so the blended alpha truncates to 0
+        int w0 = a0 * 0xFF;
+        int w1 = a1 * (0xFF - a0);
+        int w = w0 + w1;
+        if (w == 0) {
+            return 0;
+        }
+        return rgb((red(color0) * w0 + red(color1) * w1) / w,
+                (green(color0) * w0 + green(color1) * w1) / w,
+                (blue(color0) * w0 + blue(color1) * w1) / w);
+    }
+
+    /**
+     * Blends a color over an opaque color, with the red and blue channels worked out side by side in one int.
+     *
+     * @param color0 color to blend over with
+     * @param a0     alpha of color0
+     * @param color1 opaque color to be blended over
+     * @return resulting opaque color
+     */
+    private static int blendOpaque(int color0, int a0, int color1) {
+        int a1 = 0xFF - a0;
+        int rb = (color0 & 0xFF00FF) * a0 + (color1 & 0xFF00FF) * a1;
+        int g = (color0 >> 8 & 0xFF) * a0 + (color1 >> 8 & 0xFF) * a1;
+        return 0xFF << 24 | div255x2(rb) | div255(g) << 8;
+    }
+
+    /**
+     * Composite a translucent color over another translucent color.
+     * <p>
+     * Unlike {@link #blend(int, int)}, the result keeps a translucent alpha, so a stack of colors
+     * can be composited on its own and blended over the color underneath in a single step.
+     *
+     * @param top    color on top
+     * @param bottom color underneath
+     * @return composited color
+     * @see <a href="https://en.wikipedia.org/wiki/Alpha_compositing#Alpha_blending">Alpha Blending</a>
+     */
+    public static int over(int top, int bottom) {
+        int a0 = top >>> 24;
+        int w0 = a0 * 0xFF;
+        int w1 = (bottom >>> 24) * (0xFF - a0);
+        int w = w0 + w1;
+        if (w == 0) {
+            return 0;
+        }
+        int half = w >> 1;
+        return argb((w + 0x7F) / 0xFF,
+                (red(top) * w0 + red(bottom) * w1 + half) / w,
+                (green(top) * w0 + green(bottom) * w1 + half) / w,
+                (blue(top) * w0 + blue(bottom) * w1 + half) / w);
     }
 
     public static int mix(int color0, int color1) {
@@ -217,27 +269,72 @@ public class Colors {
     }
 
     public static int shade(int color, int shade) {
-        float ratio = shade / 255F;
-        int r = (int) ((color >> 16 & 0xFF) * ratio);
-        int g = (int) ((color >> 8 & 0xFF) * ratio);
-        int b = (int) ((color & 0xFF) * ratio);
-        return (0xFF << 24) | (r << 16) | (g << 8) | b;
+        int rb = (color & 0xFF00FF) * shade;
+        int g = (color >> 8 & 0xFF) * shade;
+        return 0xFF << 24 | div255x2(rb) | div255(g) << 8;
+    }
+
+    /**
+     * Divide by 255, rounding down, for any value up to {@code 255 * 255}.
+     *
+     * @param value value to divide
+     * @return value divided by 255
+     */
+    static int div255(int value) {
+        return (value + 1 + (value >>> 8)) >>> 8;
+    }
+
+    /**
+     * Divide two 16 bit values packed into the low and high halves of an int by 255, rounding down.
+     * <p>
+     * Each half may be up to {@code 255 * 255}. The results are returned in bits 0-7 and 16-23,
+     * where the red and blue channels of an argb color sit.
+     *
+     * @param packed values to divide
+     * @return values divided by 255
+     */
+    static int div255x2(int packed) {
+        return (packed + 0x00010001 + (packed >>> 8 & 0x00FF00FF)) >>> 8 & 0x00FF00FF;
     }
 
     public static int getFoliageColor(@NotNull Region region, @NotNull Biome biome, int color, int x, int z) {
-        return sampleNeighbors(region, biome, x, z, (biome2, x2, z2) -> mix(biome2.foliage(), color));
+        return getFoliageColor(region.getHeightfield(), biome, color, x, z);
+    }
+
+    public static int getFoliageColor(@NotNull Heightfield heightfield, @NotNull Biome biome, int color, int x, int z) {
+        BiomeBlend blend = heightfield.getBiomeBlend();
+        if (blend != null && blend.contains(x, z)) {
+            return mix(blend.getColor(BiomeBlend.Tint.FOLIAGE, x, z), color);
+        }
+        return sampleNeighbors(heightfield, biome, x, z, (biome2, x2, z2) -> mix(biome2.foliage(), color));
     }
 
     public static int getGrassColor(@NotNull Region region, @NotNull Biome biome, int color, int x, int z) {
-        return sampleNeighbors(region, biome, x, z, (biome2, x2, z2) -> mix(biome2.grass(x2, z2), color));
+        return getGrassColor(region.getHeightfield(), biome, color, x, z);
+    }
+
+    public static int getGrassColor(@NotNull Heightfield heightfield, @NotNull Biome biome, int color, int x, int z) {
+        BiomeBlend blend = heightfield.getBiomeBlend();
+        if (blend != null && blend.contains(x, z)) {
+            return mix(blend.getColor(BiomeBlend.Tint.GRASS, x, z), color);
+        }
+        return sampleNeighbors(heightfield, biome, x, z, (biome2, x2, z2) -> mix(biome2.grass(x2, z2), color));
     }
 
     public static int getWaterColor(@NotNull Region region, @NotNull Biome biome, int x, int z) {
-        return sampleNeighbors(region, biome, x, z, (biome2, x2, z2) -> biome2.water());
+        return getWaterColor(region.getHeightfield(), biome, x, z);
     }
 
-    private static int sampleNeighbors(@NotNull Region region, @NotNull Biome biome, int x, int z, @NotNull Sampler colorSampler) {
-        int radius = region.getWorld().getConfig().RENDER_BIOME_BLEND;
+    public static int getWaterColor(@NotNull Heightfield heightfield, @NotNull Biome biome, int x, int z) {
+        BiomeBlend blend = heightfield.getBiomeBlend();
+        if (blend != null && blend.contains(x, z)) {
+            return blend.getColor(BiomeBlend.Tint.WATER, x, z);
+        }
+        return sampleNeighbors(heightfield, biome, x, z, (biome2, x2, z2) -> biome2.water());
+    }
+
+    private static int sampleNeighbors(@NotNull Heightfield heightfield, @NotNull Biome biome, int x, int z, @NotNull Sampler colorSampler) {
+        int radius = heightfield.getRegion().getWorld().getConfig().RENDER_BIOME_BLEND;
         int color = colorSampler.apply(biome, x, z);
         if (radius < 1) {
             return color;
@@ -251,11 +348,11 @@ public class Colors {
                 if (x2 == x && z2 == z) {
                     continue;
                 }
-                Chunk.BlockData data = region.getWorld().getChunk(region, x2 >> 4, z2 >> 4).getData(x2, z2); // 3%
-                if (data == null) {
+                Biome biome2 = heightfield.getBiome(x2, z2);
+                if (biome2 == null) {
                     continue;
                 }
-                int color2 = colorSampler.apply(data.getBiome(region, x2, z2), x2, z2); // 2%
+                int color2 = colorSampler.apply(biome2, x2, z2);
                 if (color2 > 0) {
                     red += red(color2);
                     green += green(color2);
@@ -268,41 +365,21 @@ public class Colors {
     }
 
     public static int fixBlockColor(@NotNull Region region, @NotNull Biome biome, @NotNull BlockState blockstate, int x, int z) {
-        int color = blockstate.getBlock().color();
-        if (color <= 0) {
+        return fixBlockColor(region.getHeightfield(), biome, blockstate, x, z);
+    }
+
+    public static int fixBlockColor(@NotNull Heightfield heightfield, @NotNull Biome biome, @NotNull BlockState blockstate, int x, int z) {
+        int id = blockstate.getId();
+        int color = ColorTable.getColor(id);
+        if (color == 0) {
             return 0;
         }
-        if (blockstate.getBlock().isFoliage()) {
-            return getFoliageColor(region, biome, color, x, z);
-        }
-        if (blockstate.getBlock().isGrass()) {
-            return getGrassColor(region, biome, color, x, z);
-        }
-        if (blockstate.getBlock().isWater()) {
-            return getWaterColor(region, biome, x, z);
-        }
-        String key = blockstate.getBlock().getKey();
-        if (key.equals("minecraft:melon_stem") || key.equals("minecraft:pumpkin_stem")) {
-            int age = blockstate.getAge();
-            return rgb(age << 5, 0xFF - (age << 3), age << 2);
-        }
-        if (key.equals("minecraft:wheat")) {
-            return lerpRGB(0x007C00, 0xDCBB65, (blockstate.getAge() + 1) / 8F);
-        }
-        if (key.equals("minecraft:redstone_wire")) {
-            return Pl3xMap.api().getColorForPower(blockstate.getPower());
-        }
-        if (key.equals("minecraft:cocoa")) {
-            return switch (blockstate.getAge()) {
-                case 0 -> 0x6A682E;
-                case 1 -> 0x654721;
-                default -> 0x703715;
-            };
-        }
-        if (key.equals("minecraft:farmland")) {
-            return blockstate.getMoisture() >= 7 ? 0x512C0F : 0x8E6646;
-        }
-        return blockstate.getBlock().color();
+        return switch (ColorTable.getTint(id)) {
+            case ColorTable.TINT_FOLIAGE -> getFoliageColor(heightfield, biome, color, x, z);
+            case ColorTable.TINT_GRASS -> getGrassColor(heightfield, biome, color, x, z);
+            case ColorTable.TINT_WATER -> getWaterColor(heightfield, biome, x, z);
+            default -> color;
+        };
     }
 
     public static int mul(int color, float multiplier) {
@@ -0,0 +1,471 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import net.querz.nbt.tag.ByteArrayTag;
+import net.querz.nbt.tag.ByteTag;
+import net.querz.nbt.tag.CompoundTag;
+import net.querz.nbt.tag.DoubleTag;
+import net.querz.nbt.tag.EndTag;
+import net.querz.nbt.tag.FloatTag;
+import net.querz.nbt.tag.IntArrayTag;
+import net.querz.nbt.tag.IntTag;
+import net.querz.nbt.tag.ListTag;
+import net.querz.nbt.tag.LongArrayTag;
+import net.querz.nbt.tag.LongTag;
+import net.querz.nbt.tag.ShortTag;
+import net.querz.nbt.tag.StringTag;
+import net.querz.nbt.tag.Tag;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Streaming NBT reader that only materializes whitelisted tags.
+ * <p>
+ * Everything not covered by the {@link Filter} is skipped straight off the
+ * stream through a reusable scratch buffer, so unwanted tags (entities, block
+ * entities, ticks, structures, etc.) never allocate anything. Tag names are
+ * compared as raw bytes and arrays are decoded directly into primitive arrays.
+ * <p>
+ * Instances are not thread safe, but are meant to be reused by a single thread.
+ */
+public class NBTScanner {
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE = 1;
+    private static final int TAG_SHORT = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_FLOAT = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_BYTE_ARRAY = 7;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_COMPOUND = 10;
+    private static final int TAG_INT_ARRAY = 11;
+    private static final int TAG_LONG_ARRAY = 12;
+
+    private static final int MAX_DEPTH = Tag.DEFAULT_MAX_DEPTH;
+
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final byte[] buffer = new byte[8192];
+    private InputStream in;
+    private int pos;
+    private int limit;
+
+    /**
+     * Read the root compound from the stream, keeping only the tags allowed by the filter.
+     *
+     * @param in     uncompressed NBT stream, does not need to be buffered
+     * @param filter tags to keep
+     * @return pruned root compound
+     * @throws IOException if the stream is not valid NBT
+     */
+    public @NotNull CompoundTag read(@NotNull InputStream in, @NotNull Filter filter) throws IOException {
+        this.in = in;
+        this.pos = 0;
+        this.limit = 0;
+        try {
+            int type = readUnsignedByte();
+            if (type != TAG_COMPOUND) {
+                throw new IOException("Root tag is not a compound: " + type);
+            }
+            skip(readUnsignedShort()); // root name
+            return readCompound(filter, 0);
+        } finally {
+            this.in = null;
+        }
+    }
+
+    private @NotNull CompoundTag readCompound(@NotNull Filter filter, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Maximum depth exceeded");
+        }
+        CompoundTag compound = new CompoundTag();
+        int type;
+        while ((type = readUnsignedByte()) != TAG_END) {
+            int length = readUnsignedShort();
+            if (filter.keepsAll()) {
+                compound.put(readString(length), readPayload(type, filter, depth + 1));
+                continue;
+            }
+            Filter child = filter.match(this, length);
+            skip(length);
+            if (child == null) {
+                skipPayload(type, depth + 1);
+            } else {
+                compound.put(child.name, readPayload(type, child, depth + 1));
+            }
+        }
+        return compound;
+    }
+
+    private @NotNull Tag<?> readPayload(int type, @NotNull Filter filter, int depth) throws IOException {
+        return switch (type) {
+            case TAG_BYTE -> new ByteTag(readByte());
+            case TAG_SHORT -> new ShortTag(readShort());
+            case TAG_INT -> new IntTag(readInt());
+            case TAG_LONG -> new LongTag(readLong());
+            case TAG_FLOAT -> new FloatTag(Float.intBitsToFloat(readInt()));
+            case TAG_DOUBLE -> new DoubleTag(Double.longBitsToDouble(readLong()));
+            case TAG_BYTE_ARRAY -> new ByteArrayTag(readByteArray());
+            case TAG_STRING -> new StringTag(readString(readUnsignedShort()));
+            case TAG_LIST -> readList(filter, depth);
+            case TAG_COMPOUND -> readCompound(filter, depth);
+            case TAG_INT_ARRAY -> new IntArrayTag(readIntArray());
+            case TAG_LONG_ARRAY -> new LongArrayTag(readLongArray());
+            default -> throw new IOException("Invalid tag type: " + type);
+        };
+    }
+
+    private @NotNull ListTag<?> readList(@NotNull Filter filter, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Maximum depth exceeded");
+        }
+        int type = readUnsignedByte();
+        int size = readInt();
+        ListTag<?> list = ListTag.createUnchecked(classFromId(type));
+        for (int i = 0; i < size; i++) {
+            // a filter on a list applies to each of its elements
+            list.addUnchecked(readPayload(type, filter, depth + 1));
+        }
+        return list;
+    }
+
+    private void skipPayload(int type, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Maximum depth exceeded");
+        }
+        switch (type) {
+            case TAG_BYTE -> skip(1);
+            case TAG_SHORT -> skip(2);
+            case TAG_INT, TAG_FLOAT -> skip(4);
+            case TAG_LONG, TAG_DOUBLE -> skip(8);
+            case TAG_BYTE_ARRAY -> skip(readLength());
+            case TAG_STRING -> skip(readUnsignedShort());
+            case TAG_INT_ARRAY -> skip(readLength() * 4L);
+            case TAG_LONG_ARRAY -> skip(readLength() * 8L);
+            case TAG_LIST -> {
+                int elementType = readUnsignedByte();
+                int size = readLength();
+                switch (elementType) {
+                    case TAG_END -> {
+                    }
+                    case TAG_BYTE -> skip(size);
+                    case TAG_SHORT -> skip(size * 2L);
+                    case TAG_INT, TAG_FLOAT -> skip(size * 4L);
+                    case TAG_LONG, TAG_DOUBLE -> skip(size * 8L);
+                    default -> {
+                        for (int i = 0; i < size; i++) {
+                            skipPayload(elementType, depth + 1);
+                        }
+                    }
+                }
+            }
+            case TAG_COMPOUND -> {
+                int childType;
+                while ((childType = readUnsignedByte()) != TAG_END) {
+                    skip(readUnsignedShort());
+                    skipPayload(childType, depth + 1);
+                }
+            }
+            default -> throw new IOException("Invalid tag type: " + type);
+        }
+    }
+
+    private static @NotNull Class<?> classFromId(int type) throws IOException {
+        return switch (type) {
+            case TAG_END -> EndTag.class;
+            case TAG_BYTE -> ByteTag.class;
+            case TAG_SHORT -> ShortTag.class;
+            case TAG_INT -> IntTag.class;
+            case TAG_LONG -> LongTag.class;
+            case TAG_FLOAT -> FloatTag.class;
+            case TAG_DOUBLE -> DoubleTag.class;
+            case TAG_BYTE_ARRAY -> ByteArrayTag.class;
+            case TAG_STRING -> StringTag.class;
+            case TAG_LIST -> ListTag.class;
+            case TAG_COMPOUND -> CompoundTag.class;
+            case TAG_INT_ARRAY -> IntArrayTag.class;
+            case TAG_LONG_ARRAY -> LongArrayTag.class;
+            default -> throw new IOException("Invalid tag type: " + type);
+        };
+    }
+
+    // ---- raw stream access ----
+
+    private void fill(int needed) throws IOException {
+        if (this.limit - this.pos >= needed) {
+            return;
+        }
+        int remaining = this.limit - this.pos;
+        System.arraycopy(this.buffer, this.pos, this.buffer, 0, remaining);
+        this.pos = 0;
+        this.limit = remaining;
+        while (this.limit < needed) {
+            int read = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            this.limit += read;
+        }
+    }
+
+    private void skip(long count) throws IOException {
+        int buffered = (int) Math.min(count, this.limit - this.pos);
+        this.pos += buffered;
+        count -= buffered;
+        while (count > 0) {
+            // read into the scratch buffer instead of InputStream#skip, which allocates for inflater streams
+            int read = this.in.read(this.buffer, 0, (int) Math.min(count, this.buffer.length));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            count -= read;
+        }
+    }
+
+    private byte readByte() throws IOException {
+        fill(1);
+        return this.buffer[this.pos++];
+    }
+
+    private int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    private short readShort() throws IOException {
+        fill(2);
+        short value = (short) SHORT.get(this.buffer, this.pos);
+        this.pos += 2;
+        return value;
+    }
+
+    private int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    private int readInt() throws IOException {
+        fill(4);
+        int value = (int) INT.get(this.buffer, this.pos);
+        this.pos += 4;
+        return value;
+    }
+
+    private long readLong() throws IOException {
+        fill(8);
+        long value = (long) LONG.get(this.buffer, this.pos);
+        this.pos += 8;
+        return value;
+    }
+
+    private int readLength() throws IOException {
+        int length = readInt();
+        if (length < 0) {
+            throw new IOException("Negative length: " + length);
+        }
+        return length;
+    }
+
+    private byte[] readByteArray() throws IOException {
+        return readBytes(readLength());
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] array = new byte[length];
+        int offset = 0;
+        while (offset < array.length) {
+            fill(1);
+            int count = Math.min(array.length - offset, this.limit - this.pos);
+            System.arraycopy(this.buffer, this.pos, array, offset, count);
+            this.pos += count;
+            offset += count;
+        }
+        return array;
+    }
+
+    private int[] readIntArray() throws IOException {
+        int[] array = new int[readLength()];
+        int i = 0;
+        while (i < array.length) {
+            fill(4);
+            int count = Math.min(array.length - i, (this.limit - this.pos) >> 2);
+            for (int end = i + count; i < end; i++, this.pos += 4) {
+                array[i] = (int) INT.get(this.buffer, this.pos);
+            }
+        }
+        return array;
+    }
+
+    private long[] readLongArray() throws IOException {
+        long[] array = new long[readLength()];
+        int i = 0;
+        while (i < array.length) {
+            fill(8);
+            int count = Math.min(array.length - i, (this.limit - this.pos) >> 3);
+            for (int end = i + count; i < end; i++, this.pos += 8) {
+                array[i] = (long) LONG.get(this.buffer, this.pos);
+            }
+        }
+        return array;
+    }
+
+    private @NotNull String readString(int length) throws IOException {
+        byte[] bytes;
+        int start;
+        if (length <= this.buffer.length) {
+            fill(length);
+            bytes = this.buffer;
+            start = this.pos;
+            this.pos += length;
+        } else {
+            // longer than the scratch buffer, should never happen with chunk data
+            bytes = readBytes(length);
+            start = 0;
+        }
+        for (int i = start; i < start + length; i++) {
+            if (bytes[i] <= 0) {
+                return decodeModifiedUtf8(bytes, start, length);
+            }
+        }
+        // block and biome names are plain ascii
+        return new String(bytes, start, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static @NotNull String decodeModifiedUtf8(byte[] bytes, int start, int length) throws IOException {
+        char[] chars = new char[length];
+        int count = 0;
+        int i = start;
+        int end = start + length;
+        while (i < end) {
+            int a = bytes[i++] & 0xFF;
+            if (a < 0x80) {
+                chars[count++] = (char) a;
+            } else if ((a & 0xE0) == 0xC0 && i < end) {
+                int b = bytes[i++] & 0x3F;
+                chars[count++] = (char) (((a & 0x1F) << 6) | b);
+            } else if ((a & 0xF0) == 0xE0 && i + 1 < end) {
+                int b = bytes[i++] & 0x3F;
+                int c = bytes[i++] & 0x3F;
+                chars[count++] = (char) (((a & 0x0F) << 12) | (b << 6) | c);
+            } else {
+                throw new IOException("Malformed string");
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Tree of tag names to keep while scanning.
+     * <p>
+     * Paths are dot separated tag names. A path that ends on a compound or list
+     * keeps that whole subtree. Paths continue through lists, applying to each
+     * element of the list.
+     */
+    public static final class Filter {
+        private static final Filter[] NONE = new Filter[0];
+
+        private final String name;
+        private final byte[] nameBytes;
+        private Filter[] children = NONE;
+
+        private Filter(@NotNull String name) {
+            this.name = name;
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Create a filter from a list of dot separated tag paths.
+         *
+         * @param paths tag paths to keep
+         * @return new filter
+         */
+        public static @NotNull Filter of(@NotNull String... paths) {
+            Node root = new Node();
+            for (String path : paths) {
+                Node node = root;
+                for (String part : path.split("\\.")) {
+                    if (node.all) {
+                        // parent already keeps everything
+                        break;
+                    }
+                    node = node.children.computeIfAbsent(part, k -> new Node());
+                }
+                node.all = true;
+                node.children.clear();
+            }
+            return root.build("");
+        }
+
+        /**
+         * Check if this filter keeps the whole subtree.
+         *
+         * @return true if everything below this tag is kept
+         */
+        public boolean keepsAll() {
+            return this.children.length == 0;
+        }
+
+        private @Nullable Filter match(@NotNull NBTScanner scanner, int length) throws IOException {
+            if (length > scanner.buffer.length) {
+                return null;
+            }
+            scanner.fill(length);
+            for (Filter child : this.children) {
+                byte[] bytes = child.nameBytes;
+                if (bytes.length == length && Arrays.equals(bytes, 0, length, scanner.buffer, scanner.pos, scanner.pos + length)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        private static final class Node {
+            private final Map<String, Node> children = new LinkedHashMap<>();
+            private boolean all;
+
+            private @NotNull Filter build(@NotNull String name) {
+                Filter filter = new Filter(name);
+                if (!this.all) {
+                    filter.children = this.children.entrySet().stream()
+                            .map(entry -> entry.getValue().build(entry.getKey()))
+                            .toArray(Filter[]::new);
+                }
+                return filter;
+            }
+        }
+    }
+}
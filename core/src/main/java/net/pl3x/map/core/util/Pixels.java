@@ -0,0 +1,72 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.util;
+
+/**
+ * Kernels that work on whole rows of an argb pixel buffer at a time.
+ * <p>
+ * All math is integer, with the red and blue channels (and the alpha and green channels)
+ * packed side by side into a single int, so every add works on two channels at once.
+ */
+public final class Pixels {
+    private Pixels() {
+    }
+
+    /**
+     * Average two rows of pixels in 2x2 blocks into one row of half the width.
+     *
+     * @param src       source pixels
+     * @param srcOffset index of the first pixel of the upper row
+     * @param srcStride distance from the upper row to the lower row
+     * @param dst       destination pixels
+     * @param dstOffset index of the first destination pixel
+     * @param length    number of destination pixels
+     */
+    public static void boxFilter(int[] src, int srcOffset, int srcStride, int[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            int upper = srcOffset + (i << 1);
+            int lower = upper + srcStride;
+            dst[dstOffset + i] = average(src[upper], src[upper + 1], src[lower], src[lower + 1]);
+        }
+    }
+
+    /**
+     * Average four argb colors channel by channel, rounding down.
+     *
+     * @param c0 first color
+     * @param c1 second color
+     * @param c2 third color
+     * @param c3 fourth color
+     * @return averaged color
+     */
+    public static int average(int c0, int c1, int c2, int c3) {
+        if (c0 == c1 && c0 == c2 && c0 == c3) {
+            return c0;
+        }
+        // each 16 bit lane sums four 8 bit channels, which can not overflow into the next lane
+        int rb = (c0 & 0xFF00FF) + (c1 & 0xFF00FF) + (c2 & 0xFF00FF) + (c3 & 0xFF00FF);
+        int ag = (c0 >>> 8 & 0xFF00FF) + (c1 >>> 8 & 0xFF00FF) + (c2 >>> 8 & 0xFF00FF) + (c3 >>> 8 & 0xFF00FF);
+        return (ag >>> 2 & 0xFF00FF) << 8 | (rb >>> 2 & 0xFF00FF);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.world;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Biome blended foliage, grass and water colors of a region.
+ * <p>
+ * Every color is the average over a square window of (2 * radius)² columns around the block. Instead of
+ * visiting the whole window for every block, the colors of a chunk are worked out together with running
+ * sums, first along the rows and then down the columns, so the radius barely changes the cost per block.
+ * Chunks are blended the first time one of their blocks is read, by one thread at a time.
+ */
+public class BiomeBlend {
+    private static final VarHandle BLENDED = MethodHandles.arrayElementVarHandle(boolean[].class);
+
+    private final Heightfield heightfield;
+    private final int radius;
+    private final int startX;
+    private final int startZ;
+
+    private final int[][] colors = new int[Tint.values().length][];
+    private final boolean[][] blended = new boolean[Tint.values().length][];
+
+    // scratch space for blending a single chunk
+    private final int width;
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+    private final int[] count;
+    private final int[] rowRed;
+    private final int[] rowGreen;
+    private final int[] rowBlue;
+    private final int[] rowCount;
+
+    /**
+     * Create a biome blend over a heightfield's region.
+     *
+     * @param heightfield heightfield to read biomes from, its halo must be at least as wide as the radius
+     * @param radius      blend radius in blocks
+     */
+    public BiomeBlend(@NotNull Heightfield heightfield, int radius) {
+        this.heightfield = heightfield;
+        this.radius = radius;
+        this.startX = heightfield.getRegion().getX() << 9;
+        this.startZ = heightfield.getRegion().getZ() << 9;
+
+        this.width = 16 + (radius << 1) - 1;
+        int area = this.width * this.width;
+        this.red = new int[area];
+        this.green = new int[area];
+        this.blue = new int[area];
+        this.count = new int[area];
+        this.rowRed = new int[this.width << 4];
+        this.rowGreen = new int[this.width << 4];
+        this.rowBlue = new int[this.width << 4];
+        this.rowCount = new int[this.width << 4];
+    }
+
+    /**
+     * Check if a block is inside the region this blend covers.
+     *
+     * @param blockX block x coordinate
+     * @param blockZ block z coordinate
+     * @return true if the block is inside the region
+     */
+    public boolean contains(int blockX, int blockZ) {
+        return blockX >> 9 == this.startX >> 9 && blockZ >> 9 == this.startZ >> 9;
+    }
+
+    /**
+     * Get the blended color of a block. The block has to be inside this blend's region.
+     *
+     * @param tint   color to blend
+     * @param blockX block x coordinate
+     * @param blockZ block z coordinate
+     * @return blended rgb color
+     */
+    public int getColor(@NotNull Tint tint, int blockX, int blockZ) {
+        int x = blockX - this.startX;
+        int z = blockZ - this.startZ;
+        int chunk = ((z >> 4) << 5) + (x >> 4);
+        boolean[] blended = this.blended[tint.ordinal()];
+        if (blended == null || !(boolean) BLENDED.getAcquire(blended, chunk)) {
+            blend(tint, chunk, x & ~15, z & ~15);
+        }
+        return this.colors[tint.ordinal()][(z << 9) + x];
+    }
+
+    private synchronized void blend(@NotNull Tint tint, int chunk, int chunkX, int chunkZ) {
+        int[] colors = this.colors[tint.ordinal()];
+        boolean[] blended = this.blended[tint.ordinal()];
+        if (colors == null) {
+            colors = this.colors[tint.ordinal()] = new int[512 << 9];
+            blended = this.blended[tint.ordinal()] = new boolean[32 << 5];
+        }
+        if (!blended[chunk]) {
+            blendChunk(tint, colors, chunkX, chunkZ);
+            BLENDED.setRelease(blended, chunk, true);
+        }
+    }
+
+    private void blendChunk(@NotNull Tint tint, int[] colors, int chunkX, int chunkZ) {
+        int width = this.width;
+        int window = this.radius << 1;
+
+        // colors of every column the chunk's windows reach
+        int minX = this.startX + chunkX - this.radius;
+        int minZ = this.startZ + chunkZ - this.radius;
+        for (int z = 0; z < width; z++) {
+            for (int x = 0; x < width; x++) {
+                int index = z * width + x;
+                Biome biome = this.heightfield.getBiome(minX + x, minZ + z);
+                int color = biome == null ? 0 : tint.getColor(biome, minX + x, minZ + z);
+                if (color > 0) {
+                    this.red[index] = color >> 16 & 0xFF;
+                    this.green[index] = color >> 8 & 0xFF;
+                    this.blue[index] = color & 0xFF;
+                    this.count[index] = 1;
+                } else {
+                    this.red[index] = this.green[index] = this.blue[index] = this.count[index] = 0;
+                }
+            }
+        }
+
+        // sum up the windows along each row
+        for (int z = 0; z < width; z++) {
+            int row = z * width;
+            int r = 0, g = 0, b = 0, n = 0;
+            for (int x = 0; x < window - 1; x++) {
+                r += this.red[row + x];
+                g += this.green[row + x];
+                b += this.blue[row + x];
+                n += this.count[row + x];
+            }
+            for (int x = 0; x < 16; x++) {
+                int in = row + x + window - 1;
+                r += this.red[in];
+                g += this.green[in];
+                b += this.blue[in];
+                n += this.count[in];
+                int index = (z << 4) + x;
+                this.rowRed[index] = r;
+                this.rowGreen[index] = g;
+                this.rowBlue[index] = b;
+                this.rowCount[index] = n;
+                int out = row + x;
+                r -= this.red[out];
+                g -= this.green[out];
+                b -= this.blue[out];
+                n -= this.count[out];
+            }
+        }
+
+        // then the row sums down each column
+        for (int x = 0; x < 16; x++) {
+            int r = 0, g = 0, b = 0, n = 0;
+            for (int z = 0; z < window - 1; z++) {
+                int index = (z << 4) + x;
+                r += this.rowRed[index];
+                g += this.rowGreen[index];
+                b += this.rowBlue[index];
+                n += this.rowCount[index];
+            }
+            for (int z = 0; z < 16; z++) {
+                int in = ((z + window - 1) << 4) + x;
+                r += this.rowRed[in];
+                g += this.rowGreen[in];
+                b += this.rowBlue[in];
+                n += this.rowCount[in];
+                colors[((chunkZ + z) << 9) + chunkX + x] = n == 0 ? 0 : (r / n) << 16 | (g / n) << 8 | (b / n);
+                int out = (z << 4) + x;
+                r -= this.rowRed[out];
+                g -= this.rowGreen[out];
+                b -= this.rowBlue[out];
+                n -= this.rowCount[out];
+            }
+        }
+    }
+
+    /**
+     * Biome colors that can be blended.
+     */
+    public enum Tint {
+        FOLIAGE {
+            @Override
+            public int getColor(@NotNull Biome biome, int blockX, int blockZ) {
+                return biome.foliage();
+            }
+        },
+        GRASS {
+            @Override
+            public int getColor(@NotNull Biome biome, int blockX, int blockZ) {
+                return biome.grass(blockX, blockZ);
+            }
+        },
+        WATER {
+            @Override
+            public int getColor(@NotNull Biome biome, int blockX, int blockZ) {
+                return biome.water();
+            }
+        };
+
+        public abstract int getColor(@NotNull Biome biome, int blockX, int blockZ);
+    }
+}
@@ -23,7 +23,9 @@
  */
 package net.pl3x.map.core.world;
 
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import net.pl3x.map.core.Keyed;
 import net.pl3x.map.core.configuration.ColorsConfig;
 import org.jetbrains.annotations.NotNull;
@@ -36,6 +38,9 @@ public final class Block extends Keyed {
     private final byte bools;
     private final BlockState defaultState;
 
+    // interned states with properties, see BlockState#of
+    final Map<@NotNull Integer, @NotNull BlockState> states = new ConcurrentHashMap<>();
+
     public Block(int index, @NotNull String id, int vanilla) {
         super(id);
         this.index = index;
@@ -59,7 +64,7 @@ public final class Block extends Keyed {
                 (water || "minecraft:lava".equals(id) ? 1 : 0)
         );
 
-        this.defaultState = new BlockState(this);
+        this.defaultState = new BlockState(this, (byte) -1, (byte) -1, (byte) -1);
     }
 
     public int getIndex() {
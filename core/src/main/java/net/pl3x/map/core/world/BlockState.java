@@ -23,43 +23,153 @@
  */
 package net.pl3x.map.core.world;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
+import net.querz.nbt.tag.CompoundTag;
+import net.querz.nbt.tag.StringTag;
+import net.querz.nbt.tag.Tag;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+/**
+ * A block with the properties that change how it is rendered.
+ * <p>
+ * Block states are interned, there is a single instance for every combination of block and properties.
+ * Every instance has a dense id, so chunks can store surface blocks as plain ints. Ids are kept by block
+ * key and properties, so blocks registered again after a reload reuse the ids they had before.
+ */
 public class BlockState {
+    private static final Object LOCK = new Object();
+    private static final Map<@NotNull String, @NotNull Integer> IDS = new HashMap<>(); // guarded by LOCK
+    private static volatile BlockState[] BY_ID = new BlockState[1024];
+    private static int nextId = 1; // 0 means no block state
+
+    private final int id;
     private final Block block;
     private final byte age;
     private final byte moisture;
     private final byte power;
 
+    /**
+     * Create a block state without properties.
+     *
+     * @param block block
+     * @deprecated block states are interned, use {@link Block#getDefaultState()}
+     */
+    @Deprecated
     public BlockState(@NotNull Block block) {
-        this.block = block;
-        this.age = this.moisture = this.power = -1;
+        this(block.getDefaultState());
     }
 
+    /**
+     * Create a block state from its properties.
+     *
+     * @param block      block
+     * @param properties block state properties
+     * @deprecated block states are interned, use {@link #of(Block, byte, byte, byte)}
+     */
+    @Deprecated
     public BlockState(@NotNull Block block, @NotNull Map<@NotNull String, @NotNull String> properties) {
+        this(of(block, property(properties.get("age")), property(properties.get("moisture")), property(properties.get("power"))));
+    }
+
+    // copy of an interned state, sharing its id
+    private BlockState(@NotNull BlockState state) {
+        this.id = state.id;
+        this.block = state.block;
+        this.age = state.age;
+        this.moisture = state.moisture;
+        this.power = state.power;
+    }
+
+    BlockState(@NotNull Block block, byte age, byte moisture, byte power) {
         this.block = block;
+        this.age = age;
+        this.moisture = moisture;
+        this.power = power;
 
-        byte age = -1;
-        try {
-            age = Integer.valueOf(properties.get("age")).byteValue();
-        } catch (NumberFormatException ignore) {
+        String key = block.getKey() + '[' + age + ',' + moisture + ',' + power + ']';
+        synchronized (LOCK) {
+            Integer id = IDS.get(key);
+            if (id == null) {
+                id = nextId++;
+                IDS.put(key, id);
+            }
+            this.id = id;
+            BlockState[] byId = BY_ID;
+            if (this.id >= byId.length) {
+                byId = Arrays.copyOf(byId, byId.length << 1);
+            }
+            byId[this.id] = this;
+            BY_ID = byId; // publish
         }
-        this.age = age;
+    }
 
-        byte moisture = -1;
-        try {
-            moisture = Integer.valueOf(properties.get("moisture")).byteValue();
-        } catch (NumberFormatException ignore) {
+    /**
+     * Get the block state for a block and its properties.
+     *
+     * @param block    block
+     * @param age      age property, or -1 if the block has none
+     * @param moisture moisture property, or -1 if the block has none
+     * @param power    power property, or -1 if the block has none
+     * @return interned block state
+     */
+    public static @NotNull BlockState of(@NotNull Block block, byte age, byte moisture, byte power) {
+        if (age == -1 && moisture == -1 && power == -1) {
+            return block.getDefaultState();
         }
-        this.moisture = moisture;
+        int key = ((age & 0xFF) << 16) | ((moisture & 0xFF) << 8) | (power & 0xFF);
+        BlockState state = block.states.get(key);
+        if (state == null) {
+            state = block.states.computeIfAbsent(key, k -> new BlockState(block, age, moisture, power));
+        }
+        return state;
+    }
 
-        byte power = -1;
-        try {
-            power = Integer.valueOf(properties.get("power")).byteValue();
-        } catch (NumberFormatException ignore) {
+    /**
+     * Get the block state for a palette entry of a chunk section.
+     * <p>
+     * Only the properties that change how a block is rendered are read, without copying the rest.
+     *
+     * @param block block of the palette entry
+     * @param properties properties of the palette entry, if any
+     * @return interned block state
+     */
+    public static @NotNull BlockState of(@NotNull Block block, @Nullable CompoundTag properties) {
+        if (properties == null) {
+            return block.getDefaultState();
         }
-        this.power = power;
+        return of(block, property(properties, "age"), property(properties, "moisture"), property(properties, "power"));
+    }
+
+    /**
+     * Get a block state by its id.
+     *
+     * @param id block state id
+     * @return block state
+     */
+    public static @NotNull BlockState byId(int id) {
+        return BY_ID[id];
+    }
+
+    private static byte property(@NotNull CompoundTag properties, @NotNull String name) {
+        Tag<?> tag = properties.get(name);
+        return tag instanceof StringTag stringTag ? property(stringTag.getValue()) : -1;
+    }
+
+    private static byte property(@Nullable String value) {
+        if (value != null) {
+            try {
+                return Integer.valueOf(value).byteValue();
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return -1;
+    }
+
+    public int getId() {
+        return this.id;
     }
 
     public @NotNull Block getBlock() {
@@ -23,11 +23,11 @@
  */
 package net.pl3x.map.core.world;
 
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Objects;
 import java.util.function.Supplier;
+import net.pl3x.map.core.util.ColorTable;
 import net.pl3x.map.core.util.Colors;
+import net.pl3x.map.core.util.NBTScanner;
 import net.querz.nbt.tag.ByteTag;
 import net.querz.nbt.tag.CompoundTag;
 import net.querz.nbt.tag.IntTag;
@@ -36,6 +36,47 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public abstract class Chunk {
+    /**
+     * Every tag read by any of the chunk formats. Anything else in the chunk nbt is skipped while decoding.
+     * Of the block state properties only the ones {@link BlockState} keeps are read.
+     */
+    public static final NBTScanner.Filter TAG_FILTER = NBTScanner.Filter.of(
+            "DataVersion",
+            "Status",
+            "xPos",
+            "yPos",
+            "zPos",
+            "InhabitedTime",
+            "Heightmaps.WORLD_SURFACE",
+            "sections.Y",
+            "sections.BlockLight",
+            "sections.BlockStates",
+            "sections.block_states.data",
+            "sections.block_states.palette.Name",
+            "sections.block_states.palette.Properties.age",
+            "sections.block_states.palette.Properties.moisture",
+            "sections.block_states.palette.Properties.power",
+            "sections.biomes",
+            // pre 1.18 chunks
+            "Level.Status",
+            "Level.xPos",
+            "Level.zPos",
+            "Level.InhabitedTime",
+            "Level.Heightmaps.WORLD_SURFACE",
+            "Level.Biomes",
+            "Level.Sections.Y",
+            "Level.Sections.BlockLight",
+            "Level.Sections.BlockStates",
+            "Level.Sections.Palette.Name",
+            "Level.Sections.Palette.Properties.age",
+            "Level.Sections.Palette.Properties.moisture",
+            "Level.Sections.Palette.Properties.power",
+            "Level.Sections.palette.Name",
+            "Level.Sections.palette.Properties.age",
+            "Level.Sections.palette.Properties.moisture",
+            "Level.Sections.palette.Properties.power"
+    );
+
     private final World world;
     private final Region region;
 
@@ -45,7 +86,13 @@ public abstract class Chunk {
 
     private final long inhabitedTime;
 
-    protected final BlockData[] data = new BlockData[256];
+    // surface of every block column, indexed by index(x, z)
+    protected final int[] blockY = new int[256];
+    protected final int[] fluidY = new int[256];
+    protected final int[] blockStates = new int[256]; // block state ids, 0 if the column has no data
+    protected final int[] fluidStates = new int[256]; // block state ids, 0 if there is no fluid
+    protected final Biome[] biomes = new Biome[256];
+    protected final int[] glass = new int[256];
 
     protected boolean populated;
 
@@ -117,6 +164,28 @@ public abstract class Chunk {
 
     public abstract @NotNull Biome getBiome(int x, int y, int z);
 
+    /**
+     * Check if the surface scan can skip over a whole section.
+     * <p>
+     * A section can be skipped if none of its blocks is a fluid or has a color, so the scan would pass every one of them.
+     *
+     * @param sectionY section y coordinate
+     * @return true if the section can be skipped
+     */
+    protected boolean isSectionSkippable(int sectionY) {
+        return false;
+    }
+
+    /**
+     * Check if a section is known to have no air at all.
+     *
+     * @param sectionY section y coordinate
+     * @return true if the section has no air
+     */
+    protected boolean isSectionSolid(int sectionY) {
+        return false;
+    }
+
     public @NotNull Chunk populate() {
         if (this.populated) {
             return this;
@@ -126,61 +195,77 @@ public abstract class Chunk {
         // block coordinates for most northwest block in chunk
         int startX = getX() << 4;
         int startZ = getZ() << 4;
+        int minY = getWorld().getMinBuildHeight();
 
         // iterate each block in this chunk
-        for (int blockZ = startX; blockZ < startX + 16; blockZ++) {
-            for (int blockX = startZ; blockX < startZ + 16; blockX++) {
-                BlockData data = new BlockData();
-                data.blockY = noHeightmap() ? getWorld().getMaxBuildHeight() : getWorldSurfaceY(blockX, blockZ) + 1;
+        for (int blockZ = startZ; blockZ < startZ + 16; blockZ++) {
+            for (int blockX = startX; blockX < startX + 16; blockX++) {
+                int blockY = noHeightmap() ? getWorld().getMaxBuildHeight() : getWorldSurfaceY(blockX, blockZ) + 1;
+                int fluidY = 0;
+                BlockState blockstate = null;
+                BlockState fluidstate = null;
+                int glass = 0;
 
                 // if world has ceiling iterate down until we find air
                 if (getWorld().hasCeiling()) {
-                    data.blockY = getWorld().getLogicalHeight();
+                    blockY = getWorld().getLogicalHeight();
                     do {
-                        data.blockY -= 1;
-                        data.blockstate = getBlockState(blockX, data.blockY, blockZ);
-                    } while (data.blockY > getWorld().getMinBuildHeight() && !data.blockstate.getBlock().isAir());
+                        blockY -= 1;
+                        // sections without any air can not end the ceiling
+                        while (blockY > minY && isSectionSolid(blockY >> 4)) {
+                            blockY = Math.max((blockY & ~0xF) - 1, minY);
+                        }
+                        blockstate = getBlockState(blockX, blockY, blockZ);
+                    } while (blockY > minY && !ColorTable.isAir(blockstate.getId()));
                 }
 
                 // iterate down until we find a renderable block
                 do {
-                    data.blockY -= 1;
-                    data.blockstate = getBlockState(blockX, data.blockY, blockZ);
-                    if (data.blockstate.getBlock().isFluid()) {
-                        if (data.fluidstate == null) {
+                    blockY -= 1;
+                    // sections with nothing to render or look through are skipped whole
+                    while (blockY > minY && isSectionSkippable(blockY >> 4)) {
+                        blockY = Math.max((blockY & ~0xF) - 1, minY);
+                    }
+                    blockstate = getBlockState(blockX, blockY, blockZ);
+                    if (ColorTable.isFluid(blockstate.getId())) {
+                        if (fluidstate == null) {
                             // get fluid information for the top fluid block
-                            data.fluidY = data.blockY;
-                            data.fluidstate = data.blockstate;
+                            fluidY = blockY;
+                            fluidstate = blockstate;
                             // do not get biome here! causes stackoverflow!
                             // instead, biome will be lazy loaded on first get
-                            //data.fluidBiome = getWorld().getBiome(blockX, data.fluidY, blockZ);
                         }
                         continue;
                     }
 
-                    if (getWorld().getConfig().RENDER_TRANSLUCENT_GLASS && data.blockstate.getBlock().isGlass()) {
-                        // translucent glass. store this color and keep iterating
-                        data.glass.addFirst(Colors.setAlpha(0x99, data.blockstate.getBlock().color()));
+                    if (getWorld().getConfig().RENDER_TRANSLUCENT_GLASS && ColorTable.isGlass(blockstate.getId())) {
+                        // translucent glass. composite it under the glass above and keep iterating
+                        int color = Colors.setAlpha(0x99, blockstate.getBlock().color());
+                        glass = glass == 0 ? color : Colors.over(glass, color);
                         continue;
                     }
 
                     // test if block is renderable. we ignore blocks with black color
-                    if (data.blockstate.getBlock().color() > 0) {
+                    if (blockstate.getBlock().color() > 0) {
                         break;
                     }
-                } while (data.blockY > getWorld().getMinBuildHeight());
+                } while (blockY > minY);
 
                 // determine the biome of final block
                 // do not get biome here! causes stackoverflow!
                 // instead, biome will be lazy loaded on first get
-                //data.blockBiome = getWorld().getBiome(blockX, data.blockY, blockZ);
 
-                if (data.blockstate.getBlock().isFlat()) {
-                    data.blockY--;
+                if (ColorTable.isFlat(blockstate.getId())) {
+                    blockY--;
                 }
 
                 // save data
-                this.data[((blockZ & 0xF) << 4) + (blockX & 0xF)] = data;
+                int index = index(blockX, blockZ);
+                this.blockY[index] = blockY;
+                this.fluidY[index] = fluidY;
+                this.blockStates[index] = blockstate.getId();
+                this.fluidStates[index] = fluidstate == null ? 0 : fluidstate.getId();
+                this.glass[index] = glass;
             }
         }
 
@@ -189,12 +274,116 @@ public abstract class Chunk {
         return this;
     }
 
-    public @NotNull BlockData[] getData() {
-        return this.data;
+    /**
+     * Get the index of a block column in this chunk's surface data.
+     *
+     * @param blockX block x coordinate
+     * @param blockZ block z coordinate
+     * @return column index
+     */
+    public static int index(int blockX, int blockZ) {
+        return ((blockZ & 0xF) << 4) + (blockX & 0xF);
+    }
+
+    /**
+     * Check if a block column has surface data.
+     *
+     * @param index column index
+     * @return true if the chunk was populated and has surface data for the column
+     */
+    public boolean hasData(int index) {
+        return this.blockStates[index] != 0;
+    }
+
+    /**
+     * Get the y coordinate of the top rendered block of a column.
+     *
+     * @param index column index
+     * @return block y coordinate
+     */
+    public int getBlockY(int index) {
+        return this.blockY[index];
     }
 
-    public @Nullable BlockData getData(int x, int z) {
-        return this.data[((z & 0xF) << 4) + (x & 0xF)];
+    /**
+     * Get the y coordinate of the top fluid block of a column.
+     *
+     * @param index column index
+     * @return fluid y coordinate, or 0 if there is no fluid above the top block
+     */
+    public int getFluidY(int index) {
+        return this.fluidY[index];
+    }
+
+    /**
+     * Get the top rendered block of a column.
+     *
+     * @param index column index
+     * @return block state
+     */
+    public @NotNull BlockState getBlockState(int index) {
+        return BlockState.byId(this.blockStates[index]);
+    }
+
+    /**
+     * Get the id of the top rendered block of a column.
+     *
+     * @param index column index
+     * @return block state id
+     * @see BlockState#byId(int)
+     */
+    public int getBlockStateId(int index) {
+        return this.blockStates[index];
+    }
+
+    /**
+     * Get the top fluid block of a column.
+     *
+     * @param index column index
+     * @return fluid block state, or null if there is no fluid above the top block
+     */
+    public @Nullable BlockState getFluidState(int index) {
+        int id = this.fluidStates[index];
+        return id == 0 ? null : BlockState.byId(id);
+    }
+
+    /**
+     * Get the id of the top fluid block of a column.
+     *
+     * @param index column index
+     * @return fluid block state id, or 0 if there is no fluid above the top block
+     * @see BlockState#byId(int)
+     */
+    public int getFluidStateId(int index) {
+        return this.fluidStates[index];
+    }
+
+    /**
+     * Get the biome of the top rendered block of a column, or of the top fluid block if there is fluid.
+     *
+     * @param index column index
+     * @return biome
+     */
+    public @NotNull Biome getBiome(int index) {
+        Biome biome = this.biomes[index];
+        if (biome == null) {
+            int y = this.fluidStates[index] == 0 ? this.blockY[index] : this.fluidY[index];
+            int blockX = (getX() << 4) + (index & 0xF);
+            int blockZ = (getZ() << 4) + (index >> 4);
+            // calculate real biome
+            biome = this.biomes[index] = getWorld().getBiomeManager().getBiome(getRegion(), blockX, y, blockZ);
+        }
+        return biome;
+    }
+
+    /**
+     * Get the translucent glass above the top rendered block of a column, composited into a single color.
+     *
+     * @param index column index
+     * @return argb color of the glass, or 0 if there is no glass
+     */
+    public int getGlassColor(int index) {
+        return this.glass[index];
     }
 
     public static @NotNull Chunk create(@NotNull World world, @NotNull Region region, @NotNull CompoundTag tag, int index) {
@@ -241,47 +430,4 @@ public abstract class Chunk {
                 + ",zPos=" + getZ()
                 + "}";
     }
-
-    public static class BlockData {
-        protected int blockY;
-        protected int fluidY = 0;
-        protected BlockState blockstate;
-        protected BlockState fluidstate = null;
-        protected Biome biome;
-
-        protected final LinkedList<Integer> glass = new LinkedList<>();
-
-        public int getBlockY() {
-            return this.blockY;
-        }
-
-        public int getFluidY() {
-            return this.fluidY;
-        }
-
-        public @NotNull BlockState getBlockState() {
-            return this.blockstate;
-        }
-
-        public @Nullable BlockState getFluidState() {
-            return this.fluidstate;
-        }
-
-        public @NotNull Biome getBiome(@NotNull Region region, int x, int z) {
-            if (this.biome == null) {
-                int y = this.blockY;
-                // use fluid block level if fluid
-                if (this.fluidstate != null) {
-                    y = this.fluidY;
-                }
-                // calculate real biome
-                this.biome = region.getWorld().getBiomeManager().getBiome(region, x, y, z);
-            }
-            return this.biome;
-        }
-
-        public @NotNull List<Integer> getGlassColors() {
-            return this.glass;
-        }
-    }
 }
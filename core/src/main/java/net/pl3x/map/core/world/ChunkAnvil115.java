@@ -25,15 +25,12 @@
 package net.pl3x.map.core.world;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import net.pl3x.map.core.Pl3xMap;
 import net.pl3x.map.core.util.MCAMath;
 import net.querz.nbt.tag.ByteArrayTag;
 import net.querz.nbt.tag.CompoundTag;
 import net.querz.nbt.tag.IntArrayTag;
 import net.querz.nbt.tag.ListTag;
-import net.querz.nbt.tag.StringTag;
 import net.querz.nbt.tag.Tag;
 import org.jetbrains.annotations.NotNull;
 
@@ -166,14 +163,7 @@ public class ChunkAnvil115 extends Chunk {
                     CompoundTag stateTag = paletteTag.get(i);
                     String id = stateTag.getString("Name");
                     Block block = Pl3xMap.api().getBlockRegistry().getOrDefault(id, Blocks.AIR);
-                    Map<String, String> properties = new HashMap<>();
-                    CompoundTag propertiesTag = stateTag.getCompoundTag("Properties");
-                    if (propertiesTag != null) {
-                        for (Map.Entry<String, Tag<?>> property : propertiesTag) {
-                            properties.put(property.getKey().toLowerCase(), ((StringTag) property.getValue()).getValue().toLowerCase());
-                        }
-                    }
-                    this.palette[i] = new BlockState(block, properties);
+                    this.palette[i] = BlockState.of(block, stateTag.getCompoundTag("Properties"));
                 }
             }
 
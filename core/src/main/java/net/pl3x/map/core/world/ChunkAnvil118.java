@@ -26,16 +26,13 @@ package net.pl3x.map.core.world;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import net.pl3x.map.core.Pl3xMap;
 import net.pl3x.map.core.util.MCAMath;
 import net.pl3x.map.core.util.PackedIntArrayAccess;
 import net.querz.nbt.tag.CompoundTag;
 import net.querz.nbt.tag.ListTag;
 import net.querz.nbt.tag.StringTag;
-import net.querz.nbt.tag.Tag;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -118,6 +115,18 @@ public class ChunkAnvil118 extends Chunk {
         return heightmap(getWorld().getMaxBuildHeight(), this.worldSurfaceHeights).get(((z & 0xF) << 4) + (x & 0xF));
     }
 
+    @Override
+    protected boolean isSectionSkippable(int sectionY) {
+        Section section = getSection(sectionY);
+        return section == null || section.skippable;
+    }
+
+    @Override
+    protected boolean isSectionSolid(int sectionY) {
+        Section section = getSection(sectionY);
+        return section != null && section.solid;
+    }
+
     private @Nullable Section getSection(int y) {
         y -= this.sectionMin;
         return y < 0 || y >= this.sections.length ? null : this.sections[y];
@@ -137,6 +146,13 @@ public class ChunkAnvil118 extends Chunk {
         private final int bitsPerBlock;
         private final int bitsPerBiome;
 
+        // facts about the whole palette, letting the surface scan skip the section
+        private final boolean skippable;
+        private final boolean solid;
+
+        // palette index of every block, unpacked on first read
+        private volatile short[] indices;
+
         public Section(@NotNull World world, @NotNull CompoundTag sectionData) {
             this.sectionY = sectionData.getByte("Y");
             this.blockLight = sectionData.getByteArray("BlockLight");
@@ -152,14 +168,7 @@ public class ChunkAnvil118 extends Chunk {
                         CompoundTag entry = paletteTag.get(i);
                         String id = entry.getString("Name");
                         Block block = Pl3xMap.api().getBlockRegistry().getOrDefault(id, Blocks.AIR);
-                        Map<String, String> properties = new HashMap<>();
-                        CompoundTag propertiesTag = entry.getCompoundTag("Properties");
-                        if (propertiesTag != null) {
-                            for (Map.Entry<String, Tag<?>> property : propertiesTag) {
-                                properties.put(property.getKey().toLowerCase(), ((StringTag) property.getValue()).getValue().toLowerCase());
-                            }
-                        }
-                        this.blockPalette[i] = new BlockState(block, properties);
+                        this.blockPalette[i] = BlockState.of(block, entry.getCompoundTag("Properties"));
                     }
                 }
             }
@@ -184,6 +193,27 @@ public class ChunkAnvil118 extends Chunk {
             }
             this.bitsPerBlock = this.blocks.length >> 6;
             this.bitsPerBiome = MCAMath.ceilLog2(this.biomePalette.length);
+
+            boolean single = this.blockPalette.length == 1;
+            if (!single && (this.blocks.length == 0 || this.blockPalette.length == 0)) {
+                // every block reads as air
+                this.skippable = true;
+                this.solid = false;
+            } else {
+                boolean skippable = true;
+                boolean solid = true;
+                for (BlockState state : this.blockPalette) {
+                    Block block = state.getBlock();
+                    if (block.isFluid() || block.color() > 0) {
+                        skippable = false;
+                    }
+                    if (block.isAir()) {
+                        solid = false;
+                    }
+                }
+                this.skippable = skippable;
+                this.solid = solid;
+            }
         }
 
         public @NotNull BlockState getBlockState(int x, int y, int z) {
@@ -193,12 +223,34 @@ public class ChunkAnvil118 extends Chunk {
             if (this.blocks.length == 0) {
                 return Blocks.AIR.getDefaultState();
             }
-            int blockIndex = ((y & 0xF) << 8) + ((z & 0xF) << 4) + (x & 0xF);
-            long value = MCAMath.getValueFromLongArray(this.blocks, blockIndex, this.bitsPerBlock);
+            short[] indices = this.indices;
+            if (indices == null) {
+                indices = this.indices = unpack(this.blocks, this.bitsPerBlock);
+            }
+            int value = indices[((y & 0xF) << 8) + ((z & 0xF) << 4) + (x & 0xF)] & 0xFFFF;
             if (value >= this.blockPalette.length) {
                 return Blocks.AIR.getDefaultState();
             }
-            return this.blockPalette[(int) value];
+            return this.blockPalette[value];
+        }
+
+        private static short @NotNull [] unpack(long @NotNull [] data, int bitsPerValue) {
+            // values do not span across longs, so each long is shifted through once
+            short[] indices = new short[4096];
+            if (bitsPerValue <= 0 || bitsPerValue > 16) {
+                return indices;
+            }
+            int valuesPerLong = 64 / bitsPerValue;
+            long mask = (1L << bitsPerValue) - 1;
+            int index = 0;
+            for (int i = 0; i < data.length && index < indices.length; i++) {
+                long value = data[i];
+                for (int j = 0; j < valuesPerLong && index < indices.length; j++) {
+                    indices[index++] = (short) (value & mask);
+                    value >>>= bitsPerValue;
+                }
+            }
+            return indices;
         }
 
         public int getLight(int x, int y, int z) {
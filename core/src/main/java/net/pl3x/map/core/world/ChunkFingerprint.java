@@ -0,0 +1,83 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.world;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 64-bit fingerprint of everything a chunk contributes to the rendered map.
+ * <p>
+ * Chunks are re-saved for entity movement, ticking and lighting all the time
+ * without their surface changing. Comparing fingerprints lets those chunks be
+ * skipped even though their timestamps changed.
+ */
+public class ChunkFingerprint {
+    private long hash = 0x9E3779B97F4A7C15L;
+
+    public ChunkFingerprint() {
+    }
+
+    /**
+     * Create a fingerprint of a chunk's populated surface data.
+     *
+     * @param chunk populated chunk
+     */
+    public ChunkFingerprint(@NotNull Chunk chunk) {
+        for (int i = 0; i < 256; i++) {
+            if (!chunk.hasData(i)) {
+                put(-1);
+                continue;
+            }
+            put(chunk.getBlockY(i));
+            put(chunk.getBlockState(i));
+            BlockState fluid = chunk.getFluidState(i);
+            if (fluid != null) {
+                put(chunk.getFluidY(i));
+                put(fluid);
+            }
+            int glass = chunk.getGlassColor(i);
+            if (glass != 0) {
+                put(glass);
+            }
+            put(chunk.getBiome(i).index());
+        }
+    }
+
+    public @NotNull ChunkFingerprint put(long value) {
+        long h = (this.hash ^ value) * 0xBF58476D1CE4E5B9L;
+        this.hash = Long.rotateLeft(h, 31) * 0x94D049BB133111EBL;
+        return this;
+    }
+
+    public @NotNull ChunkFingerprint put(@NotNull BlockState state) {
+        return put(((long) state.getBlock().getIndex() << 24)
+                | ((state.getAge() & 0xFF) << 16)
+                | ((state.getMoisture() & 0xFF) << 8)
+                | (state.getPower() & 0xFF));
+    }
+
+    public long getValue() {
+        return this.hash;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.world;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Surface heights and biomes of a region, plus a ring of blocks around it from the neighboring regions.
+ * <p>
+ * Heightmaps and biome blending look at the blocks around every pixel, which used to be a chunk
+ * lookup each. The field keeps those values in flat arrays, filled one chunk at a time the
+ * first time a chunk is read, so the lookups are plain array reads. Blocks outside the
+ * field are read from their chunks like before.
+ * <p>
+ * Parts of a region can be scanned on different threads at the same time, so a chunk is filled
+ * by one thread while the others wait for it.
+ */
+public class Heightfield {
+    /**
+     * Height of a column without any surface data.
+     */
+    public static final int NO_DATA = Integer.MIN_VALUE;
+
+    private static final VarHandle FILLED = MethodHandles.arrayElementVarHandle(boolean[].class);
+
+    private final Region region;
+    private final int halo;
+    private final int size;
+    private final int minX;
+    private final int minZ;
+    private final int minChunkX;
+    private final int minChunkZ;
+    private final int chunksWide;
+
+    private final int[] heights;
+    private final Biome[] biomes;
+    private final boolean[] filledHeights;
+    private final boolean[] filledBiomes;
+
+    private final BiomeBlend biomeBlend;
+
+    /**
+     * Create a field without any stored values, reading every block from its chunk.
+     *
+     * @param region region to read from
+     */
+    public Heightfield(@NotNull Region region) {
+        this(region, -1);
+    }
+
+    /**
+     * Create a field over a region and a ring of blocks around it.
+     *
+     * @param region region to read from
+     * @param halo   width of the ring around the region in blocks
+     */
+    public Heightfield(@NotNull Region region, int halo) {
+        this.region = region;
+        this.halo = halo;
+        this.size = halo < 0 ? 0 : 512 + (halo << 1);
+        this.minX = (region.getX() << 9) - halo;
+        this.minZ = (region.getZ() << 9) - halo;
+        this.minChunkX = this.minX >> 4;
+        this.minChunkZ = this.minZ >> 4;
+        this.chunksWide = this.size == 0 ? 0 : ((this.minX + this.size - 1) >> 4) - this.minChunkX + 1;
+
+        this.heights = new int[this.size * this.size];
+        this.biomes = new Biome[this.size * this.size];
+        this.filledHeights = new boolean[this.chunksWide * this.chunksWide];
+        this.filledBiomes = new boolean[this.chunksWide * this.chunksWide];
+
+        int radius = region.getWorld().getConfig().RENDER_BIOME_BLEND;
+        this.biomeBlend = radius > 0 && radius <= halo ? new BiomeBlend(this, radius) : null;
+    }
+
+    public @NotNull Region getRegion() {
+        return this.region;
+    }
+
+    /**
+     * Get the width of the ring of blocks around the region this field holds.
+     *
+     * @return halo width in blocks, or -1 if this field does not hold any values
+     */
+    public int getHalo() {
+        return this.halo;
+    }
+
+    /**
+     * Get the blended biome colors of the region.
+     *
+     * @return biome blend, or null if biomes are not blended or the halo is too narrow to blend from this field
+     */
+    public @Nullable BiomeBlend getBiomeBlend() {
+        return this.biomeBlend;
+    }
+
+    /**
+     * Get the y coordinate of the top rendered block of a column.
+     *
+     * @param blockX block x coordinate
+     * @param blockZ block z coordinate
+     * @return block y coordinate, or {@link #NO_DATA} if the column has no surface data
+     */
+    public int getHeight(int blockX, int blockZ) {
+        int x = blockX - this.minX;
+        int z = blockZ - this.minZ;
+        if (x < 0 || z < 0 || x >= this.size || z >= this.size) {
+            Chunk chunk = getChunk(blockX >> 4, blockZ >> 4);
+            int index = Chunk.index(blockX, blockZ);
+            return chunk.hasData(index) ? chunk.getBlockY(index) : NO_DATA;
+        }
+        int chunk = getChunkIndex(blockX, blockZ);
+        if (!(boolean) FILLED.getAcquire(this.filledHeights, chunk)) {
+            fillHeights(chunk, blockX >> 4, blockZ >> 4);
+        }
+        return this.heights[z * this.size + x];
+    }
+
+    /**
+     * Get the biome of the top rendered block of a column.
+     *
+     * @param blockX block x coordinate
+     * @param blockZ block z coordinate
+     * @return biome, or null if the column has no surface data
+     */
+    public @Nullable Biome getBiome(int blockX, int blockZ) {
+        int x = blockX - this.minX;
+        int z = blockZ - this.minZ;
+        if (x < 0 || z < 0 || x >= this.size || z >= this.size) {
+            Chunk chunk = getChunk(blockX >> 4, blockZ >> 4);
+            int index = Chunk.index(blockX, blockZ);
+            return chunk.hasData(index) ? chunk.getBiome(index) : null;
+        }
+        int chunk = getChunkIndex(blockX, blockZ);
+        if (!(boolean) FILLED.getAcquire(this.filledBiomes, chunk)) {
+            fillBiomes(chunk, blockX >> 4, blockZ >> 4);
+        }
+        return this.biomes[z * this.size + x];
+    }
+
+    private int getChunkIndex(int blockX, int blockZ) {
+        return ((blockZ >> 4) - this.minChunkZ) * this.chunksWide + (blockX >> 4) - this.minChunkX;
+    }
+
+    private @NotNull Chunk getChunk(int chunkX, int chunkZ) {
+        return this.region.getWorld().getChunk(this.region, chunkX, chunkZ);
+    }
+
+    private synchronized void fillHeights(int index, int chunkX, int chunkZ) {
+        if (this.filledHeights[index]) {
+            return;
+        }
+        Chunk chunk = getChunk(chunkX, chunkZ);
+        int startX = Math.max(chunkX << 4, this.minX);
+        int startZ = Math.max(chunkZ << 4, this.minZ);
+        int endX = Math.min((chunkX << 4) + 16, this.minX + this.size);
+        int endZ = Math.min((chunkZ << 4) + 16, this.minZ + this.size);
+        for (int blockZ = startZ; blockZ < endZ; blockZ++) {
+            int row = (blockZ - this.minZ) * this.size - this.minX;
+            for (int blockX = startX; blockX < endX; blockX++) {
+                int column = Chunk.index(blockX, blockZ);
+                this.heights[row + blockX] = chunk.hasData(column) ? chunk.getBlockY(column) : NO_DATA;
+            }
+        }
+        FILLED.setRelease(this.filledHeights, index, true);
+    }
+
+    private synchronized void fillBiomes(int index, int chunkX, int chunkZ) {
+        if (this.filledBiomes[index]) {
+            return;
+        }
+        Chunk chunk = getChunk(chunkX, chunkZ);
+        int startX = Math.max(chunkX << 4, this.minX);
+        int startZ = Math.max(chunkZ << 4, this.minZ);
+        int endX = Math.min((chunkX << 4) + 16, this.minX + this.size);
+        int endZ = Math.min((chunkZ << 4) + 16, this.minZ + this.size);
+        for (int blockZ = startZ; blockZ < endZ; blockZ++) {
+            int row = (blockZ - this.minZ) * this.size - this.minX;
+            for (int blockX = startX; blockX < endX; blockX++) {
+                int column = Chunk.index(blockX, blockZ);
+                this.biomes[row + blockX] = chunk.hasData(column) ? chunk.getBiome(column) : null;
+            }
+        }
+        FILLED.setRelease(this.filledBiomes, index, true);
+    }
+}
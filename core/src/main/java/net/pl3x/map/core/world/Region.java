@@ -23,26 +23,27 @@
  */
 package net.pl3x.map.core.world;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Objects;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntPredicate;
 import net.pl3x.map.core.Pl3xMap;
-import net.querz.mca.CompressionType;
-import net.querz.nbt.io.NBTInputStream;
-import net.querz.nbt.io.NamedTag;
+import net.pl3x.map.core.util.NBTScanner;
 import net.querz.nbt.tag.CompoundTag;
-import net.querz.nbt.tag.Tag;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public class Region {
+    private static final ThreadLocal<NBTScanner> SCANNER = ThreadLocal.withInitial(NBTScanner::new);
+
+    // smallest run of chunk slots worth handing to another thread, one row of chunks
+    private static final int MIN_SPLIT = 32;
+
     private final World world;
     private final int regionX;
     private final int regionZ;
@@ -50,6 +51,9 @@ public class Region {
 
     private final Chunk[] chunks = new Chunk[32 << 5];
 
+    private volatile RegionReader reader;
+    private Heightfield heightfield;
+
     private final int hash;
 
     public Region(@NotNull World world, int regionX, int regionZ, @NotNull Path regionFile) {
@@ -77,6 +81,22 @@ public class Region {
         return this.regionFile;
     }
 
+    /**
+     * Get a field reading every block of this region straight from its chunk.
+     * <p>
+     * The field does not hold any values, so one is shared by every caller that does not have a region scan's field at hand.
+     *
+     * @return field over this region
+     */
+    public @NotNull Heightfield getHeightfield() {
+        Heightfield heightfield = this.heightfield;
+        if (heightfield == null) {
+            // all fields are final, so another thread creating its own at the same time is harmless
+            heightfield = this.heightfield = new Heightfield(this);
+        }
+        return heightfield;
+    }
+
     private int getChunkIndex(int chunkX, int chunkZ) {
         return (chunkX & 0x1F) + ((chunkZ & 0x1F) << 5);
     }
@@ -85,9 +105,11 @@ public class Region {
         int index = getChunkIndex(chunkX, chunkZ);
         Chunk chunk = this.chunks[index];
         if (chunk == null) {
-            try (RandomAccessFile raf = new RandomAccessFile(getRegionFile(), "r")) {
-                chunk = loadChunk(raf, index);
-            } catch (EOFException | FileNotFoundException ignore) {
+            try {
+                RegionReader reader = getReader();
+                if (reader != null) {
+                    chunk = loadChunk(reader, index);
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -98,41 +120,141 @@ public class Region {
         return chunk;
     }
 
-    public void loadChunks() throws IOException {
+    /**
+     * Get the reader for this region's file, opening it on first use.
+     *
+     * @return region reader, or null if the region file does not exist
+     * @throws IOException if the region file could not be read
+     */
+    public @Nullable RegionReader getReader() throws IOException {
+        RegionReader reader = this.reader;
+        if (reader == null) {
+            synchronized (this) {
+                reader = this.reader;
+                if (reader == null) {
+                    reader = this.reader = openReader();
+                }
+            }
+        }
+        return reader;
+    }
+
+    private @Nullable RegionReader openReader() throws IOException {
         if (!getRegionFile().exists() || getRegionFile().length() <= 0) {
+            return null;
+        }
+        return new RegionReader(getRegionFile().toPath(), getX(), getZ());
+    }
+
+    /**
+     * Open a fresh view of this region's file, replacing the current reader.
+     *
+     * @return region reader, or null if the region file does not exist
+     * @throws IOException if the region file could not be read
+     */
+    public @Nullable RegionReader refreshReader() throws IOException {
+        RegionReader previous = this.reader;
+        RegionReader reader = this.reader = openReader();
+        if (previous != null) {
+            previous.close();
+        }
+        return reader;
+    }
+
+    /**
+     * Let go of the region file's handle until a chunk has to be read from it again.
+     */
+    public void releaseReader() {
+        RegionReader reader = this.reader;
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
+    public void loadChunks() throws IOException {
+        // always open a fresh view, the file has most likely changed since it was last read
+        loadChunks(refreshReader(), null);
+    }
+
+    /**
+     * Load chunks from the given reader.
+     * <p>
+     * When called from a fork join pool that has idle threads and nothing else queued, the chunk slots are split
+     * up between those threads. Otherwise the chunks are loaded one after the other on the calling thread.
+     *
+     * @param reader region reader to load from
+     * @param filter chunk indexes to load, or null to load every chunk
+     * @throws IOException if the region file could not be read
+     */
+    public void loadChunks(@Nullable RegionReader reader, @Nullable IntPredicate filter) throws IOException {
+        if (reader == null) {
             return;
         }
-        try (RandomAccessFile raf = new RandomAccessFile(getRegionFile(), "r")) {
-            for (int index = 0; index < this.chunks.length; index++) {
-                Pl3xMap.api().getRegionProcessor().checkPaused();
-                loadChunk(raf, index);
+        if (!Pl3xMap.ThreadFactory.hasSpareThreads()) {
+            loadChunks(reader, filter, 0, this.chunks.length);
+            return;
+        }
+        try {
+            new LoadChunks(reader, filter, 0, this.chunks.length).invoke();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void loadChunks(@NotNull RegionReader reader, @Nullable IntPredicate filter, int from, int to) throws IOException {
+        for (int index = from; index < to; index++) {
+            if (filter != null && !filter.test(index)) {
+                continue;
+            }
+            Pl3xMap.api().getRegionProcessor().checkPaused();
+            try {
+                loadChunk(reader, index);
+            } catch (EOFException ignore) {
+                // chunk is still being written to disk, treat as empty
+                this.chunks[index] = new EmptyChunk(getWorld(), this);
             }
-        } catch (EOFException ignore) {
         }
     }
 
-    public @NotNull Chunk loadChunk(@NotNull RandomAccessFile raf, int index) throws IOException {
-        raf.seek(index * 4L);
-        int offset = raf.read() << 16;
-        offset |= (raf.read() & 0xFF) << 8;
-        offset |= raf.read() & 0xFF;
-        if (raf.readByte() == 0) {
+    public @NotNull Chunk loadChunk(@NotNull RegionReader reader, int index) throws IOException {
+        InputStream in = reader.openChunk(index);
+        if (in == null) {
             return this.chunks[index] = new EmptyChunk(getWorld(), this);
         }
-        raf.seek(4096L * offset + 4); // +4 skip chunk size
+        CompoundTag tag;
+        try (in) {
+            tag = SCANNER.get().read(in, Chunk.TAG_FILTER);
+        }
+        return this.chunks[index] = Chunk.create(getWorld(), this, tag, index).populate();
+    }
 
-        byte compressionTypeByte = raf.readByte();
-        CompressionType compressionType = CompressionType.getFromID(compressionTypeByte);
-        if (compressionType == null) {
-            throw new IOException("Invalid compression type " + compressionTypeByte);
+    private final class LoadChunks extends RecursiveAction {
+        private final RegionReader reader;
+        private final IntPredicate filter;
+        private final int from;
+        private final int to;
+
+        private LoadChunks(@NotNull RegionReader reader, @Nullable IntPredicate filter, int from, int to) {
+            this.reader = reader;
+            this.filter = filter;
+            this.from = from;
+            this.to = to;
         }
 
-        DataInputStream dis = new DataInputStream(new BufferedInputStream(compressionType.decompress(new FileInputStream(raf.getFD()))));
-        NamedTag tag = new NBTInputStream(dis).readTag(Tag.DEFAULT_MAX_DEPTH);
-        if (tag != null && tag.getTag() instanceof CompoundTag compoundTag) {
-            return this.chunks[index] = Chunk.create(getWorld(), this, compoundTag, index).populate();
-        } else {
-            throw new IOException("Invalid data tag: " + (tag == null ? "null" : tag.getName()));
+        @Override
+        protected void compute() {
+            // only keep splitting while other threads are actually taking the work
+            if (this.to - this.from > MIN_SPLIT && getSurplusQueuedTaskCount() < 2) {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new LoadChunks(this.reader, this.filter, this.from, middle),
+                        new LoadChunks(this.reader, this.filter, middle, this.to));
+                return;
+            }
+            try {
+                loadChunks(this.reader, this.filter, this.from, this.to);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
     }
 
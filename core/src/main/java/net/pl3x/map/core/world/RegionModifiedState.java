@@ -29,18 +29,27 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import net.pl3x.map.core.util.FileUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class RegionModifiedState {
     private final Map<@NotNull Long, @NotNull Long> regionModifiedStates = new ConcurrentHashMap<>(); // <pos, modified>
     private final File file;
+    private final Path chunksDir;
 
     public RegionModifiedState(@NotNull World world) {
         this.file = world.getTilesDirectory().resolve(".rms").toFile();
+        this.chunksDir = world.getTilesDirectory().resolve(".chunks");
 
         if (this.file.exists()) {
             try (DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(this.file)))) {
@@ -51,6 +60,14 @@ public class RegionModifiedState {
             } catch (Throwable ignore) {
             }
         }
+
+        // chunk states used to be kept in memory for every region and saved in one go,
+        // they are stored per region now. regions without one just get a full render
+        try {
+            Files.deleteIfExists(world.getTilesDirectory().resolve(".rcs"));
+            Files.deleteIfExists(world.getTilesDirectory().resolve(".rfp"));
+        } catch (IOException ignore) {
+        }
     }
 
     public void set(long regionPos, long modified) {
@@ -62,6 +79,91 @@ public class RegionModifiedState {
         return modified == null ? -1 : modified;
     }
 
+    /**
+     * Set the chunk state the region was last rendered with.
+     * <p>
+     * The state is written to the region's own file straight away, it is not kept in memory.
+     *
+     * @param regionX region x coordinate
+     * @param regionZ region z coordinate
+     * @param state   chunk state
+     */
+    public void setChunkState(int regionX, int regionZ, @NotNull ChunkState state) {
+        Path file = getChunkStateFile(regionX, regionZ);
+        Path tmp = FileUtil.tmp(file);
+        try {
+            try (
+                    OutputStream fileOut = Files.newOutputStream(FileUtil.mkDirs(tmp));
+                    DataOutputStream out = new DataOutputStream(new GZIPOutputStream(fileOut))
+            ) {
+                int[] timestamps = state.timestamps();
+                out.writeBoolean(timestamps != null);
+                if (timestamps != null) {
+                    for (int timestamp : timestamps) {
+                        out.writeInt(timestamp);
+                    }
+                }
+                Fingerprints fingerprints = state.fingerprints();
+                out.writeBoolean(fingerprints != null);
+                if (fingerprints != null) {
+                    out.writeLong(fingerprints.renderHash());
+                    for (long fingerprint : fingerprints.chunks()) {
+                        out.writeLong(fingerprint);
+                    }
+                }
+                out.flush();
+            }
+            FileUtil.atomicMove(tmp, file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get the chunk state the region was last rendered with.
+     * <p>
+     * The state is read from the region's own file on every call.
+     *
+     * @param regionX region x coordinate
+     * @param regionZ region z coordinate
+     * @return chunk state, or null if the region was never rendered
+     */
+    public @Nullable ChunkState getChunkState(int regionX, int regionZ) {
+        Path file = getChunkStateFile(regionX, regionZ);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (
+                InputStream fileIn = Files.newInputStream(file);
+                DataInputStream in = new DataInputStream(new GZIPInputStream(fileIn))
+        ) {
+            int[] timestamps = null;
+            if (in.readBoolean()) {
+                timestamps = new int[1024];
+                for (int i = 0; i < timestamps.length; i++) {
+                    timestamps[i] = in.readInt();
+                }
+            }
+            Fingerprints fingerprints = null;
+            if (in.readBoolean()) {
+                long renderHash = in.readLong();
+                long[] chunks = new long[1024];
+                for (int i = 0; i < chunks.length; i++) {
+                    chunks[i] = in.readLong();
+                }
+                fingerprints = new Fingerprints(renderHash, chunks);
+            }
+            return new ChunkState(timestamps, fingerprints);
+        } catch (IOException ignore) {
+            // truncated or corrupt, render the whole region again
+            return null;
+        }
+    }
+
+    private @NotNull Path getChunkStateFile(int regionX, int regionZ) {
+        return this.chunksDir.resolve(regionX + "_" + regionZ + ".gz");
+    }
+
     public void save() {
         try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(this.file)))) {
             out.writeInt(this.regionModifiedStates.size());
@@ -73,4 +175,22 @@ public class RegionModifiedState {
         } catch (Throwable ignore) {
         }
     }
+
+    /**
+     * State of every chunk in a region at the time it was last rendered.
+     *
+     * @param timestamps   chunk timestamps in epoch seconds as read from the region file header, indexed by chunk index
+     * @param fingerprints chunk fingerprints
+     */
+    public record ChunkState(int @Nullable [] timestamps, @Nullable Fingerprints fingerprints) {
+    }
+
+    /**
+     * Fingerprints of every chunk in a region, and of the render settings they were rendered with.
+     *
+     * @param renderHash fingerprint of the render settings
+     * @param chunks     chunk fingerprints, indexed by chunk index
+     */
+    public record Fingerprints(long renderHash, long[] chunks) {
+    }
 }
@@ -0,0 +1,258 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.world;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import net.pl3x.map.core.util.ByteBufferInputStream;
+import net.querz.mca.CompressionType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Read-only view of an Anvil region file.
+ * <p>
+ * The 8 KiB location and timestamp header is parsed up front, and every
+ * chunk is read with a single positional read into the heap. The file is
+ * never memory mapped, so the server can keep writing and truncating it,
+ * and the file handle is let go of with {@link #close()} as soon as the
+ * region is not scanned anymore. Reading a chunk after that opens it again.
+ */
+public class RegionReader implements Closeable {
+    public static final int SECTOR_SIZE = 4096;
+    public static final int HEADER_SIZE = SECTOR_SIZE * 2;
+
+    // inflaters hold native buffers, reuse one per thread instead of creating one per chunk
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private final Path path;
+    private final int regionX;
+    private final int regionZ;
+
+    private final int[] locations = new int[1024];
+    private final int[] timestamps = new int[1024];
+
+    private FileChannel channel;
+
+    public RegionReader(@NotNull Path path, int regionX, int regionZ) throws IOException {
+        this.path = path;
+        this.regionX = regionX;
+        this.regionZ = regionZ;
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        if (read(getChannel(), buffer, 0) == HEADER_SIZE) {
+            IntBuffer header = buffer.flip().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+            header.get(this.locations);
+            header.get(this.timestamps);
+        }
+    }
+
+    private synchronized @NotNull FileChannel getChannel() throws IOException {
+        if (this.channel == null) {
+            this.channel = FileChannel.open(this.path, StandardOpenOption.READ);
+        }
+        return this.channel;
+    }
+
+    private static int read(@NotNull FileChannel channel, @NotNull ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Let go of the file handle. Reading a chunk afterwards opens the file again.
+     */
+    @Override
+    public synchronized void close() {
+        if (this.channel == null) {
+            return;
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.channel = null;
+    }
+
+    /**
+     * Read only the timestamp table of a region file, without mapping the whole file.
+     *
+     * @param path region file
+     * @return timestamps in epoch seconds, indexed by chunk index
+     * @throws IOException if the region file could not be read
+     */
+    public static int @NotNull [] readTimestamps(@NotNull Path path) throws IOException {
+        int[] timestamps = new int[1024];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(SECTOR_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, SECTOR_SIZE + header.position()) <= 0) {
+                    break;
+                }
+            }
+            if (!header.hasRemaining()) {
+                header.flip().asIntBuffer().get(timestamps);
+            }
+        }
+        return timestamps;
+    }
+
+    public @NotNull Path getPath() {
+        return this.path;
+    }
+
+    /**
+     * Check if the header has a location entry for the chunk at the given index.
+     *
+     * @param index chunk index inside this region
+     * @return true if the chunk is stored in this region file
+     */
+    public boolean hasChunk(int index) {
+        return (this.locations[index] & 0xFF) != 0;
+    }
+
+    /**
+     * Get the last time the chunk at the given index was saved, in epoch seconds.
+     *
+     * @param index chunk index inside this region
+     * @return last saved time, or 0 if the chunk has never been saved
+     */
+    public int getTimestamp(int index) {
+        return this.timestamps[index];
+    }
+
+    /**
+     * Get a copy of the whole timestamp table.
+     *
+     * @return timestamps in epoch seconds, indexed by chunk index
+     */
+    public int @NotNull [] getTimestamps() {
+        return this.timestamps.clone();
+    }
+
+    /**
+     * Read the chunk's compressed payload, starting at the compression type byte.
+     *
+     * @param index chunk index inside this region
+     * @return chunk payload, or null if the chunk does not exist or is truncated
+     * @throws IOException if the region file could not be read
+     */
+    public @Nullable ByteBuffer getChunkData(int index) throws IOException {
+        if (!hasChunk(index)) {
+            return null;
+        }
+        long start = (long) (this.locations[index] >>> 8) * SECTOR_SIZE;
+        int sectors = this.locations[index] & 0xFF;
+        if (start < HEADER_SIZE) {
+            return null;
+        }
+        // the whole allocation is read at once, the length inside it says how much of it is the chunk
+        ByteBuffer buffer = ByteBuffer.allocate(sectors * SECTOR_SIZE);
+        int read;
+        try {
+            read = read(getChannel(), buffer, start);
+        } catch (ClosedChannelException e) {
+            // closed by another thread that was done with the region, open it again
+            buffer.clear();
+            read = read(getChannel(), buffer, start);
+        }
+        if (read < 5) {
+            return null;
+        }
+        int length = buffer.getInt(0);
+        if (length <= 0 || 4 + length > read) {
+            return null;
+        }
+        return buffer.slice(4, length);
+    }
+
+    /**
+     * Open a decompressed stream of the chunk's NBT data.
+     * <p>
+     * The returned stream is not buffered and must be closed before
+     * another chunk is opened on the same thread.
+     *
+     * @param index chunk index inside this region
+     * @return decompressed chunk data, or null if the chunk does not exist
+     * @throws IOException if the chunk data is invalid
+     */
+    public @Nullable InputStream openChunk(int index) throws IOException {
+        ByteBuffer data = getChunkData(index);
+        if (data == null) {
+            return null;
+        }
+        byte compressionTypeByte = data.get();
+        InputStream in;
+        if ((compressionTypeByte & 0x80) != 0) {
+            // oversized chunks are stored in a separate file next to the region
+            Path external = this.path.resolveSibling("c." + ((this.regionX << 5) + (index & 31)) + "." + ((this.regionZ << 5) + (index >> 5)) + ".mcc");
+            if (!Files.exists(external)) {
+                return null;
+            }
+            compressionTypeByte &= 0x7F;
+            in = Files.newInputStream(external);
+        } else {
+            in = new ByteBufferInputStream(data);
+        }
+        if (compressionTypeByte == 2) {
+            Inflater inflater = INFLATER.get();
+            inflater.reset();
+            return new InflaterInputStream(in, inflater, 4096);
+        }
+        CompressionType compressionType = CompressionType.getFromID(compressionTypeByte);
+        if (compressionType == null) {
+            in.close();
+            throw new IOException("Invalid compression type " + compressionTypeByte);
+        }
+        return compressionType.decompress(in);
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return "RegionReader{"
+                + "path=" + getPath()
+                + ",x=" + this.regionX
+                + ",z=" + this.regionZ
+                + "}";
+    }
+}
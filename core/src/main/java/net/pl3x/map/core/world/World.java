@@ -25,11 +25,13 @@ package net.pl3x.map.core.world;
 
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -46,6 +48,10 @@ import net.pl3x.map.core.configuration.SpawnLayerConfig;
 import net.pl3x.map.core.configuration.WorldBorderLayerConfig;
 import net.pl3x.map.core.configuration.WorldConfig;
 import net.pl3x.map.core.image.IconImage;
+import net.pl3x.map.core.image.TileCanvas;
+import net.pl3x.map.core.image.TileOptimizer;
+import net.pl3x.map.core.image.TilePyramid;
+import net.pl3x.map.core.image.io.TileFormat;
 import net.pl3x.map.core.log.Logger;
 import net.pl3x.map.core.markers.Point;
 import net.pl3x.map.core.markers.area.Area;
@@ -58,7 +64,9 @@ import net.pl3x.map.core.player.Player;
 import net.pl3x.map.core.registry.BiomeRegistry;
 import net.pl3x.map.core.registry.Registry;
 import net.pl3x.map.core.renderer.Renderer;
+import net.pl3x.map.core.renderer.task.OptimizeTileImages;
 import net.pl3x.map.core.renderer.task.UpdateMarkerData;
+import net.pl3x.map.core.renderer.task.UpdateTileImages;
 import net.pl3x.map.core.util.FileUtil;
 import net.pl3x.map.core.util.Mathf;
 import org.jetbrains.annotations.NotNull;
@@ -74,6 +82,7 @@ public abstract class World extends Keyed {
     private final Path regionDirectory;
     private final Path tilesDirectory;
     private final WorldConfig worldConfig;
+    private final TileFormat[] tileFormats;
 
     private final long seed;
     private final Point spawn;
@@ -85,8 +94,13 @@ public abstract class World extends Keyed {
 
     private final LoadingCache<@NotNull Long, @NotNull Region> regionCache;
     private final RegionModifiedState regionModifiedState;
+    private final TilePyramid tilePyramid;
+    private final TileCanvas tileCanvas;
+    private final TileOptimizer tileOptimizer;
     //private final RegionFileWatcher regionFileWatcher;
     private final UpdateMarkerData markerTask;
+    private final UpdateTileImages tileTask;
+    private final OptimizeTileImages optimizeTask;
     private final Map<@NotNull String, Renderer.@NotNull Builder> renderers = new LinkedHashMap<>();
 
     public World(@NotNull String name, long seed, @NotNull Point spawn, @NotNull Type type, @NotNull Path regionDirectory) {
@@ -109,6 +123,7 @@ public abstract class World extends Keyed {
         FileUtil.createDirs(this.markersDirectory);
 
         this.worldConfig = new WorldConfig(this);
+        this.tileFormats = loadTileFormats();
 
         this.biomeManager = new BiomeManager(hashSeed(getSeed()));
         this.biomeRegistry = new BiomeRegistry();
@@ -117,11 +132,21 @@ public abstract class World extends Keyed {
         this.regionCache = Caffeine.newBuilder()
                 .expireAfterWrite(1, TimeUnit.MINUTES)
                 .maximumSize(100)
+                .removalListener((Long pos, Region region, RemovalCause cause) -> {
+                    if (region != null) {
+                        region.releaseReader();
+                    }
+                })
                 .build(this::loadRegion);
 
         this.regionModifiedState = new RegionModifiedState(this);
+        this.tilePyramid = new TilePyramid(this);
+        this.tileCanvas = new TileCanvas(this);
+        this.tileOptimizer = new TileOptimizer(this);
         //this.regionFileWatcher = new RegionFileWatcher(this);
         this.markerTask = new UpdateMarkerData(this);
+        this.tileTask = new UpdateTileImages(this);
+        this.optimizeTask = new OptimizeTileImages(this);
     }
 
     protected void init() {
@@ -169,6 +194,12 @@ public abstract class World extends Keyed {
         Logger.debug("Starting marker task");
         Pl3xMap.api().getScheduler().addTask(1, true, this.markerTask);
 
+        Logger.debug("Starting tile image task");
+        Pl3xMap.api().getScheduler().addTask(this.tileTask);
+
+        Logger.debug("Starting tile optimizer task");
+        Pl3xMap.api().getScheduler().addTask(this.optimizeTask);
+
         // load up custom markers
         Logger.debug("Loading custom markers for " + getName());
         for (Path file : getCustomMarkerFiles()) {
@@ -179,6 +210,8 @@ public abstract class World extends Keyed {
     public void cleanup() {
         this.regionCache.invalidateAll();
         getRegionModifiedState().save();
+        getTilePyramid().save();
+        getTileOptimizer().save();
     }
 
     public @NotNull Path getCustomMarkersDirectory() {
@@ -201,10 +234,54 @@ public abstract class World extends Keyed {
         return this.worldConfig;
     }
 
+    /**
+     * Get the format tiles of a zoom level are written with.
+     *
+     * @param zoom zoom level
+     * @return tile format
+     */
+    public @NotNull TileFormat getTileFormat(int zoom) {
+        return this.tileFormats[Mathf.clamp(0, this.tileFormats.length - 1, zoom)];
+    }
+
+    private @NotNull TileFormat @NotNull [] loadTileFormats() {
+        TileFormat[] formats = new TileFormat[Math.max(0, getConfig().ZOOM_MAX_OUT) + 1];
+        Arrays.fill(formats, TileFormat.global());
+        // plain numbers come back from yaml as integers, not strings
+        for (Map.Entry<?, ?> entry : getConfig().ZOOM_TILE_FORMATS.entrySet()) {
+            String zooms = String.valueOf(entry.getKey());
+            String format = String.valueOf(entry.getValue());
+            try {
+                int dash = zooms.indexOf('-');
+                int min = Integer.parseInt((dash < 0 ? zooms : zooms.substring(0, dash)).trim());
+                int max = dash < 0 ? min : Integer.parseInt(zooms.substring(dash + 1).trim());
+                TileFormat tileFormat = TileFormat.parse(format);
+                for (int zoom = Math.max(0, min); zoom <= Math.min(max, formats.length - 1); zoom++) {
+                    formats[zoom] = tileFormat;
+                }
+            } catch (IllegalStateException | NumberFormatException e) {
+                Logger.warn("Invalid tile format for zoom " + zooms + " in world " + getName() + ": " + format);
+            }
+        }
+        return formats;
+    }
+
     public @NotNull RegionModifiedState getRegionModifiedState() {
         return this.regionModifiedState;
     }
 
+    public @NotNull TilePyramid getTilePyramid() {
+        return this.tilePyramid;
+    }
+
+    public @NotNull TileCanvas getTileCanvas() {
+        return this.tileCanvas;
+    }
+
+    public @NotNull TileOptimizer getTileOptimizer() {
+        return this.tileOptimizer;
+    }
+
     //public @NotNull RegionFileWatcher getRegionFileWatcher() {
     //    return this.regionFileWatcher;
     //}
@@ -213,6 +290,14 @@ public abstract class World extends Keyed {
         return this.markerTask;
     }
 
+    public @NotNull UpdateTileImages getTileTask() {
+        return this.tileTask;
+    }
+
+    public @NotNull OptimizeTileImages getOptimizeTask() {
+        return this.optimizeTask;
+    }
+
     public @NotNull Map<@NotNull String, Renderer.@NotNull Builder> getRenderers() {
         return Collections.unmodifiableMap(this.renderers);
     }
@@ -361,6 +446,17 @@ public abstract class World extends Keyed {
         return FileUtil.regionPathsToPoints(this, getRegionFiles(), ignoreTimestamp);
     }
 
+    /**
+     * Check if a region has a region file.
+     *
+     * @param regionX region x coordinate
+     * @param regionZ region z coordinate
+     * @return true if the region file exists
+     */
+    public boolean hasRegionFile(int regionX, int regionZ) {
+        return Files.exists(getMCAFile(regionX, regionZ));
+    }
+
     private @NotNull Region loadRegion(long pos) {
         int x = Mathf.longToX(pos);
         int z = Mathf.longToZ(pos);
@@ -0,0 +1,88 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.image.io;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+
+import static net.pl3x.map.core.image.io.TestImages.SIZE;
+import static net.pl3x.map.core.image.io.TestImages.assertPixels;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+public class PngEncoderTest {
+    @Test
+    public void truecolor() throws IOException {
+        for (int level = 0; level <= 9; level += 9) {
+            roundTrip(TestImages.terrain(SIZE, SIZE), SIZE, SIZE, level);
+            roundTrip(TestImages.terrain(37, 23), 37, 23, level);
+        }
+    }
+
+    @Test
+    public void transparent() throws IOException {
+        roundTrip(TestImages.transparent(SIZE, SIZE), SIZE, SIZE, 6);
+        roundTrip(new int[SIZE * SIZE], SIZE, SIZE, 6);
+    }
+
+    @Test
+    public void palette() throws IOException {
+        for (int colors : new int[]{1, 2, 16, 200, 256}) {
+            roundTripPalette(TestImages.palette(colors, SIZE, SIZE), SIZE, SIZE);
+        }
+        roundTripPalette(TestImages.palette(5, 37, 23), 37, 23);
+    }
+
+    @Test
+    public void transparentPalette() throws IOException {
+        roundTripPalette(TestImages.transparentPalette(SIZE, SIZE), SIZE, SIZE);
+    }
+
+    private static void roundTrip(int[] pixels, int width, int height, int level) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngEncoder.encode(out, pixels, width, height, level);
+        assertPixels(pixels, decode(out.toByteArray(), width, height));
+    }
+
+    private static void roundTripPalette(int[] pixels, int width, int height) throws IOException {
+        byte[] indices = new byte[pixels.length];
+        int[] palette = Quantizer.palette(pixels, indices);
+        assertNotNull(palette, "palette");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngEncoder.encode(out, indices, palette, width, height, 6);
+        assertPixels(pixels, decode(out.toByteArray(), width, height));
+    }
+
+    private static int[] decode(byte[] bytes, int width, int height) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+        assertNotNull(image, "decoded image");
+        assertEquals(width, image.getWidth(), "width");
+        assertEquals(height, image.getHeight(), "height");
+        return image.getRGB(0, 0, width, height, null, 0, width);
+    }
+}
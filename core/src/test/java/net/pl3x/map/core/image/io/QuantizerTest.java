@@ -0,0 +1,108 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.image.io;
+
+import org.junit.jupiter.api.Test;
+
+import static net.pl3x.map.core.image.io.TestImages.SIZE;
+import static net.pl3x.map.core.image.io.TestImages.assertPixels;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class QuantizerTest {
+    @Test
+    public void exactPalette() {
+        for (int colors : new int[]{1, 2, 16, 200, 256}) {
+            int[] pixels = TestImages.palette(colors, SIZE, SIZE);
+            byte[] indices = new byte[pixels.length];
+            int[] palette = Quantizer.palette(pixels, indices);
+            assertNotNull(palette, "palette of " + colors + " colors");
+            assertEquals(colors, palette.length, "palette size");
+            assertPixels(pixels, lookup(palette, indices));
+        }
+    }
+
+    @Test
+    public void tooManyColors() {
+        int[] pixels = TestImages.terrain(SIZE, SIZE);
+        assertNull(Quantizer.palette(pixels, new byte[pixels.length]));
+    }
+
+    @Test
+    public void transparentFirst() {
+        int[] pixels = TestImages.transparentPalette(SIZE, SIZE);
+        byte[] indices = new byte[pixels.length];
+        int[] palette = Quantizer.palette(pixels, indices);
+        assertNotNull(palette, "palette");
+        assertPixels(pixels, lookup(palette, indices));
+        assertTranslucentFirst(palette);
+    }
+
+    @Test
+    public void quantize() {
+        for (int[] pixels : new int[][]{TestImages.terrain(SIZE, SIZE), TestImages.transparent(SIZE, SIZE)}) {
+            byte[] indices = new byte[pixels.length];
+            int[] palette = Quantizer.quantize(pixels, indices);
+            assertTrue(palette.length > 0 && palette.length <= Quantizer.MAX_COLORS, "palette size " + palette.length);
+            assertTranslucentFirst(palette);
+            int[] quantized = lookup(palette, indices);
+            for (int i = 0; i < pixels.length; i++) {
+                // fully transparent pixels stay fully transparent, and opaque pixels stay opaque
+                int alpha = pixels[i] >>> 24;
+                if (alpha == 0 || alpha == 0xFF) {
+                    assertEquals(alpha, quantized[i] >>> 24, "alpha of pixel " + i);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void quantizeFewColors() {
+        // no more colors than the palette holds are kept exactly
+        int[] pixels = TestImages.palette(100, SIZE, SIZE);
+        byte[] indices = new byte[pixels.length];
+        assertPixels(pixels, lookup(Quantizer.quantize(pixels, indices), indices));
+    }
+
+    private static int[] lookup(int[] palette, byte[] indices) {
+        int[] pixels = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            pixels[i] = palette[indices[i] & 0xFF];
+        }
+        return pixels;
+    }
+
+    private static void assertTranslucentFirst(int[] palette) {
+        boolean opaque = false;
+        for (int color : palette) {
+            if (color >>> 24 == 0xFF) {
+                opaque = true;
+            } else {
+                assertTrue(!opaque, "translucent entry " + Integer.toHexString(color) + " after an opaque one");
+            }
+        }
+    }
+}
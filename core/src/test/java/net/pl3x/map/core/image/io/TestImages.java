@@ -0,0 +1,120 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.image.io;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tiles to run through the encoders, one for every path they take.
+ */
+final class TestImages {
+    static final int SIZE = 512;
+
+    private TestImages() {
+    }
+
+    /**
+     * Opaque tile with exactly the given number of colors, in blocks the size of a chunk.
+     */
+    static int[] palette(int colors, int width, int height) {
+        Random random = new Random(colors);
+        int[] palette = new int[colors];
+        for (int i = 0; i < colors; i++) {
+            palette[i] = 0xFF000000 | (random.nextInt() & 0xFFFFFF);
+        }
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            int x = i % width;
+            int z = i / width;
+            pixels[i] = palette[((x >> 4) * 31 + (z >> 4) * 17 + (i & 1)) % colors];
+        }
+        // make sure every color shows up
+        System.arraycopy(palette, 0, pixels, 0, Math.min(colors, pixels.length));
+        return pixels;
+    }
+
+    /**
+     * Opaque tile with smooth gradients and noise, far more than 256 colors.
+     */
+    static int[] terrain(int width, int height) {
+        Random random = new Random(width * 31L + height);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            int x = i % width;
+            int z = i / width;
+            int r = (x + random.nextInt(8)) & 0xFF;
+            int g = (z + random.nextInt(8)) & 0xFF;
+            int b = (x + z) >> 2 & 0xFF;
+            pixels[i] = 0xFF000000 | r << 16 | g << 8 | b;
+        }
+        return pixels;
+    }
+
+    /**
+     * Tile with fully transparent, translucent and opaque pixels, with noise in the alpha channel.
+     */
+    static int[] transparent(int width, int height) {
+        int[] pixels = terrain(width, height);
+        Random random = new Random(42);
+        for (int i = 0; i < pixels.length; i++) {
+            int z = i / width;
+            int alpha = z < height / 3 ? 0 : z < height * 2 / 3 ? 0x40 + random.nextInt(0x80) : 0xFF;
+            pixels[i] = alpha << 24 | (pixels[i] & 0xFFFFFF);
+        }
+        return pixels;
+    }
+
+    /**
+     * Tile with a few colors, some of them translucent, plus fully transparent pixels of different colors.
+     */
+    static int[] transparentPalette(int width, int height) {
+        int[] pixels = palette(12, width, height);
+        for (int i = 0; i < pixels.length; i++) {
+            int x = i % width;
+            if (x < width / 4) {
+                // fully transparent, with whatever color was there
+                pixels[i] &= 0x00FFFFFF;
+            } else if (x < width / 2) {
+                pixels[i] = 0x80000000 | (pixels[i] & 0xFFFFFF);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Compare pixels, where every fully transparent pixel is the same color.
+     */
+    static void assertPixels(int[] expected, int[] actual) {
+        assertEquals(expected.length, actual.length, "pixel count");
+        for (int i = 0; i < expected.length; i++) {
+            int e = expected[i] >>> 24 == 0 ? 0 : expected[i];
+            int a = actual[i] >>> 24 == 0 ? 0 : actual[i];
+            if (e != a) {
+                assertEquals(Integer.toHexString(e), Integer.toHexString(a), "pixel " + i);
+            }
+        }
+    }
+}
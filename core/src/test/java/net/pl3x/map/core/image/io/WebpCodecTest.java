@@ -0,0 +1,72 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020-2023 William Blake Galbreath
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.pl3x.map.core.image.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+
+import static net.pl3x.map.core.image.io.TestImages.SIZE;
+import static net.pl3x.map.core.image.io.TestImages.assertPixels;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class WebpCodecTest {
+    @Test
+    public void palette() throws IOException {
+        roundTrip(TestImages.palette(200, SIZE, SIZE), SIZE, SIZE);
+        roundTrip(TestImages.palette(256, SIZE, SIZE), SIZE, SIZE);
+    }
+
+    @Test
+    public void bundled() throws IOException {
+        // 2, 4 and 16 colors pack 8, 4 and 2 pixels into one
+        for (int colors : new int[]{1, 2, 3, 4, 5, 16}) {
+            roundTrip(TestImages.palette(colors, SIZE, SIZE), SIZE, SIZE);
+            // widths that do not divide evenly into bundles
+            roundTrip(TestImages.palette(colors, 37, 23), 37, 23);
+        }
+    }
+
+    @Test
+    public void predictor() throws IOException {
+        roundTrip(TestImages.terrain(SIZE, SIZE), SIZE, SIZE);
+        roundTrip(TestImages.terrain(37, 23), 37, 23);
+    }
+
+    @Test
+    public void transparent() throws IOException {
+        roundTrip(TestImages.transparent(SIZE, SIZE), SIZE, SIZE);
+        roundTrip(TestImages.transparentPalette(SIZE, SIZE), SIZE, SIZE);
+        roundTrip(new int[SIZE * SIZE], SIZE, SIZE);
+    }
+
+    private static void roundTrip(int[] pixels, int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WebpEncoder.encode(out, pixels, width, height);
+        WebpDecoder.Image image = WebpDecoder.decode(out.toByteArray());
+        assertEquals(width, image.width(), "width");
+        assertEquals(height, image.height(), "height");
+        assertPixels(pixels, image.pixels());
+    }
+}
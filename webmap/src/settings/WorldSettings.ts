@@ -176,11 +176,13 @@ export class Zoom {
     private readonly _def: number;
     private readonly _maxOut: number;
     private readonly _maxIn: number;
+    private readonly _formats: string[];
 
-    constructor(def: number, maxOut: number, maxIn: number) {
+    constructor(def: number, maxOut: number, maxIn: number, formats: string[] = []) {
         this._def = def;
         this._maxOut = maxOut;
         this._maxIn = maxIn;
+        this._formats = formats;
     }
 
     get default(): number {
@@ -194,4 +196,8 @@ export class Zoom {
     get maxIn(): number {
         return this._maxIn;
     }
+
+    get formats(): string[] {
+        return this._formats;
+    }
 }
@@ -7,9 +7,12 @@ import {Renderer, World} from "../world/World";
 export class ReversedZoomTileLayer extends L.TileLayer {
     private readonly _world: World;
     private readonly _renderer: Label;
+    private readonly _template: string;
+    private readonly _format: string;
 
     constructor(pl3xmap: Pl3xMap, world: World, renderer: Renderer) {
-        super(`tiles/${world.name}/{z}/${renderer.label}/{x}_{y}.${pl3xmap.settings?.format}`, {
+        const template: string = `tiles/${world.name}/{z}/${renderer.label}/{x}_{y}.{format}`;
+        super(template, {
             // tile sizes match regions sizes (512 blocks x 512 blocks)
             tileSize: 512,
             // dont wrap tiles at edges
@@ -29,6 +32,8 @@ export class ReversedZoomTileLayer extends L.TileLayer {
 
         this._world = world!;
         this._renderer = renderer;
+        this._template = template;
+        this._format = pl3xmap.settings?.format ?? 'png';
 
         // when tiles load we need to load extra block info
         this.addEventListener("tileload", (event: TileEvent): void => {
@@ -54,6 +59,17 @@ export class ReversedZoomTileLayer extends L.TileLayer {
         return this._renderer;
     }
 
+    getTileUrl(coords: L.Coords): string {
+        // every zoom level can have its own tile format
+        const zoom: number = this._getZoomForUrl();
+        return L.Util.template(this._template, {
+            x: coords.x,
+            y: coords.y,
+            z: zoom,
+            format: this._world.zoom.formats?.[zoom] ?? this._format
+        });
+    }
+
     _getZoomForUrl(): number {
         const zoom: number = this._tileZoom!,
             maxZoom: number = this.options.maxZoom!,